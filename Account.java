@@ -38,8 +38,8 @@ class Account
     /** LIABILITY account */
     public final static int TYPE_LIABILITY = 8;
 
-    /** The type of account, as specified by the TYPE_* constants */
-    public int type = TYPE_UNKNOWN;
+    /** The position of this account in the order that it was read */
+    public int index;
 
     /** The GnuCash type name */
     public String typeName;
@@ -62,12 +62,35 @@ class Account
     /** Account code */
     public String code;
     
-    /** The full name of this account, or null if not known yet */
-    public String fullName = null;
-
     /** The Transaction objects for this Account */
     public List trans = new ArrayList();
     
+    /** Whether any split refers to this account, even when the transactions are not kept */
+    public boolean used = false;
+    
+    /**
+     * Returns a copy of this account that only has the given transactions.
+     * The copy keeps this account's index, so export contexts see it as the
+     * same account
+     * @param transactions The transactions of the copy
+     * @return The copy, which counts as used if it has any transactions
+     */
+    public Account copy(List transactions)
+    {
+        Account copy = new Account();
+        copy.index = index;
+        copy.typeName = typeName;
+        copy.guid = guid;
+        copy.parentGuid = parentGuid;
+        copy.name = name;
+        copy.notes = notes;
+        copy.description = description;
+        copy.code = code;
+        copy.trans = transactions;
+        copy.used = !transactions.isEmpty();
+        return copy;
+    }
+    
     /**
      * Returns the description of this account or, if missing, the given default
      * @param defaultDescription The default description to return if no description
@@ -84,23 +107,24 @@ class Account
     }
     
     /**
-     * Returns whether or not this account is a double-entry account
+     * Returns whether or not an account type is a double-entry account
      * that will become a category
-     * @return True if this account is a double-entry account or false
+     * @param type The account type, as specified by the TYPE_* constants
+     * @return True if the type is a double-entry account or false
      * if it is not
      */
-    public boolean isDoubleEntry() {
+    public static boolean isDoubleEntry(int type) {
         return type == TYPE_DOUBLEENTRY || type == TYPE_DOUBLEENTRY_INCOME || type == TYPE_DOUBLEENTRY_EXPENSE;
     }
     
     /**
-     * Returns the name of this account's type
-     * @return The type name of this account, which can be Bank,
-     * CCard, or Invst
+     * Returns the QIF name of an account type
+     * @param accountType The account type, as specified by the TYPE_* constants
+     * @return The QIF type name, which can be Bank, CCard, or Invst
      */
-    public String getQIFTypeName() {
+    public static String getQIFTypeName(int accountType) {
         String type;
-        switch (this.type) {
+        switch (accountType) {
             default :
             case Account.TYPE_BANK :
                 type = "Bank";
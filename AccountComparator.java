@@ -3,10 +3,21 @@ package net.sourceforge.gnucashtoqif;
 import java.util.Comparator;
 
 /**
- * Compares two Account object instances using their full names
+ * Compares two Account object instances using their full names in an export
  */
 public class AccountComparator implements Comparator
 {
+	/** The export context that holds the full names */
+	protected ExportContext context;
+
+	/**
+	 * Creates a new comparator that uses the full names of the given export
+	 * @param context The export context that holds the full names
+	 */
+	public AccountComparator(ExportContext context) {
+		this.context = context;
+	}
+
 	/**
 	 * Compares the full account names of the two inputs
 	 * @param o1 Input 1
@@ -14,6 +25,6 @@ public class AccountComparator implements Comparator
 	 * @return -1 if o1 &lt; o2, 0 if o1 == o2, or 1 if o1 &gt; o2
 	 */
 	public int compare(Object o1, Object o2) {
-        return ((Account) o1).fullName.compareTo(((Account) o2).fullName);
+        return context.getFullName((Account) o1).compareTo(context.getFullName((Account) o2));
 	}
 }
@@ -0,0 +1,145 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Renders currency amounts with two decimal places exactly like
+ * DecimalFormat("0.00") in the US locale does: the exact binary value is
+ * rounded half-even, and negative amounts that round to zero keep their
+ * minus sign. The rounding is done with integer arithmetic on the double's
+ * mantissa, so nothing gets allocated. Amounts of 2^43 (about 8.8 trillion)
+ * or more, NaN and infinities fall back to DecimalFormat, which only keeps
+ * 17 significant digits and so stops rounding the exact value there
+ */
+final class AmountFormat
+{
+    /** Returned by toCents() for amounts that have to be formatted by DecimalFormat */
+    public static final long NOT_EXACT = -1;
+
+    /** The biased exponent of 2^43, the smallest amount that goes to DecimalFormat */
+    protected static final int MAX_EXPONENT = 1023 + 43;
+
+    /** Mask of the mantissa bits of a double */
+    protected static final long MANTISSA_MASK = (1L << 52) - 1;
+
+    /**
+     * No instances; everything is static
+     */
+    private AmountFormat() {
+    }
+
+    /**
+     * Returns whether an amount gets rendered with a minus sign
+     * @param amount The amount
+     * @return True if the amount's sign bit is set
+     */
+    public static boolean isNegative(double amount) {
+        return Double.doubleToRawLongBits(amount) < 0;
+    }
+
+    /**
+     * Returns the magnitude of an amount in cents, rounded half-even on its
+     * exact binary value
+     * @param amount The amount
+     * @return The rounded number of cents without a sign, or NOT_EXACT if the
+     * amount is NaN, infinite or at least 2^43
+     */
+    public static long toCents(double amount)
+    {
+        long bits = Double.doubleToRawLongBits(amount) & Long.MAX_VALUE;
+        int exponent = (int) (bits >>> 52);
+        if (exponent >= MAX_EXPONENT)
+            return NOT_EXACT;
+
+        // The amount is mantissa * 2^-shift, where shift is at least 10
+        long mantissa = bits & MANTISSA_MASK;
+        int shift;
+        if (exponent == 0)
+            shift = 1074;
+        else {
+            mantissa |= 1L << 52;
+            shift = 1075 - exponent;
+        }
+        if (mantissa == 0)
+            return 0;
+
+        // Amounts below 1/8 of a cent round to zero (100 * 2^53 < 2^60)
+        if (shift >= 63)
+            return 0;
+
+        // Split 100 * mantissa * 2^-shift into whole cents and a remainder,
+        // keeping 100 * mantissa within a long
+        long scaled = mantissa * 100;
+        long cents = scaled >>> shift;
+        long remainder = scaled & ((1L << shift) - 1);
+        long half = 1L << (shift - 1);
+        if (remainder > half || (remainder == half && (cents & 1) != 0))
+            cents++;
+        return cents;
+    }
+
+    /**
+     * Formats an amount into a new String
+     * @param amount The amount
+     * @return The formatted amount
+     */
+    public static String format(double amount)
+    {
+        StringBuffer output = new StringBuffer(16);
+        append(output, amount);
+        return output.toString();
+    }
+
+    /**
+     * Appends a formatted amount to a StringBuffer
+     * @param output The StringBuffer to append to
+     * @param amount The amount
+     */
+    public static void append(StringBuffer output, double amount)
+    {
+        long cents = toCents(amount);
+        if (cents == NOT_EXACT) {
+            output.append(formatSlow(amount));
+            return;
+        }
+        if (isNegative(amount))
+            output.append('-');
+        output.append(cents / 100);
+        output.append('.');
+        int fraction = (int) (cents % 100);
+        output.append((char) ('0' + fraction / 10));
+        output.append((char) ('0' + fraction % 10));
+    }
+
+    /**
+     * Appends a formatted amount to an output sink
+     * @param output The sink to append to
+     * @param amount The amount
+     * @throws IOException Thrown if the sink could not be written to
+     */
+    public static void append(OutputSink output, double amount) throws IOException
+    {
+        long cents = toCents(amount);
+        if (cents == NOT_EXACT) {
+            output.write(formatSlow(amount));
+            return;
+        }
+        if (isNegative(amount))
+            output.write('-');
+        output.appendFixed(cents, 2);
+    }
+
+    /**
+     * Formats an amount with DecimalFormat. A new DecimalFormat is made
+     * every time because they are not thread-safe; this is only used for
+     * amounts that are never seen in real books
+     * @param amount The amount
+     * @return The formatted amount
+     */
+    protected static String formatSlow(double amount) {
+        return new DecimalFormat("0.00", new DecimalFormatSymbols(Locale.US)).format(amount);
+    }
+}
@@ -0,0 +1,133 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks that AmountFormat renders amounts exactly like
+ * DecimalFormat("0.00") in the US locale. The edge cases are signed zeros,
+ * negative amounts that round to zero, values on and next to every .xx5
+ * binary tie, values around 2^43, NaN, infinities and subnormals, followed
+ * by random bit patterns and random amounts of cents. Run it with
+ * <pre>
+ * java net.sourceforge.gnucashtoqif.AmountFormatCheck [random values] [seed]
+ * </pre>
+ * It prints the first mismatches and exits with status 1 if there were any
+ */
+final class AmountFormatCheck
+{
+    /** The number of mismatches that get printed */
+    protected static final int MAX_REPORTED = 20;
+
+    /** The formatter that AmountFormat has to match */
+    protected DecimalFormat expected = new DecimalFormat("0.00", new DecimalFormatSymbols(Locale.US));
+
+    /** The bytes that the sink writes to */
+    protected ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    /** The sink that AmountFormat appends to */
+    protected OutputSink sink = new OutputSink(bytes, Charset.forName("UTF-8"), 64);
+
+    /** The number of values checked */
+    protected long checked = 0;
+
+    /** The number of values that did not match */
+    protected long mismatches = 0;
+
+    /**
+     * Runs the check
+     * @param args The number of random values, 1000000 by default, and the
+     * seed of the random values
+     * @throws IOException Never, since the sink writes to memory
+     */
+    public static void main(String args[]) throws IOException
+    {
+        long count = (args.length > 0)? Long.parseLong(args[0]): 1000000;
+        Random random = (args.length > 1)? new Random(Long.parseLong(args[1])): new Random();
+        AmountFormatCheck check = new AmountFormatCheck();
+
+        // Signed zeros, special values and negative amounts that round to zero
+        double special[] = {0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+            Double.MAX_VALUE, -Double.MAX_VALUE, Double.MIN_NORMAL, -Double.MIN_NORMAL,
+            Double.MIN_VALUE, -Double.MIN_VALUE, -0.001, -0.004, -0.0049999, -0.005, -0.0050001,
+            1e-300, -1e-300, 1e20, -1e20, 1e300, -1e300};
+        for (int i = 0; i < special.length; i++)
+            check.both(special[i]);
+
+        // Binary ties such as 0.125, and the amounts on and next to every
+        // .xx5 between 0 and 10000
+        for (int i = 0; i < 8 * 10000; i++)
+            check.both(i / 8.0);
+        for (long cents = 0; cents < 10000 * 100; cents++) {
+            double tie = (cents + 0.5) / 100;
+            check.both(tie);
+            check.both(Math.nextUp(tie));
+            check.both(Math.nextAfter(tie, 0));
+        }
+
+        // Amounts around 2^43, where AmountFormat hands over to DecimalFormat
+        double limit = Math.scalb(1.0, 43);
+        double amount = limit;
+        for (int i = 0; i < 10000; i++)
+            amount = Math.nextAfter(amount, 0);
+        for (int i = 0; i < 20000; i++) {
+            check.both(amount);
+            amount = Math.nextUp(amount);
+        }
+        for (int i = -1000; i <= 1000; i++) {
+            check.both(limit + i * 0.125);
+            check.both(limit + i * 0.005);
+        }
+
+        // Subnormals, random bit patterns, amounts with exponents that books
+        // use and random amounts of cents
+        for (long i = 0; i < count; i++) {
+            check.both(Double.longBitsToDouble(random.nextLong() & ((1L << 52) - 1)));
+            check.both(Double.longBitsToDouble(random.nextLong()));
+            check.both(Double.longBitsToDouble((random.nextLong() & 0x800fffffffffffffL) | ((long) (1023 - 20 + random.nextInt(66)) << 52)));
+            check.both((random.nextLong() % 100000000000L) / 100.0);
+        }
+
+        System.out.println(check.checked + " values checked, " + check.mismatches + " mismatches");
+        System.exit((check.mismatches == 0)? 0: 1);
+    }
+
+    /**
+     * Checks an amount and its negation
+     * @param amount The amount
+     * @throws IOException Never, since the sink writes to memory
+     */
+    protected void both(double amount) throws IOException
+    {
+        check(amount);
+        check(-amount);
+    }
+
+    /**
+     * Checks that format() and both append() methods render an amount the
+     * way that DecimalFormat does
+     * @param amount The amount
+     * @throws IOException Never, since the sink writes to memory
+     */
+    protected void check(double amount) throws IOException
+    {
+        String expected = this.expected.format(amount);
+        StringBuffer buffer = new StringBuffer();
+        AmountFormat.append(buffer, amount);
+        bytes.reset();
+        AmountFormat.append(sink, amount);
+        sink.flush();
+        String written = new String(bytes.toByteArray(), "UTF-8");
+        checked++;
+        if (expected.equals(AmountFormat.format(amount)) && expected.equals(buffer.toString()) && expected.equals(written))
+            return;
+        if (mismatches++ < MAX_REPORTED)
+            System.out.println("Mismatch for " + amount + " (bits " + Long.toHexString(Double.doubleToRawLongBits(amount)) + "): expected "
+                + expected + " but got " + AmountFormat.format(amount) + ", " + buffer + " and " + written);
+    }
+}
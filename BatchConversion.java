@@ -0,0 +1,304 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the conversions that a manifest lists on a pool of worker threads in
+ * this one virtual machine. Each line of the manifest is a job with the
+ * source file, the output file, the output format and further command-line
+ * options, separated by tabs; the last two may be left out, and blank lines
+ * and lines that start with # are skipped. Every job gets a conversion of
+ * its own, so a job that fails does not stop the others, and as the jobs run
+ * side by side, none of them may use - for stdin or stdout. A summary with
+ * one JSON object per job is written in the manifest's order. With shards,
+ * several hosts can each take every n-th job of the same manifest without
+ * talking to each other
+ */
+class BatchConversion
+{
+    /** The manifest file */
+    protected File manifest;
+
+    /** The number of jobs that run at once */
+    protected int workers;
+
+    /** The shard that this run takes, counting from 0 */
+    protected int shard;
+
+    /** The number of shards that the manifest is split into */
+    protected int shards;
+
+    /**
+     * A job of the manifest and, once it has run, its outcome
+     */
+    protected static class Job
+    {
+        /** The line of the manifest that the job is on */
+        public int line;
+
+        /** The command line of the job, or null if the line is not a valid job */
+        public String args[];
+
+        /** The source file */
+        public String source;
+
+        /** The output file */
+        public String destination;
+
+        /** The output format, or an empty String for the default */
+        public String format;
+
+        /** The exit status of the conversion, or -1 if it threw an exception */
+        public int status;
+
+        /** The time that the job took in milliseconds */
+        public long milliseconds;
+
+        /** The number of warnings that came up */
+        public int warnings;
+
+        /** Why the job failed, or null */
+        public String error;
+    }
+
+    /**
+     * Creates a new batch
+     * @param manifest The manifest file
+     * @param workers The number of jobs that run at once
+     * @param shard The shard that this run takes, counting from 0
+     * @param shards The number of shards that the manifest is split into
+     */
+    public BatchConversion(File manifest, int workers, int shard, int shards)
+    {
+        this.manifest = manifest;
+        this.workers = workers;
+        this.shard = shard;
+        this.shards = shards;
+    }
+
+    /**
+     * Runs this run's jobs and writes the summary
+     * @param summaryFile The file to write the summary to, or null or - for stdout
+     * @return The exit status: 0 if every job succeeded, 1 if the manifest
+     * could not be read and 3 if a job failed or the summary could not be written
+     */
+    public int run(File summaryFile)
+    {
+        // Read the jobs of this shard
+        List jobs;
+        try {
+            jobs = readJobs();
+        } catch (IOException e) {
+            System.out.println("Could not read the manifest \"" + manifest.getPath() + "\": " + e.getMessage() + "; exiting");
+            return 1;
+        }
+
+        // Jobs print their notes to stdout, so while the summary goes there,
+        // they print to stderr instead and the summary stays one JSON object
+        // per line
+        boolean stdout = summaryFile == null || summaryFile.getName().equals("-");
+        PrintStream console = System.out;
+        if (stdout)
+            System.setOut(System.err);
+
+        // Start every job, running as many at once as there are workers
+        ExecutorService pool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            protected int created = 0;
+            public synchronized Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "batch-" + (++created));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        List results = new ArrayList(jobs.size());
+        for (int i = 0; i < jobs.size(); i++) {
+            final Job job = (Job) jobs.get(i);
+            results.add(pool.submit(new Callable() {
+                public Object call() {
+                    runJob(job);
+                    return job;
+                }
+            }));
+        }
+        pool.shutdown();
+
+        // Write out the outcome of each job in the manifest's order as soon
+        // as it and the jobs before it are done
+        OutputSink summary = null;
+        int failed = 0;
+        boolean written = true;
+        try {
+            OutputStream out = stdout? (OutputStream) console: new FileOutputStream(summaryFile);
+            summary = new OutputSink(out, Charset.forName("UTF-8"), 64 * 1024);
+            for (int i = 0; i < results.size(); i++) {
+                Job job = waitFor((Future) results.get(i));
+                if (job.status != 0)
+                    failed++;
+                writeSummary(summary, job);
+                summary.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not write the summary: " + e.getMessage());
+            written = false;
+        } finally {
+            try {
+                if (summary != null && !stdout)
+                    summary.close();
+            } catch (IOException e) {
+                written = false;
+            }
+            System.setOut(console);
+        }
+        System.err.println((jobs.size() - failed) + " of " + jobs.size() + " jobs in shard " + (shard + 1) + "/" + shards + " succeeded");
+        return (failed == 0 && written)? 0: 3;
+    }
+
+    /**
+     * Reads the jobs of this run's shard from the manifest
+     * @return The jobs in the manifest's order
+     * @throws IOException Thrown if the manifest could not be read
+     */
+    protected List readJobs() throws IOException
+    {
+        List jobs = new ArrayList();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), Charset.forName("UTF-8")));
+        try {
+            String line, columns[];
+            int lineNumber = 0, count = 0;
+            Job job;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().length() == 0 || line.startsWith("#"))
+                    continue;
+
+                // Every shard counts the jobs the same way and takes every n-th one
+                if (count++ % shards != shard)
+                    continue;
+                job = new Job();
+                job.line = lineNumber;
+                columns = line.split("\t", -1);
+                job.source = columns[0].trim();
+                job.destination = (columns.length > 1)? columns[1].trim(): "";
+                job.format = (columns.length > 2)? columns[2].trim(): "";
+                if (job.source.length() > 0 && job.destination.length() > 0)
+                    job.args = getArgs(job, (columns.length > 3)? columns[3].trim(): "");
+                jobs.add(job);
+            }
+        } finally {
+            reader.close();
+        }
+        return jobs;
+    }
+
+    /**
+     * Builds the command line of a job
+     * @param job The job, whose source, destination and format are set
+     * @param options The further options, separated by spaces
+     * @return The command line
+     */
+    protected static String[] getArgs(Job job, String options)
+    {
+        List args = new ArrayList();
+        String option[] = options.split("\\s+");
+        for (int i = 0; i < option.length; i++)
+            if (option[i].length() > 0)
+                args.add(option[i]);
+        if (job.format.length() > 0)
+            args.add("--output-format=" + job.format);
+        args.add(job.source);
+        args.add(job.destination);
+        return (String[]) args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * Runs a job with a conversion of its own, keeping its outcome in the job
+     * @param job The job
+     */
+    protected static void runJob(Job job)
+    {
+        long start = System.currentTimeMillis();
+        if (job.args == null) {
+            job.status = 1;
+            job.error = "The job needs a source file and an output file";
+            return;
+        }
+        GnuCashToQIF program = new GnuCashToQIF();
+        program.interactive = false;
+        try {
+            job.status = program.run(job.args);
+            job.error = program.error;
+            if (job.status != 0 && job.error == null)
+                job.error = "The conversion exited with status " + job.status;
+        } catch (Throwable e) {
+            // Only this job fails; its memory is freed once it is dropped
+            job.status = -1;
+            job.error = e.toString();
+        }
+        job.warnings = program.warnings.size();
+        job.milliseconds = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Waits for a job to finish
+     * @param result The Future of the job
+     * @return The job with its outcome
+     */
+    protected static Job waitFor(Future result)
+    {
+        while (true) {
+            try {
+                return (Job) result.get();
+            } catch (InterruptedException e) {
+                // Keep waiting; the summary has to list every job
+            } catch (ExecutionException e) {
+                // runJob() catches everything, so this cannot happen
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Writes the outcome of a job as a line of JSON
+     * @param summary The sink to write to
+     * @param job The job
+     * @throws IOException Thrown if the sink could not be written to
+     */
+    protected static void writeSummary(OutputSink summary, Job job) throws IOException
+    {
+        summary.write("{\"line\":");
+        summary.appendInt(job.line);
+        summary.write(",\"source\":");
+        JournalOutputFormat.writeJSON(summary, job.source);
+        summary.write(",\"destination\":");
+        JournalOutputFormat.writeJSON(summary, job.destination);
+        summary.write(",\"format\":");
+        JournalOutputFormat.writeJSON(summary, job.format);
+        summary.write(",\"succeeded\":");
+        summary.write((job.status == 0)? "true": "false");
+        summary.write(",\"status\":");
+        summary.appendInt(job.status);
+        summary.write(",\"milliseconds\":");
+        summary.appendInt(job.milliseconds);
+        summary.write(",\"warnings\":");
+        summary.appendInt(job.warnings);
+        summary.write(",\"error\":");
+        JournalOutputFormat.writeJSON(summary, job.error);
+        summary.write("}\n");
+    }
+}
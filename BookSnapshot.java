@@ -0,0 +1,632 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary copy of an imported book, kept next to the GnuCash file so that
+ * later runs can load it instead of parsing the XML. Every String is stored
+ * once in a table, and the accounts, transactions, splits, lots, invoices
+ * and vendors refer to it and to each other by number. The snapshot is only
+ * used while the GnuCash file has the same size, modification time and
+ * CRC-32 as when the snapshot was written, and is read in the same charset
+ */
+class BookSnapshot
+{
+    /** The first four bytes of a snapshot, "GCQB" */
+    protected static final int MAGIC = 0x47435142;
+
+    /** The version of the snapshot format */
+    protected static final int VERSION = 1;
+
+    /** What gets added to the GnuCash file's name to name its snapshot */
+    public static final String EXTENSION = ".snapshot";
+
+    /** The charset of the String table */
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The GnuCash file */
+    protected File source;
+
+    /** The snapshot file */
+    protected File file;
+
+    /** The size of the GnuCash file */
+    protected long sourceSize;
+
+    /** The modification time of the GnuCash file */
+    protected long sourceModified;
+
+    /** The CRC-32 of the GnuCash file */
+    protected long sourceChecksum;
+
+    /** The charset that the GnuCash file gets decoded with */
+    protected String sourceCharset;
+
+    /** The numbers of the Strings that are being written */
+    protected Map stringIds = null;
+
+    /** The Strings in the order of their numbers */
+    protected List strings = null;
+
+    /** The numbers of the accounts that are being written, by identity */
+    protected Map accountIds = null;
+
+    /** The numbers of the transactions that are being written, by identity */
+    protected Map transactionIds = null;
+
+    /**
+     * Creates the snapshot of a GnuCash file, reading the file to work out
+     * its checksum. Size and modification time are taken first so that a
+     * file that changes meanwhile does not match the snapshot
+     * @param source The GnuCash file
+     * @param charset The charset that the GnuCash file gets decoded with,
+     * since the imported text depends on it
+     * @throws IOException Thrown if the GnuCash file could not be read
+     */
+    public BookSnapshot(File source, Charset charset) throws IOException
+    {
+        this.source = source;
+        sourceCharset = charset.name();
+        file = new File(source.getPath() + EXTENSION);
+        sourceSize = source.length();
+        sourceModified = source.lastModified();
+        sourceChecksum = checksum(source);
+    }
+
+    /**
+     * Returns the snapshot file
+     * @return The file that the snapshot is kept in
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Works out the CRC-32 of a file
+     * @param source The file
+     * @return The CRC-32
+     * @throws IOException Thrown if the file could not be read
+     */
+    protected static long checksum(File source) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        FileInputStream input = new FileInputStream(source);
+        try {
+            FileChannel channel = input.getChannel();
+            ByteBuffer block = ByteBuffer.allocateDirect(1024 * 1024);
+            while (channel.read(block) >= 0) {
+                block.flip();
+                crc.update(block);
+                block.clear();
+            }
+        } finally {
+            input.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Loads the snapshot into a conversion if it was made from the GnuCash
+     * file as it is now. Text goes into the conversion's text arena if it
+     * has one. The book is frozen afterwards, like an imported book
+     * @param conversion The conversion to load the book into, which has not
+     * imported anything yet
+     * @return True if the snapshot was loaded; false if there is no snapshot
+     * or the GnuCash file has changed
+     * @throws IOException Thrown if the snapshot could not be read or is damaged
+     */
+    public boolean read(Conversion conversion) throws IOException
+    {
+        if (!file.isFile())
+            return false;
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 32 || in.getInt() != MAGIC || in.getInt() != VERSION)
+                return false;
+            if (in.getLong() != sourceSize || in.getLong() != sourceModified || in.getLong() != sourceChecksum)
+                return false;
+            byte charsetName[] = new byte[in.getShort() & 0xffff];
+            in.get(charsetName);
+            if (!new String(charsetName, UTF8).equals(sourceCharset))
+                return false;
+            readBook(in, conversion);
+            conversion.freeze();
+            return true;
+        } catch (BufferUnderflowException e) {
+            clear(conversion);
+            throw new IOException(file.getPath() + " is damaged");
+        } catch (IndexOutOfBoundsException e) {
+            clear(conversion);
+            throw new IOException(file.getPath() + " is damaged");
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Removes what a damaged snapshot has loaded, so that the book can be
+     * imported from the GnuCash file instead
+     * @param conversion The conversion that the snapshot was loaded into
+     */
+    protected static void clear(Conversion conversion)
+    {
+        conversion.accounts.clear();
+        conversion.transactions.clear();
+        conversion.vendors.clear();
+        conversion.lots.clear();
+        conversion.invoices.clear();
+        conversion.warnings.clear();
+        conversion.accountCount = 0;
+        conversion.transactionCount = 0;
+    }
+
+    /**
+     * Reads the String table and the book
+     * @param in The snapshot after its header
+     * @param conversion The conversion to load the book into
+     */
+    protected void readBook(ByteBuffer in, Conversion conversion)
+    {
+        // Read the String table
+        String table[] = new String[in.getInt()];
+        byte bytes[] = new byte[256];
+        int length;
+        for (int i = 0; i < table.length; i++) {
+            length = in.getInt();
+            if (length > bytes.length)
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            in.get(bytes, 0, length);
+            table[i] = new String(bytes, 0, length, UTF8);
+        }
+        conversion.accountCount = in.getInt();
+        conversion.transactionCount = in.getInt();
+
+        // Read the accounts
+        Account accounts[] = new Account[in.getInt()];
+        Account account;
+        for (int i = 0; i < accounts.length; i++) {
+            account = accounts[i] = new Account();
+            account.index = in.getInt();
+            account.typeName = getString(in, table);
+            account.guid = getString(in, table);
+            account.parentGuid = getString(in, table);
+            account.name = getString(in, table);
+            account.notes = getString(in, table);
+            account.description = getString(in, table);
+            account.code = getString(in, table);
+            account.used = in.get() != 0;
+        }
+
+        // Read the transactions and their splits
+        TextArena text = conversion.text;
+        Transaction transactions[] = new Transaction[in.getInt()];
+        Transaction transaction;
+        Split split;
+        int splitCount, accountId;
+        for (int i = 0; i < transactions.length; i++) {
+            transaction = transactions[i] = new Transaction();
+            transaction.index = in.getInt();
+            transaction.guid = getString(in, table);
+            transaction.datePosted = getString(in, table);
+            transaction.dateDue = getString(in, table);
+            transaction.transactionType = getString(in, table);
+            if (text != null) {
+                transaction.descriptionText = text.add(getString(in, table));
+                transaction.refText = text.add(getString(in, table));
+            } else {
+                transaction.description = getString(in, table);
+                transaction.ref = getString(in, table);
+            }
+            splitCount = in.getInt();
+            transaction.splits = new ArrayList(splitCount);
+            for (int j = 0; j < splitCount; j++) {
+                split = new Split();
+                split.amount = in.getDouble();
+                split.reconciliationStatus = in.getChar();
+                split.accountGuid = getString(in, table);
+                split.lotGuid = getString(in, table);
+                accountId = in.getInt();
+                split.account = (accountId >= 0)? accounts[accountId]: null;
+                if (text != null) {
+                    split.memoText = text.add(getString(in, table));
+                    split.actionText = text.add(getString(in, table));
+                } else {
+                    split.memo = getString(in, table);
+                    split.action = getString(in, table);
+                }
+                transaction.splits.add(split);
+            }
+        }
+
+        // Read each account's transactions and the two maps, sizing the
+        // collections up front since their sizes are known
+        int count;
+        for (int i = 0; i < accounts.length; i++) {
+            count = in.getInt();
+            accounts[i].trans = new ArrayList(count);
+            for (int j = 0; j < count; j++)
+                accounts[i].trans.add(transactions[in.getInt()]);
+        }
+        count = in.getInt();
+        conversion.accounts = new HashMap(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++)
+            conversion.accounts.put(getString(in, table), accounts[in.getInt()]);
+        count = in.getInt();
+        conversion.transactions = new HashMap(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++)
+            conversion.transactions.put(getString(in, table), transactions[in.getInt()]);
+
+        // Read the vendors, lots and invoices
+        Vendor vendor;
+        count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            vendor = new Vendor();
+            vendor.name = getString(in, table);
+            vendor.id = getString(in, table);
+            vendor.addressName = getString(in, table);
+            vendor.addressLine1 = getString(in, table);
+            vendor.addressLine2 = getString(in, table);
+            vendor.active = in.get() != 0;
+            conversion.vendors.add(vendor);
+        }
+        Lot lot;
+        String key;
+        count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            key = getString(in, table);
+            lot = new Lot();
+            lot.guid = getString(in, table);
+            lot.invoiceGuid = getString(in, table);
+            accountId = in.getInt();
+            lot.account = (accountId >= 0)? accounts[accountId]: null;
+            conversion.lots.put(key, lot);
+        }
+        Invoice invoice;
+        int transactionId;
+        count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            key = getString(in, table);
+            invoice = new Invoice();
+            invoice.guid = getString(in, table);
+            invoice.dateOpened = getString(in, table);
+            invoice.datePosted = getString(in, table);
+            invoice.id = getString(in, table);
+            invoice.accountGuid = getString(in, table);
+            invoice.invoiceTransactionGuid = getString(in, table);
+            invoice.active = in.get() != 0;
+            accountId = in.getInt();
+            invoice.account = (accountId >= 0)? accounts[accountId]: null;
+            transactionId = in.getInt();
+            invoice.invoiceTransaction = (transactionId >= 0)? transactions[transactionId]: null;
+            conversion.invoices.put(key, invoice);
+        }
+
+        // Read the warnings of the import
+        count = in.getInt();
+        for (int i = 0; i < count; i++)
+            conversion.warnings.add(getString(in, table));
+    }
+
+    /**
+     * Reads a String by its number in the table
+     * @param in The snapshot
+     * @param table The String table
+     * @return The String, or null if the number is -1
+     */
+    protected static String getString(ByteBuffer in, String table[])
+    {
+        int id = in.getInt();
+        return (id >= 0)? table[id]: null;
+    }
+
+    /**
+     * Saves an imported book as the snapshot of the GnuCash file. The file is
+     * written under a temporary name and renamed, so that a snapshot that is
+     * being written never gets loaded
+     * @param conversion The imported book
+     * @throws IOException Thrown if the snapshot could not be written
+     */
+    public void write(Conversion conversion) throws IOException
+    {
+        // Number the objects and the Strings by writing the book to nowhere
+        stringIds = new HashMap();
+        strings = new ArrayList();
+        accountIds = new IdentityHashMap();
+        transactionIds = new IdentityHashMap();
+        try {
+            numberObjects(conversion);
+            writeBook(new DataOutputStream(new OutputStream() {
+                public void write(int b) {
+                }
+                public void write(byte b[], int off, int len) {
+                }
+            }), conversion);
+
+            // Write the header, the String table and then the book
+            File temporary = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".tmp");
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 64 * 1024));
+            try {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(sourceSize);
+                output.writeLong(sourceModified);
+                output.writeLong(sourceChecksum);
+                output.writeUTF(sourceCharset);
+                output.writeInt(strings.size());
+                Iterator stringIterator = strings.iterator();
+                byte bytes[];
+                while (stringIterator.hasNext()) {
+                    bytes = ((String) stringIterator.next()).getBytes(UTF8);
+                    output.writeInt(bytes.length);
+                    output.write(bytes);
+                }
+                writeBook(output, conversion);
+            } finally {
+                output.close();
+            }
+            Files.move(temporary.toPath(), file.toPath(), new StandardCopyOption[] {StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE});
+        } finally {
+            stringIds = null;
+            strings = null;
+            accountIds = null;
+            transactionIds = null;
+        }
+    }
+
+    /**
+     * Numbers every account and transaction that the book refers to, in the
+     * order that they were read
+     * @param conversion The imported book
+     */
+    protected void numberObjects(Conversion conversion)
+    {
+        // Gather the objects from everywhere that refers to them
+        List accounts = new ArrayList(conversion.accounts.values());
+        List transactions = new ArrayList(conversion.transactions.values());
+        Iterator accountIterator = conversion.accounts.values().iterator();
+        while (accountIterator.hasNext())
+            transactions.addAll(((Account) accountIterator.next()).trans);
+        Iterator invoiceIterator = conversion.invoices.values().iterator();
+        Invoice invoice;
+        while (invoiceIterator.hasNext()) {
+            invoice = (Invoice) invoiceIterator.next();
+            if (invoice.account != null)
+                accounts.add(invoice.account);
+            if (invoice.invoiceTransaction != null)
+                transactions.add(invoice.invoiceTransaction);
+        }
+        Iterator lotIterator = conversion.lots.values().iterator();
+        Lot lot;
+        while (lotIterator.hasNext()) {
+            lot = (Lot) lotIterator.next();
+            if (lot.account != null)
+                accounts.add(lot.account);
+        }
+        Iterator transIterator = transactions.iterator();
+        Iterator splitIterator;
+        Split split;
+        while (transIterator.hasNext()) {
+            splitIterator = ((Transaction) transIterator.next()).splits.iterator();
+            while (splitIterator.hasNext()) {
+                split = (Split) splitIterator.next();
+                if (split.account != null)
+                    accounts.add(split.account);
+            }
+        }
+
+        // Number each object once, by the order that it was read in
+        Collections.sort(accounts, new Comparator() {
+            public int compare(Object a, Object b) {
+                return ((Account) a).index - ((Account) b).index;
+            }
+        });
+        Collections.sort(transactions, new Comparator() {
+            public int compare(Object a, Object b) {
+                return ((Transaction) a).index - ((Transaction) b).index;
+            }
+        });
+        for (int i = 0; i < accounts.size(); i++)
+            if (!accountIds.containsKey(accounts.get(i)))
+                accountIds.put(accounts.get(i), Integer.valueOf(accountIds.size()));
+        for (int i = 0; i < transactions.size(); i++)
+            if (!transactionIds.containsKey(transactions.get(i)))
+                transactionIds.put(transactions.get(i), Integer.valueOf(transactionIds.size()));
+    }
+
+    /**
+     * Writes the book after the String table. The first call numbers the
+     * Strings, so it gets a stream that throws the output away
+     * @param output The stream to write to
+     * @param conversion The imported book
+     * @throws IOException Thrown if the stream could not be written to
+     */
+    protected void writeBook(DataOutputStream output, Conversion conversion) throws IOException
+    {
+        TextArena text = conversion.text;
+        output.writeInt(conversion.accountCount);
+        output.writeInt(conversion.transactionCount);
+
+        // Write the accounts in the order of their numbers
+        Account accounts[] = new Account[accountIds.size()];
+        Iterator entryIterator = accountIds.entrySet().iterator();
+        Map.Entry entry;
+        while (entryIterator.hasNext()) {
+            entry = (Map.Entry) entryIterator.next();
+            accounts[((Integer) entry.getValue()).intValue()] = (Account) entry.getKey();
+        }
+        output.writeInt(accounts.length);
+        Account account;
+        for (int i = 0; i < accounts.length; i++) {
+            account = accounts[i];
+            output.writeInt(account.index);
+            writeString(output, account.typeName);
+            writeString(output, account.guid);
+            writeString(output, account.parentGuid);
+            writeString(output, account.name);
+            writeString(output, account.notes);
+            writeString(output, account.description);
+            writeString(output, account.code);
+            output.writeByte(account.used? 1: 0);
+        }
+
+        // Write the transactions with their splits
+        Transaction transactions[] = new Transaction[transactionIds.size()];
+        entryIterator = transactionIds.entrySet().iterator();
+        while (entryIterator.hasNext()) {
+            entry = (Map.Entry) entryIterator.next();
+            transactions[((Integer) entry.getValue()).intValue()] = (Transaction) entry.getKey();
+        }
+        output.writeInt(transactions.length);
+        Transaction transaction;
+        Iterator splitIterator;
+        Split split;
+        for (int i = 0; i < transactions.length; i++) {
+            transaction = transactions[i];
+            output.writeInt(transaction.index);
+            writeString(output, transaction.guid);
+            writeString(output, transaction.datePosted);
+            writeString(output, transaction.dateDue);
+            writeString(output, transaction.transactionType);
+            writeString(output, transaction.getDescription(text));
+            writeString(output, transaction.getRef(text));
+            output.writeInt(transaction.splits.size());
+            splitIterator = transaction.splits.iterator();
+            while (splitIterator.hasNext()) {
+                split = (Split) splitIterator.next();
+                output.writeDouble(split.amount);
+                output.writeChar(split.reconciliationStatus);
+                writeString(output, split.accountGuid);
+                writeString(output, split.lotGuid);
+                output.writeInt(getId(accountIds, split.account));
+                writeString(output, split.getMemo(text));
+                writeString(output, split.getAction(text));
+            }
+        }
+
+        // Write each account's transactions and the two maps
+        Iterator transIterator;
+        for (int i = 0; i < accounts.length; i++) {
+            output.writeInt(accounts[i].trans.size());
+            transIterator = accounts[i].trans.iterator();
+            while (transIterator.hasNext())
+                output.writeInt(getId(transactionIds, transIterator.next()));
+        }
+        output.writeInt(conversion.accounts.size());
+        entryIterator = conversion.accounts.entrySet().iterator();
+        while (entryIterator.hasNext()) {
+            entry = (Map.Entry) entryIterator.next();
+            writeString(output, (String) entry.getKey());
+            output.writeInt(getId(accountIds, entry.getValue()));
+        }
+        output.writeInt(conversion.transactions.size());
+        entryIterator = conversion.transactions.entrySet().iterator();
+        while (entryIterator.hasNext()) {
+            entry = (Map.Entry) entryIterator.next();
+            writeString(output, (String) entry.getKey());
+            output.writeInt(getId(transactionIds, entry.getValue()));
+        }
+
+        // Write the vendors, lots and invoices
+        output.writeInt(conversion.vendors.size());
+        Iterator vendorIterator = conversion.vendors.iterator();
+        Vendor vendor;
+        while (vendorIterator.hasNext()) {
+            vendor = (Vendor) vendorIterator.next();
+            writeString(output, vendor.name);
+            writeString(output, vendor.id);
+            writeString(output, vendor.addressName);
+            writeString(output, vendor.addressLine1);
+            writeString(output, vendor.addressLine2);
+            output.writeByte(vendor.active? 1: 0);
+        }
+        output.writeInt(conversion.lots.size());
+        entryIterator = conversion.lots.entrySet().iterator();
+        Lot lot;
+        while (entryIterator.hasNext()) {
+            entry = (Map.Entry) entryIterator.next();
+            lot = (Lot) entry.getValue();
+            writeString(output, (String) entry.getKey());
+            writeString(output, lot.guid);
+            writeString(output, lot.invoiceGuid);
+            output.writeInt(getId(accountIds, lot.account));
+        }
+        output.writeInt(conversion.invoices.size());
+        entryIterator = conversion.invoices.entrySet().iterator();
+        Invoice invoice;
+        while (entryIterator.hasNext()) {
+            entry = (Map.Entry) entryIterator.next();
+            invoice = (Invoice) entry.getValue();
+            writeString(output, (String) entry.getKey());
+            writeString(output, invoice.guid);
+            writeString(output, invoice.dateOpened);
+            writeString(output, invoice.datePosted);
+            writeString(output, invoice.id);
+            writeString(output, invoice.accountGuid);
+            writeString(output, invoice.invoiceTransactionGuid);
+            output.writeByte(invoice.active? 1: 0);
+            output.writeInt(getId(accountIds, invoice.account));
+            output.writeInt(getId(transactionIds, invoice.invoiceTransaction));
+        }
+
+        // Write the warnings of the import
+        output.writeInt(conversion.warnings.size());
+        Iterator warningIterator = conversion.warnings.iterator();
+        while (warningIterator.hasNext())
+            writeString(output, warningIterator.next().toString());
+    }
+
+    /**
+     * Writes the number of a String, numbering it if it is new
+     * @param output The stream to write to
+     * @param value The String, which may be null
+     * @throws IOException Thrown if the stream could not be written to
+     */
+    protected void writeString(DataOutputStream output, String value) throws IOException
+    {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+        Integer id = (Integer) stringIds.get(value);
+        if (id == null) {
+            id = Integer.valueOf(strings.size());
+            stringIds.put(value, id);
+            strings.add(value);
+        }
+        output.writeInt(id.intValue());
+    }
+
+    /**
+     * Returns the number of an account or transaction
+     * @param ids The numbers by object
+     * @param object The account or transaction, which may be null
+     * @return The number, or -1 if the object is null
+     */
+    protected static int getId(Map ids, Object object) {
+        return (object != null)? ((Integer) ids.get(object)).intValue(): -1;
+    }
+}
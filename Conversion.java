@@ -1,14 +1,18 @@
 package net.sourceforge.gnucashtoqif;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
 /**
- * GnuCashToQIF conversion configuration object
+ * GnuCashToQIF conversion configuration object, which also holds the parsed
+ * book. The book is read-only once it has been imported
  */
 public class Conversion
 {
@@ -18,6 +22,21 @@ public class Conversion
     /** Split memos from descriptions */
     public boolean splitMemoFromDescription = true;
 
+    /** The number of threads that render the sections of each export */
+    public int renderThreads = 1;
+
+    /** Whether sections rendered on several threads get written straight into their place in the output file */
+    public boolean positionalWrites = false;
+
+    /** Whether the outputs get compressed with gzip */
+    public boolean gzipOutput = false;
+
+    /** Whether streamed outputs get rendered and written on threads of their own while the book is read */
+    public boolean pipeline = false;
+
+    /** The cache of rendered transactions, or null to render every transaction */
+    public FragmentCache fragmentCache = null;
+
     /** The accounts, using their GUIDs as the key */
     public Map accounts = new HashMap();
     
@@ -27,9 +46,6 @@ public class Conversion
     /** Set of warnings that come up during processing */
     public SortedSet warnings = new TreeSet();
 
-    /** Sorted Set of accounts */
-    public SortedSet accountSet = null;
-    
     /** Set of vendors */
     public Set vendors = new HashSet();
     
@@ -38,4 +54,91 @@ public class Conversion
     
     /** Map of invoice GUIDs to invoices */
     public Map invoices = new HashMap();
+
+    /** Shared store for transaction and split text, or null to keep that text in Strings */
+    public TextArena text = null;
+
+    /** The number of accounts read, which bounds Account.index */
+    public int accountCount = 0;
+
+    /** The number of transactions read, which bounds Transaction.index */
+    public int transactionCount = 0;
+
+    /**
+     * Returns a book that only has some of this book's transactions and
+     * shares everything else with this book, including the options. Accounts
+     * keep their indexes and count as used if they have any of the
+     * transactions, and transactions keep their indexes too
+     * @param accountTransactions The transactions of each account in the new
+     * book, indexed by Account.index, or null for accounts without any
+     * @return The new book, which is read-only like a frozen book
+     */
+    public Conversion subset(List accountTransactions[])
+    {
+        Conversion subset = new Conversion();
+        subset.pruneUnusedAccounts = pruneUnusedAccounts;
+        subset.splitMemoFromDescription = splitMemoFromDescription;
+        subset.renderThreads = renderThreads;
+        subset.positionalWrites = positionalWrites;
+        subset.gzipOutput = gzipOutput;
+        subset.pipeline = pipeline;
+        subset.fragmentCache = fragmentCache;
+        subset.text = text;
+        subset.accountCount = accountCount;
+        subset.transactionCount = transactionCount;
+        subset.warnings = warnings;
+        subset.vendors = vendors;
+        subset.lots = lots;
+        subset.invoices = invoices;
+        
+        // Copy the accounts with their share of the transactions
+        Map subsetAccounts = new HashMap();
+        Map subsetTransactions = new HashMap();
+        Iterator accountIterator = accounts.values().iterator();
+        Iterator transactionIterator;
+        Account currentAccount;
+        Transaction currentTransaction;
+        List transactions;
+        while (accountIterator.hasNext()) {
+            currentAccount = (Account) accountIterator.next();
+            transactions = accountTransactions[currentAccount.index];
+            if (transactions == null)
+                transactions = Collections.EMPTY_LIST;
+            subsetAccounts.put(currentAccount.guid, currentAccount.copy(Collections.unmodifiableList(transactions)));
+            transactionIterator = transactions.iterator();
+            while (transactionIterator.hasNext()) {
+                currentTransaction = (Transaction) transactionIterator.next();
+                subsetTransactions.put(currentTransaction.guid, currentTransaction);
+            }
+        }
+        subset.accounts = Collections.unmodifiableMap(subsetAccounts);
+        subset.transactions = Collections.unmodifiableMap(subsetTransactions);
+        return subset;
+    }
+
+    /**
+     * Makes the imported book read-only so that exports cannot change it and
+     * can therefore share it
+     */
+    public void freeze()
+    {
+        Iterator accountIterator = accounts.values().iterator();
+        Account currentAccount;
+        while (accountIterator.hasNext()) {
+            currentAccount = (Account) accountIterator.next();
+            currentAccount.trans = Collections.unmodifiableList(currentAccount.trans);
+        }
+        Iterator transactionIterator = transactions.values().iterator();
+        Transaction currentTransaction;
+        while (transactionIterator.hasNext()) {
+            currentTransaction = (Transaction) transactionIterator.next();
+            currentTransaction.splits = Collections.unmodifiableList(currentTransaction.splits);
+        }
+        accounts = Collections.unmodifiableMap(accounts);
+        transactions = Collections.unmodifiableMap(transactions);
+        warnings = Collections.unmodifiableSortedSet(warnings);
+        vendors = Collections.unmodifiableSet(vendors);
+        lots = Collections.unmodifiableMap(lots);
+        invoices = Collections.unmodifiableMap(invoices);
+    }
 }
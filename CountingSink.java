@@ -0,0 +1,42 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.nio.charset.Charset;
+
+/**
+ * Output sink that only counts the bytes written to it, which gives the
+ * exact encoded length of some output without keeping it
+ */
+class CountingSink extends OutputSink
+{
+    /** The buffer size of counting sinks */
+    public static final int COUNTING_BUFFER_SIZE = 8 * 1024;
+
+    /** The number of bytes that have been drained out of the buffer */
+    protected long drained = 0;
+
+    /**
+     * Creates a new counting sink
+     * @param charset The charset to count the bytes of
+     */
+    public CountingSink(Charset charset) {
+        super(null, charset, COUNTING_BUFFER_SIZE);
+    }
+
+    /**
+     * Counts encoded bytes and drops them
+     * @param bytes The encoded bytes
+     * @param off The index of the first byte
+     * @param len The number of bytes
+     */
+    protected void drain(byte bytes[], int off, int len) {
+        drained += len;
+    }
+
+    /**
+     * Returns the number of bytes written to this sink
+     * @return The number of bytes
+     */
+    public long length() {
+        return drained + count;
+    }
+}
@@ -0,0 +1,140 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cache of rendered MM/DD/YYYY dates, keyed by day. Books have far fewer
+ * distinct dates than transactions, so each day gets encoded once and its
+ * bytes are then copied into the output. The cache can be shared between
+ * threads; days that two threads render at the same time just get rendered
+ * twice
+ */
+final class DateCache
+{
+    /** The MM/DD/YYYY style that both QIF and IIF use */
+    public static final DateCache MONTH_DAY_YEAR = new DateCache();
+
+    /** The first year that gets cached */
+    protected static final int FIRST_YEAR = 1900;
+
+    /** The number of years that get cached */
+    protected static final int YEARS = 300;
+
+    /** The length of a rendered date */
+    protected static final int LENGTH = 10;
+
+    /** The rendered dates, indexed by dayIndex() */
+    protected final AtomicReferenceArray days = new AtomicReferenceArray(YEARS * 12 * 31);
+
+    /**
+     * Appends the MM/DD/YYYY form of a GnuCash date to an output sink. Nothing
+     * is written if the date is missing or too short
+     * @param output The sink to append to
+     * @param gnucashDate The GnuCash date, which starts with YYYY-MM-DD
+     * @throws IOException Thrown if the sink could not be written to
+     */
+    public void append(OutputSink output, String gnucashDate) throws IOException
+    {
+        if (gnucashDate == null || gnucashDate.length() < LENGTH)
+            return;
+        byte rendered[] = output.isAsciiCompatible() ? get(gnucashDate) : null;
+        if (rendered != null)
+            output.appendBytes(rendered, 0, LENGTH);
+        else {
+            // Dates outside of the cache, or sinks that cannot take ASCII
+            // bytes, get the pieces of the date written as characters
+            output.write(gnucashDate, 5, 2);
+            output.write('/');
+            output.write(gnucashDate, 8, 2);
+            output.write('/');
+            output.write(gnucashDate, 0, 4);
+        }
+    }
+
+    /**
+     * Appends the MM/DD/YYYY form of a GnuCash date to a StringBuffer. Nothing
+     * is written if the date is missing or too short
+     * @param output The StringBuffer to append to
+     * @param gnucashDate The GnuCash date, which starts with YYYY-MM-DD
+     */
+    public void append(StringBuffer output, String gnucashDate)
+    {
+        if (gnucashDate == null || gnucashDate.length() < LENGTH)
+            return;
+        byte rendered[] = get(gnucashDate);
+        if (rendered != null) {
+            for (int i = 0; i < LENGTH; i++)
+                output.append((char) rendered[i]);
+        } else {
+            output.append(gnucashDate, 5, 7);
+            output.append('/');
+            output.append(gnucashDate, 8, 10);
+            output.append('/');
+            output.append(gnucashDate, 0, 4);
+        }
+    }
+
+    /**
+     * Returns the rendered bytes of a date, rendering and caching them the
+     * first time that the day comes up
+     * @param gnucashDate The GnuCash date, which is at least 10 characters long
+     * @return The rendered date, or null if the date cannot be cached
+     */
+    protected byte[] get(String gnucashDate)
+    {
+        int index = dayIndex(gnucashDate);
+        if (index < 0)
+            return null;
+        byte rendered[] = (byte[]) days.get(index);
+        if (rendered == null) {
+            rendered = new byte[LENGTH];
+            rendered[0] = (byte) gnucashDate.charAt(5);
+            rendered[1] = (byte) gnucashDate.charAt(6);
+            rendered[2] = '/';
+            rendered[3] = (byte) gnucashDate.charAt(8);
+            rendered[4] = (byte) gnucashDate.charAt(9);
+            rendered[5] = '/';
+            for (int i = 0; i < 4; i++)
+                rendered[6 + i] = (byte) gnucashDate.charAt(i);
+            days.set(index, rendered);
+        }
+        return rendered;
+    }
+
+    /**
+     * Returns the cache index of a date, which only exists when the year,
+     * month and day are all digits and the date lies in the cached years
+     * @param gnucashDate The GnuCash date, which is at least 10 characters long
+     * @return The cache index, or -1 if the date cannot be cached
+     */
+    protected static int dayIndex(String gnucashDate)
+    {
+        int year = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = gnucashDate.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+                return -1;
+            year = year * 10 + digit;
+        }
+        int month = twoDigits(gnucashDate, 5);
+        int day = twoDigits(gnucashDate, 8);
+        if (year < FIRST_YEAR || year >= FIRST_YEAR + YEARS || month < 1 || month > 12 || day < 1 || day > 31)
+            return -1;
+        return ((year - FIRST_YEAR) * 12 + month - 1) * 31 + day - 1;
+    }
+
+    /**
+     * Parses two decimal digits
+     * @param value The String holding the digits
+     * @param start The index of the first digit
+     * @return The number, or -1 if either character is not a digit
+     */
+    protected static int twoDigits(String value, int start)
+    {
+        int tens = value.charAt(start) - '0', ones = value.charAt(start + 1) - '0';
+        if (tens < 0 || tens > 9 || ones < 0 || ones > 9)
+            return -1;
+        return tens * 10 + ones;
+    }
+}
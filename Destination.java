@@ -0,0 +1,26 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.File;
+
+/**
+ * An output format and the file that it gets written to
+ */
+class Destination
+{
+    /** The output format */
+    public OutputFormat format;
+
+    /** The file to write to, or null to use the output file from the command line or the user */
+    public File file;
+
+    /**
+     * Creates a new destination
+     * @param format The output format
+     * @param file The file to write to, or null to use the output file
+     * from the command line or the user
+     */
+    public Destination(OutputFormat format, File file) {
+        this.format = format;
+        this.file = file;
+    }
+}
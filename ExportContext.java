@@ -0,0 +1,222 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.nio.charset.Charset;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The state that one export derives from a parsed book. Exports keep account
+ * types, full names and everything else that they work out here instead of
+ * in the Conversion, which stays unchanged so that several exports can
+ * share it, even at the same time
+ */
+public class ExportContext
+{
+    /** The parsed book and conversion options */
+    public final Conversion conversion;
+
+    /** Sorted Set of accounts */
+    public SortedSet accountSet = null;
+
+    /** Set of warnings that come up during this export */
+    public SortedSet warnings = new TreeSet();
+
+    /** The number of text fields that had control characters replaced in this export */
+    public int rewrittenFields = 0;
+
+    /** The account types as specified by the Account.TYPE_* constants, indexed by Account.index */
+    protected int types[];
+
+    /** The full account names, indexed by Account.index */
+    protected String fullNames[];
+
+    /** The IIF transaction types, indexed by Transaction.index */
+    protected String transactionTypes[];
+
+    /** Kind of account line: the QIF L line that names the account as a category or transfer */
+    public static final int LINE_CATEGORY = 0;
+
+    /** Kind of account line: the QIF S line that names the account in a split */
+    public static final int LINE_SPLIT = 1;
+
+    /** Kind of account line: the full account name, as in the IIF ACCNT column */
+    public static final int LINE_FULL_NAME = 2;
+
+    /** The number of kinds of account lines */
+    protected static final int LINE_KINDS = 3;
+
+    /** The encoded account lines, indexed by Account.index * LINE_KINDS + kind */
+    protected byte accountLines[][] = null;
+
+    /** The charset that the account lines are encoded in */
+    protected Charset lineCharset = null;
+
+    /**
+     * Creates a new export context for the given book
+     * @param conversion The parsed book and conversion options
+     */
+    public ExportContext(Conversion conversion)
+    {
+        this.conversion = conversion;
+        types = new int[conversion.accountCount];
+        for (int i = 0; i < types.length; i++)
+            types[i] = Account.TYPE_UNKNOWN;
+        fullNames = new String[conversion.accountCount];
+        transactionTypes = new String[conversion.transactionCount];
+    }
+
+    /**
+     * Creates a new export context for the same book that shares the full
+     * account names of another export. Both exports must name accounts the
+     * same way
+     * @param names The export context whose full account names get shared
+     */
+    public ExportContext(ExportContext names)
+    {
+        this(names.conversion);
+        fullNames = names.fullNames;
+    }
+
+    /**
+     * Creates a context for a thread that renders part of this export. The
+     * fork shares the sorted accounts, account types, full names and
+     * transaction types of this context, which must all be set up by then,
+     * and keeps its own warnings and encoded account lines. Its warnings get
+     * merged back with merge()
+     * @return The forked export context
+     */
+    public ExportContext fork() {
+        return new ExportContext(conversion, accountSet, types, fullNames, transactionTypes);
+    }
+
+    /**
+     * Creates a new export context that shares the given state
+     * @param conversion The parsed book and conversion options
+     * @param accountSet The sorted accounts
+     * @param types The account types, indexed by Account.index
+     * @param fullNames The full account names, indexed by Account.index
+     * @param transactionTypes The IIF transaction types, indexed by Transaction.index
+     */
+    private ExportContext(Conversion conversion, SortedSet accountSet, int types[], String fullNames[], String transactionTypes[])
+    {
+        this.conversion = conversion;
+        this.accountSet = accountSet;
+        this.types = types;
+        this.fullNames = fullNames;
+        this.transactionTypes = transactionTypes;
+    }
+
+    /**
+     * Adds the warnings and counts of a forked context to this context's
+     * @param fork The forked context
+     */
+    public void merge(ExportContext fork) {
+        warnings.addAll(fork.warnings);
+        rewrittenFields += fork.rewrittenFields;
+    }
+
+    /**
+     * Returns the type of the given account in this export
+     * @param account The account to get the type of
+     * @return The type of the account, as specified by the Account.TYPE_* constants
+     */
+    public int getType(Account account) {
+        return types[account.index];
+    }
+
+    /**
+     * Sets the type of the given account in this export
+     * @param account The account to set the type of
+     * @param type The type, as specified by the Account.TYPE_* constants
+     */
+    public void setType(Account account, int type) {
+        types[account.index] = type;
+    }
+
+    /**
+     * Returns whether or not the given account is a double-entry account
+     * that will become a category in this export
+     * @param account The account to check
+     * @return True if the account is a double-entry account or false if it is not
+     */
+    public boolean isDoubleEntry(Account account) {
+        return Account.isDoubleEntry(types[account.index]);
+    }
+
+    /**
+     * Returns the QIF type name of the given account in this export
+     * @param account The account to get the type name of
+     * @return The QIF type name of the account
+     */
+    public String getQIFTypeName(Account account) {
+        return Account.getQIFTypeName(types[account.index]);
+    }
+
+    /**
+     * Returns the full name of the given account in this export
+     * @param account The account to get the full name of
+     * @return The full name of the account, or null if not known yet
+     */
+    public String getFullName(Account account) {
+        return fullNames[account.index];
+    }
+
+    /**
+     * Sets the full name of the given account in this export
+     * @param account The account to set the full name of
+     * @param fullName The full name of the account
+     */
+    public void setFullName(Account account, String fullName) {
+        fullNames[account.index] = fullName;
+    }
+
+    /**
+     * Returns the IIF transaction type that this export gave a transaction
+     * @param transaction The transaction to get the type of
+     * @return The IIF transaction type, or null if not known yet
+     */
+    public String getTransactionType(Transaction transaction) {
+        return transactionTypes[transaction.index];
+    }
+
+    /**
+     * Remembers the IIF transaction type of a transaction for this export
+     * @param transaction The transaction to set the type of
+     * @param type The IIF transaction type
+     * @return The given type
+     */
+    public String setTransactionType(Transaction transaction, String type) {
+        return transactionTypes[transaction.index] = type;
+    }
+
+    /**
+     * Returns an account line that this export encoded earlier
+     * @param account The account that the line names
+     * @param kind The kind of line, as specified by the LINE_* constants
+     * @param charset The charset that the line has to be encoded in
+     * @return The encoded line, or null if it has not been encoded in the charset yet
+     */
+    public byte[] getAccountLine(Account account, int kind, Charset charset)
+    {
+        if (!charset.equals(lineCharset))
+            return null;
+        return accountLines[account.index * LINE_KINDS + kind];
+    }
+
+    /**
+     * Keeps an encoded account line for the rest of this export. Lines
+     * encoded in any other charset are dropped
+     * @param account The account that the line names
+     * @param kind The kind of line, as specified by the LINE_* constants
+     * @param charset The charset that the line is encoded in
+     * @param line The encoded line
+     */
+    public void setAccountLine(Account account, int kind, Charset charset, byte line[])
+    {
+        if (!charset.equals(lineCharset)) {
+            accountLines = new byte[conversion.accountCount * LINE_KINDS][];
+            lineCharset = charset;
+        }
+        accountLines[account.index * LINE_KINDS + kind] = line;
+    }
+}
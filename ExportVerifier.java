@@ -0,0 +1,485 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a written QIF or IIF file back and checks it against the book that
+ * it was written from. QIF files get their account sections, the number of
+ * records in each and the total of their amounts checked; IIF files get
+ * the GUID, accounts and amounts of every transaction checked, along with
+ * whether every transaction is there. The file is read one record at a
+ * time, so this takes little memory besides the book itself
+ */
+class ExportVerifier
+{
+    /** The most problems that get listed for one file */
+    public static final int MAX_PROBLEMS = 20;
+
+    /** The export context that the file was written with */
+    protected ExportContext context;
+
+    /** The charset that the file was written in */
+    protected Charset charset = Charset.defaultCharset();
+
+    /** The full account names as an IIF file has them, indexed by Account.index */
+    protected String iifNames[];
+
+    /** The problems found so far */
+    protected List problems = new ArrayList();
+
+    /** The number of problems that were left out of the list */
+    protected int moreProblems = 0;
+
+    /** The number of transaction records read */
+    protected int records = 0;
+
+    /** The number of accounts whose transactions were checked */
+    protected int accounts = 0;
+
+    /**
+     * Creates a new verifier
+     * @param context The export context that the file was written with,
+     * which has the sorted accounts and account types of the export
+     */
+    public ExportVerifier(ExportContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Returns whether files of an output format can be read back
+     * @param format The output format
+     * @return True for QIF and IIF formats
+     */
+    public static boolean canVerify(OutputFormat format) {
+        return format instanceof QIF2003OutputFormat || format instanceof IIFOutputFormat;
+    }
+
+    /**
+     * Reads a file back and checks it against the book
+     * @param format The output format that the file was written in, which
+     * canVerify() must accept
+     * @param file The file
+     * @return The problems found, which is empty if the file matches the book
+     * @throws IOException Thrown if the file could not be read
+     */
+    public List verify(OutputFormat format, File file) throws IOException
+    {
+        // Decode the file the way that createSink() encoded it
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        try {
+            if (context.conversion.gzipOutput)
+                in = new GZIPInputStream(in, 64 * 1024);
+            Reader reader = new InputStreamReader(in, charset);
+            if (format instanceof IIFOutputFormat)
+                verifyIIF(new IIFReader(reader));
+            else
+                verifyQIF((QIF2003OutputFormat) format, new QIFReader(reader));
+        } finally {
+            in.close();
+        }
+        if (moreProblems > 0)
+            problems.add("... and " + moreProblems + " more problems");
+        return problems;
+    }
+
+    /**
+     * Returns what was checked, to tell the user after a file matched the book
+     * @return The number of transaction records and accounts checked
+     */
+    public String getSummary() {
+        return records + " transaction records in " + accounts + " accounts";
+    }
+
+    /**
+     * Adds a problem unless enough have been listed already
+     * @param problem The problem
+     */
+    protected void addProblem(String problem)
+    {
+        if (problems.size() < MAX_PROBLEMS)
+            problems.add(problem);
+        else
+            moreProblems++;
+    }
+
+    /**
+     * Checks a QIF file: the account sections must come in the export's
+     * order with the right names and types, and each must have as many
+     * records and the same total amount as the transactions listed in it
+     * @param format The QIF format that the file was written in
+     * @param reader The QIF file
+     * @throws IOException Thrown if the file could not be read
+     */
+    protected void verifyQIF(QIF2003OutputFormat format, QIFReader reader) throws IOException
+    {
+        Iterator accountIterator = context.accountSet.iterator();
+        Account account = null, next;
+        String header, accountName = null;
+        long total = 0;
+        int count = 0, type;
+        while ((type = reader.next()) != QIFReader.END) {
+            header = reader.getHeader();
+            if (type == QIFReader.HEADER) {
+                if (!header.startsWith("Type:") || header.equals("Type:Cat") || header.equals("Type:Class")) {
+                    // Lists and options end the last section
+                    if (account != null && !header.startsWith("Option:") && !header.startsWith("Clear:")) {
+                        checkQIFSection(format, account, count, total);
+                        account = null;
+                    }
+                    continue;
+                }
+                if (account != null)
+                    checkQIFSection(format, account, count, total);
+
+                // The next account with a section should come up
+                for (next = null; next == null && accountIterator.hasNext(); ) {
+                    next = (Account) accountIterator.next();
+                    if (!format.hasTransactionSection(context, next))
+                        next = null;
+                }
+                if (next == null) {
+                    addProblem("Line " + reader.getLineNumber() + ": section of account \"" + accountName + "\" is not in the book");
+                    account = null;
+                    continue;
+                }
+                if (!getWrittenText(next.name).equals(accountName))
+                    addProblem("Line " + reader.getLineNumber() + ": section of account \"" + accountName + "\" comes where \"" + next.name + "\" should be");
+                else if (!header.equals("Type:" + context.getQIFTypeName(next)))
+                    addProblem("Line " + reader.getLineNumber() + ": account \"" + next.name + "\" has the wrong type " + header.substring(5));
+                account = next;
+                count = 0;
+                total = 0;
+            }
+
+            // Records that were cut off count as problems and nothing else
+            else if (type == QIFReader.INCOMPLETE)
+                addProblem("Line " + reader.getLineNumber() + ": record does not end with ^");
+
+            // Remember the name of the account that the next section is for
+            else if (header != null && header.equals("Account"))
+                accountName = reader.get('N');
+
+            // Add up the transactions of the section
+            else if (account != null) {
+                count++;
+                long cents = parseCents(reader.get('T'));
+                if (cents == Long.MIN_VALUE)
+                    addProblem("Line " + reader.getLineNumber() + ": transaction in account \"" + account.name + "\" has no valid amount");
+                else
+                    total += cents;
+            }
+        }
+        if (account != null)
+            checkQIFSection(format, account, count, total);
+
+        // Every account with a section should have come up
+        while (accountIterator.hasNext()) {
+            next = (Account) accountIterator.next();
+            if (format.hasTransactionSection(context, next))
+                addProblem("Section of account \"" + next.name + "\" is missing");
+        }
+    }
+
+    /**
+     * Checks the records of a QIF account section against the transactions
+     * that the export lists in the account
+     * @param format The QIF format that the file was written in
+     * @param account The account
+     * @param count The number of records in the section
+     * @param total The total amount of the records in cents
+     */
+    protected void checkQIFSection(QIF2003OutputFormat format, Account account, int count, long total)
+    {
+        boolean duplicate = format.isDuplicating();
+        Iterator transIterator = account.trans.iterator();
+        Transaction currentTransaction;
+        Account primaryAccount;
+        Split split;
+        int expectedCount = 0;
+        long expectedTotal = 0;
+        while (transIterator.hasNext()) {
+            currentTransaction = (Transaction) transIterator.next();
+            primaryAccount = getPrimaryAccount(currentTransaction);
+            if (!duplicate && primaryAccount != null && !primaryAccount.guid.equalsIgnoreCase(account.guid))
+                continue;
+
+            // The amount is that of the account's last split
+            split = null;
+            for (int i = currentTransaction.splits.size() - 1; split == null && i >= 0; i--) {
+                split = (Split) currentTransaction.splits.get(i);
+                if (!split.accountGuid.equalsIgnoreCase(account.guid))
+                    split = null;
+            }
+            expectedCount++;
+            if (split != null)
+                expectedTotal += parseCents(AmountFormat.format(split.amount));
+        }
+        records += count;
+        accounts++;
+        if (count != expectedCount)
+            addProblem("Account \"" + account.name + "\" has " + count + " transactions instead of " + expectedCount);
+        else if (total != expectedTotal)
+            addProblem("Transactions of account \"" + account.name + "\" add up to " + formatCents(total) + " instead of " + formatCents(expectedTotal));
+    }
+
+    /**
+     * Checks an IIF file: every transaction must have a GUID from the book,
+     * and its lines must have the accounts and amounts of the transaction's
+     * combined splits. Every transaction that gets written must be there,
+     * and those that are only written in their primary account must be
+     * there as often as that account lists them, which is once per split
+     * in the account. The totals of the accounts follow from the lines
+     * @param reader The IIF file
+     * @throws IOException Thrown if the file could not be read
+     */
+    protected void verifyIIF(IIFReader reader) throws IOException
+    {
+        ExportContext scratch = context.fork();
+        IIFOutputFormat.CombinedSplits uniqueSplits = new IIFOutputFormat.CombinedSplits();
+        int written[] = new int[context.conversion.transactionCount];
+        Transaction currentTransaction = null;
+        Split split;
+        String type, guid;
+        boolean inTransaction = false;
+        int accountLines = 0, vendorLines = 0;
+        int primarySplit = -1, nextSplit = 0, i;
+        int idColumn = -1, accountColumn = -1, amountColumn = -1, splitAccountColumn = -1, splitAmountColumn = -1;
+        while (reader.next()) {
+            type = reader.getType();
+            if (type.equals("ACCNT"))
+                accountLines++;
+            else if (type.equals("VEND"))
+                vendorLines++;
+            else if (type.equals("TRNS")) {
+                if (inTransaction)
+                    addProblem("Line " + reader.getLineNumber() + ": transaction starts before the last one ended");
+                if (idColumn < 0) {
+                    idColumn = reader.getColumn("TRNS", "TRNSID");
+                    accountColumn = reader.getColumn("TRNS", "ACCNT");
+                    amountColumn = reader.getColumn("TRNS", "AMOUNT");
+                    splitAccountColumn = reader.getColumn("SPL", "ACCNT");
+                    splitAmountColumn = reader.getColumn("SPL", "AMOUNT");
+                }
+                inTransaction = true;
+                records++;
+
+                // Look up the transaction
+                guid = reader.get(idColumn);
+                currentTransaction = (guid != null)? (Transaction) context.conversion.transactions.get(guid): null;
+                primarySplit = -1;
+                if (currentTransaction == null) {
+                    addProblem("Line " + reader.getLineNumber() + ": transaction " + guid + " is not in the book");
+                    continue;
+                }
+                written[currentTransaction.index]++;
+
+                // The account of the line is the one that the transaction is listed in
+                uniqueSplits.combine(scratch, currentTransaction);
+                for (i = 0; i < uniqueSplits.size(); i++)
+                    if (getIIFName(uniqueSplits.get(i)).equals(reader.get(accountColumn)))
+                        primarySplit = i;
+                if (primarySplit < 0)
+                    addProblem("Line " + reader.getLineNumber() + ": transaction " + guid + " has no split in account \"" + reader.get(accountColumn) + "\"");
+                else
+                    checkIIFAmount(reader, amountColumn, uniqueSplits.get(primarySplit), guid);
+                nextSplit = 0;
+            } else if (type.equals("SPL")) {
+                if (!inTransaction)
+                    addProblem("Line " + reader.getLineNumber() + ": split is not in a transaction");
+                if (currentTransaction == null || primarySplit < 0)
+                    continue;
+
+                // The splits come in order, leaving out the listing account's
+                nextSplit = skipSplits(uniqueSplits, primarySplit, nextSplit);
+                if (nextSplit == uniqueSplits.size()) {
+                    addProblem("Line " + reader.getLineNumber() + ": transaction " + currentTransaction.guid + " has more splits than in the book");
+                    primarySplit = -1;
+                    continue;
+                }
+                split = uniqueSplits.get(nextSplit++);
+                if (!getIIFName(split).equals(reader.get(splitAccountColumn)))
+                    addProblem("Line " + reader.getLineNumber() + ": split of transaction " + currentTransaction.guid + " is in account \"" + reader.get(splitAccountColumn) + "\" instead of \"" + getIIFName(split) + "\"");
+                else
+                    checkIIFAmount(reader, splitAmountColumn, split, currentTransaction.guid);
+            } else if (type.equals("ENDTRNS")) {
+                if (currentTransaction != null && primarySplit >= 0 && skipSplits(uniqueSplits, primarySplit, nextSplit) < uniqueSplits.size())
+                    addProblem("Line " + reader.getLineNumber() + ": transaction " + currentTransaction.guid + " is missing splits");
+                inTransaction = false;
+                currentTransaction = null;
+            }
+        }
+        if (inTransaction)
+            addProblem("The file ends in the middle of a transaction");
+
+        // Compare the lists
+        if (accountLines != context.accountSet.size())
+            addProblem("The account list has " + accountLines + " accounts instead of " + context.accountSet.size());
+        if (vendorLines != context.conversion.vendors.size())
+            addProblem("The vendor list has " + vendorLines + " vendors instead of " + context.conversion.vendors.size());
+        accounts = accountLines;
+
+        // Every transaction that has splits to export should have come up,
+        // and as often as its primary account lists it
+        Iterator transIterator = context.conversion.transactions.values().iterator();
+        Account primaryAccount;
+        int expected;
+        while (transIterator.hasNext()) {
+            currentTransaction = (Transaction) transIterator.next();
+            if (written[currentTransaction.index] == 0) {
+                uniqueSplits.combine(scratch, currentTransaction);
+                if (uniqueSplits.size() > 1)
+                    addProblem("Transaction " + currentTransaction.guid + " is missing");
+            } else if ((primaryAccount = getPrimaryAccount(currentTransaction)) != null) {
+                expected = 0;
+                for (i = 0; i < currentTransaction.splits.size(); i++)
+                    if (context.conversion.accounts.get(((Split) currentTransaction.splits.get(i)).accountGuid) == primaryAccount)
+                        expected++;
+                if (written[currentTransaction.index] != expected)
+                    addProblem("Transaction " + currentTransaction.guid + " is written " + written[currentTransaction.index] + " times instead of " + expected);
+            }
+        }
+    }
+
+    /**
+     * Skips the combined splits of the account that a transaction is listed
+     * in, which the TRNS line has instead of a SPL line
+     * @param uniqueSplits The combined splits of the transaction
+     * @param primarySplit The index of the listing account's split
+     * @param index The index of the next split
+     * @return The index of the next split that gets a SPL line, or the
+     * number of splits if none is left
+     */
+    protected static int skipSplits(IIFOutputFormat.CombinedSplits uniqueSplits, int primarySplit, int index)
+    {
+        String guid = uniqueSplits.get(primarySplit).accountGuid;
+        while (index < uniqueSplits.size() && uniqueSplits.get(index).accountGuid.equalsIgnoreCase(guid))
+            index++;
+        return index;
+    }
+
+    /**
+     * Checks the amount of an IIF line
+     * @param reader The IIF file, at the line
+     * @param column The index of the AMOUNT column
+     * @param split The split that the line was written from
+     * @param guid The GUID of the transaction, for the problem
+     */
+    protected void checkIIFAmount(IIFReader reader, int column, Split split, String guid)
+    {
+        String expected = AmountFormat.format(split.amount);
+        String amount = reader.get(column);
+        if (!expected.equals(amount))
+            addProblem("Line " + reader.getLineNumber() + ": transaction " + guid + " has " + amount + " instead of " + expected);
+    }
+
+    /**
+     * Returns the full name of a split's account as an IIF file has it,
+     * with its control characters replaced by spaces
+     * @param split The split
+     * @return The full name, or an empty String if the split has no account
+     */
+    protected String getIIFName(Split split)
+    {
+        if (split.account == null)
+            return "";
+        if (iifNames == null)
+            iifNames = new String[context.conversion.accountCount];
+        String name = iifNames[split.account.index];
+        if (name != null)
+            return name;
+        char chars[] = context.getFullName(split.account).toCharArray();
+        for (int i = 0; i < chars.length; i++)
+            if (chars[i] < ' ')
+                chars[i] = ' ';
+        return iifNames[split.account.index] = getWrittenText(new String(chars));
+    }
+
+    /**
+     * Returns text as it reads back from the file, which loses the characters
+     * that the charset cannot encode
+     * @param text The text that was written
+     * @return The text that gets read back
+     */
+    protected String getWrittenText(String text) {
+        return new String(text.getBytes(charset), charset);
+    }
+
+    /**
+     * Returns the primary account of a transaction, which is the last
+     * account in its splits that is not a double-entry account
+     * @param transaction The transaction
+     * @return The primary account, or null if the transaction has none and
+     * is listed in every account that it affects
+     */
+    protected Account getPrimaryAccount(Transaction transaction)
+    {
+        Account account;
+        for (int i = transaction.splits.size() - 1; i >= 0; i--) {
+            account = (Account) context.conversion.accounts.get(((Split) transaction.splits.get(i)).accountGuid);
+            if (account != null && !context.isDoubleEntry(account))
+                return account;
+        }
+        return null;
+    }
+
+    /**
+     * Parses an amount with an optional minus sign and up to two decimals
+     * @param amount The amount, such as -12.30
+     * @return The amount in cents, or Long.MIN_VALUE if it is missing or not
+     * a valid amount
+     */
+    protected static long parseCents(String amount)
+    {
+        if (amount == null)
+            return Long.MIN_VALUE;
+        int length = amount.length();
+        int i = (length > 0 && amount.charAt(0) == '-')? 1: 0;
+        int start = i, decimals = -1;
+        long cents = 0;
+        char c;
+        for (; i < length; i++) {
+            c = amount.charAt(i);
+            if (c == '.' && decimals < 0)
+                decimals = 0;
+            else if (c >= '0' && c <= '9' && decimals < 2 && cents < Long.MAX_VALUE / 100) {
+                cents = cents * 10 + (c - '0');
+                if (decimals >= 0)
+                    decimals++;
+            } else
+                return Long.MIN_VALUE;
+        }
+        if (i == start)
+            return Long.MIN_VALUE;
+        for (decimals = Math.max(decimals, 0); decimals < 2; decimals++)
+            cents *= 10;
+        return (start > 0)? -cents: cents;
+    }
+
+    /**
+     * Formats an amount in cents
+     * @param cents The amount in cents
+     * @return The amount with two decimals
+     */
+    protected static String formatCents(long cents)
+    {
+        StringBuffer output = new StringBuffer();
+        if (cents < 0)
+            output.append('-');
+        long magnitude = Math.abs(cents);
+        output.append(magnitude / 100).append('.');
+        if (magnitude % 100 < 10)
+            output.append('0');
+        return output.append(magnitude % 100).toString();
+    }
+}
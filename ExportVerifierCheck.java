@@ -0,0 +1,184 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Checks ExportVerifier on a small book that has transactions with two and
+ * three splits in the same bank account, which the bank account lists once
+ * per split. The QIF and IIF exports of the book must pass, and an IIF file
+ * that lists such a transaction once more or once less than the account
+ * does must not. Run it with
+ * <pre>
+ * java net.sourceforge.gnucashtoqif.ExportVerifierCheck
+ * </pre>
+ * It prints what went wrong and exits with status 1 if anything did
+ */
+final class ExportVerifierCheck
+{
+    /** The transaction with two splits in the checking account */
+    protected static final String TWO_SPLITS = "t0000000000000000000000000000002";
+
+    /** The book */
+    protected static final String BOOK =
+        "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n" +
+        "<gnc-v2 xmlns:gnc=\"g\" xmlns:act=\"a\" xmlns:trn=\"t\" xmlns:split=\"s\" xmlns:ts=\"ts\">\n" +
+        "<gnc:book version=\"2.0.0\">\n" +
+        account("aaaa0001", "Assets", "ASSET", null) +
+        account("aaaa0002", "Checking", "BANK", "aaaa0001") +
+        account("aaaa0003", "Expenses", "EXPENSE", null) +
+        account("aaaa0004", "Groceries", "EXPENSE", "aaaa0003") +
+        account("aaaa0005", "Income", "INCOME", null) +
+        account("aaaa0006", "Salary", "INCOME", "aaaa0005") +
+        transaction("t0000000000000000000000000000001", "2006-03-01", "Lunch",
+            split("s1a", "-1250", "aaaa0002") + split("s1b", "1250", "aaaa0004")) +
+        transaction(TWO_SPLITS, "2006-03-02", "Two checks",
+            split("s2a", "-1000", "aaaa0002") + split("s2b", "-500", "aaaa0002") + split("s2c", "1500", "aaaa0004")) +
+        transaction("t0000000000000000000000000000003", "2006-03-03", "Three deposits",
+            split("s3a", "100000", "aaaa0002") + split("s3b", "50000", "aaaa0002") + split("s3c", "25000", "aaaa0002") +
+            split("s3d", "-175000", "aaaa0006")) +
+        "</gnc:book>\n" +
+        "</gnc-v2>\n";
+
+    /** The number of checks that failed */
+    protected static int failures = 0;
+
+    /**
+     * Runs the check
+     * @param args Not used
+     * @throws Exception Thrown if the book could not be imported or exported
+     */
+    public static void main(String args[]) throws Exception
+    {
+        Conversion conversion = new Conversion();
+        GnuCashData.importGnuCash(new StringReader(BOOK), conversion);
+
+        // The exports of the book must pass
+        OutputFormat formats[] = {new QIF2003OutputFormat(), new QIF2004OutputFormat(), new IIFOutputFormat()};
+        File files[] = new File[formats.length];
+        ExportContext contexts[] = new ExportContext[formats.length];
+        for (int i = 0; i < formats.length; i++) {
+            files[i] = File.createTempFile("verify", (i < 2)? ".qif": ".iif");
+            files[i].deleteOnExit();
+            contexts[i] = new ExportContext(conversion);
+            GnuCashToQIF.writeDestinationFile(formats[i], contexts[i], files[i]);
+            expect(formats[i].getClass().getName() + " export", new ExportVerifier(contexts[i]).verify(formats[i], files[i]), false);
+        }
+
+        // An IIF file with one listing too many or too few must not
+        File iif = files[2];
+        Charset charset = Charset.defaultCharset();
+        List lines = new ArrayList(Files.readAllLines(iif.toPath(), charset));
+        int start = 0, end;
+        while (!((String) lines.get(start)).startsWith("TRNS\t" + TWO_SPLITS))
+            start++;
+        for (end = start; !lines.get(end).equals("ENDTRNS"); end++);
+        List changed = new ArrayList(lines);
+        changed.addAll(start, lines.subList(start, end + 1));
+        write(iif, changed, charset);
+        expect("IIF file with an extra listing", new ExportVerifier(contexts[2]).verify(formats[2], iif), true);
+        changed = new ArrayList(lines);
+        changed.subList(start, end + 1).clear();
+        write(iif, changed, charset);
+        expect("IIF file with a missing listing", new ExportVerifier(contexts[2]).verify(formats[2], iif), true);
+
+        System.out.println((failures == 0)? "All checks passed": failures + " checks failed");
+        System.exit((failures == 0)? 0: 1);
+    }
+
+    /**
+     * Compares the outcome of a verification with what was expected
+     * @param name What was verified
+     * @param problems The problems that the verification found
+     * @param problemsExpected Whether problems were expected
+     */
+    protected static void expect(String name, List problems, boolean problemsExpected)
+    {
+        if (problems.isEmpty() == !problemsExpected)
+            return;
+        failures++;
+        if (problemsExpected)
+            System.out.println(name + ": no problems were found");
+        else {
+            System.out.println(name + ": unexpected problems");
+            Iterator problem = problems.iterator();
+            while (problem.hasNext())
+                System.out.println("  " + problem.next());
+        }
+    }
+
+    /**
+     * Writes lines to an IIF file
+     * @param file The file
+     * @param lines The lines
+     * @param charset The charset to write in
+     * @throws IOException Thrown if the file could not be written
+     */
+    protected static void write(File file, List lines, Charset charset) throws IOException
+    {
+        StringBuffer text = new StringBuffer();
+        for (int i = 0; i < lines.size(); i++)
+            text.append(lines.get(i)).append("\r\n");
+        Files.write(file.toPath(), text.toString().getBytes(charset));
+    }
+
+    /**
+     * Returns the XML of an account
+     * @param guid The GUID of the account
+     * @param name The name of the account
+     * @param type The GnuCash type of the account
+     * @param parent The GUID of the parent, or null for a top-level account
+     * @return The XML
+     */
+    protected static String account(String guid, String name, String type, String parent)
+    {
+        return "<gnc:account version=\"2.0.0\">\n" +
+            "  <act:name>" + name + "</act:name>\n" +
+            "  <act:id type=\"guid\">" + guid + "</act:id>\n" +
+            "  <act:type>" + type + "</act:type>\n" +
+            ((parent != null)? "  <act:parent type=\"guid\">" + parent + "</act:parent>\n": "") +
+            "</gnc:account>\n";
+    }
+
+    /**
+     * Returns the XML of a transaction
+     * @param guid The GUID of the transaction
+     * @param date The posting date in YYYY-MM-DD format
+     * @param description The description
+     * @param splits The XML of the splits
+     * @return The XML
+     */
+    protected static String transaction(String guid, String date, String description, String splits)
+    {
+        return "<gnc:transaction version=\"2.0.0\">\n" +
+            "  <trn:id type=\"guid\">" + guid + "</trn:id>\n" +
+            "  <trn:date-posted><ts:date>" + date + " 00:00:00 -0500</ts:date></trn:date-posted>\n" +
+            "  <trn:description>" + description + "</trn:description>\n" +
+            "  <trn:splits>\n" + splits + "  </trn:splits>\n" +
+            "</gnc:transaction>\n";
+    }
+
+    /**
+     * Returns the XML of a split
+     * @param guid The GUID of the split
+     * @param cents The amount in cents
+     * @param account The GUID of the account
+     * @return The XML
+     */
+    protected static String split(String guid, String cents, String account)
+    {
+        return "    <trn:split>\n" +
+            "      <split:id type=\"guid\">" + guid + "</split:id>\n" +
+            "      <split:reconciled-state>n</split:reconciled-state>\n" +
+            "      <split:value>" + cents + "/100</split:value>\n" +
+            "      <split:quantity>" + cents + "/100</split:quantity>\n" +
+            "      <split:account type=\"guid\">" + account + "</split:account>\n" +
+            "    </trn:split>\n";
+    }
+}
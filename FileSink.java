@@ -0,0 +1,149 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Output sink that writes to a file through a FileChannel. Space can be
+ * reserved in the file for output of a known length, which other threads
+ * then write into at its position through regions of their own
+ */
+class FileSink extends OutputSink
+{
+    /** The buffer size of the sinks that write regions */
+    public static final int REGION_BUFFER_SIZE = 64 * 1024;
+
+    /** The file that gets written */
+    protected RandomAccessFile file;
+
+    /** The channel of the file */
+    protected FileChannel channel;
+
+    /** The position in the file that the buffer gets written to */
+    protected long position = 0;
+
+    /**
+     * Creates a new sink that replaces the contents of the given file with
+     * output in the platform's default charset, like FileWriter does
+     * @param destFile The file to write
+     * @throws IOException Thrown if the file could not be opened
+     */
+    public FileSink(File destFile) throws IOException
+    {
+        super(null, Charset.defaultCharset(), DEFAULT_BUFFER_SIZE);
+        file = new RandomAccessFile(destFile, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+    }
+
+    /**
+     * Reserves space for output of a known length after what has been
+     * written so far. The file is grown to hold it, and this sink carries on
+     * writing after it
+     * @param length The number of bytes to reserve
+     * @return The position of the reserved space
+     * @throws IOException Thrown if the file could not be grown
+     */
+    public long reserve(long length) throws IOException
+    {
+        drainBuffer();
+        long start = position;
+        position += length;
+        file.setLength(position);
+        return start;
+    }
+
+    /**
+     * Creates a sink that writes into reserved space, starting at the given
+     * position. The region sink can be used on another thread than this sink
+     * @param start The position to start writing at
+     * @return The region sink
+     */
+    public Region region(long start) {
+        return new Region(start);
+    }
+
+    /**
+     * Writes the buffer at the current position
+     * @param bytes The encoded bytes
+     * @param off The index of the first byte
+     * @param len The number of bytes
+     */
+    protected void drain(byte bytes[], int off, int len) throws IOException
+    {
+        writeAt(bytes, off, len, position);
+        position += len;
+    }
+
+    /**
+     * Writes bytes at a position of the file
+     * @param bytes The bytes to write
+     * @param off The index of the first byte
+     * @param len The number of bytes
+     * @param at The position in the file
+     * @throws IOException Thrown if the file could not be written
+     */
+    protected void writeAt(byte bytes[], int off, int len, long at) throws IOException
+    {
+        ByteBuffer data = ByteBuffer.wrap(bytes, off, len);
+        while (data.hasRemaining())
+            at += channel.write(data, at);
+    }
+
+    /**
+     * Writes out the buffered bytes and closes the file
+     */
+    public void close() throws IOException
+    {
+        flush();
+        file.close();
+    }
+
+    /**
+     * Output sink that writes into space reserved in the file, in the same
+     * charset as the file's own sink
+     */
+    public class Region extends OutputSink
+    {
+        /** The position in the file that the buffer gets written to */
+        protected long position;
+
+        /** The number of bytes written out of the buffer */
+        protected long written = 0;
+
+        /**
+         * Creates a new region sink
+         * @param start The position to start writing at
+         */
+        protected Region(long start)
+        {
+            super(null, FileSink.this.charset, REGION_BUFFER_SIZE);
+            position = start;
+        }
+
+        /**
+         * Writes the buffer at the region's current position
+         * @param bytes The encoded bytes
+         * @param off The index of the first byte
+         * @param len The number of bytes
+         */
+        protected void drain(byte bytes[], int off, int len) throws IOException
+        {
+            writeAt(bytes, off, len, position);
+            position += len;
+            written += len;
+        }
+
+        /**
+         * Returns the number of bytes written to this region
+         * @return The number of bytes
+         */
+        public long length() {
+            return written + count;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the rendered output of single transactions, kept in a file
+ * between runs. A fragment is found by two hashes: the content hash of the
+ * transaction, and a hash of everything else that its output depends on,
+ * which is the output format, the options, the charset, the account that it
+ * is listed in and the names of the accounts that it affects. The least
+ * recently used fragments are dropped once the cache is larger than its cap
+ */
+class FragmentCache
+{
+    /** The first four bytes of a cache file, "GCQF" */
+    protected static final int MAGIC = 0x47435146;
+
+    /** The version of the cache file format */
+    protected static final int VERSION = 1;
+
+    /** The bytes that each fragment takes besides its output, which count towards the cap */
+    protected static final int ENTRY_OVERHEAD = 20;
+
+    /** The default cap of the cache, in bytes */
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+    /** The file that the cache is kept in */
+    protected File file;
+
+    /** The number of bytes that the cache may take */
+    protected long maxSize;
+
+    /** The fragments by Key, from the least to the most recently used */
+    protected LinkedHashMap fragments = new LinkedHashMap(1024, 0.75f, true);
+
+    /** The number of bytes that the fragments take */
+    protected long size = 0;
+
+    /** The number of non-empty fragments found in the cache */
+    protected int hits = 0;
+
+    /** The number of non-empty fragments that had to be rendered */
+    protected int misses = 0;
+
+    /**
+     * Creates a new, empty cache
+     * @param file The file that the cache gets saved to
+     * @param maxSize The number of bytes that the cache may take
+     */
+    public FragmentCache(File file, long maxSize)
+    {
+        this.file = file;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Reads the cache that an earlier run saved
+     * @param file The cache file
+     * @param maxSize The number of bytes that the cache may take
+     * @return The saved cache, or an empty cache if the file does not exist
+     * @throws IOException Thrown if the file could not be read or is not a
+     * cache file
+     */
+    public static FragmentCache read(File file, long maxSize) throws IOException
+    {
+        FragmentCache cache = new FragmentCache(file, maxSize);
+        if (!file.exists())
+            return cache;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION)
+                throw new IOException(file.getPath() + " is not a GnuCashToQIF fragment cache");
+            int count = input.readInt();
+            long content, render;
+            byte fragment[];
+            for (int i = 0; i < count; i++) {
+                content = input.readLong();
+                render = input.readLong();
+                fragment = new byte[input.readInt()];
+                input.readFully(fragment);
+                cache.put(content, render, fragment);
+            }
+
+            // Only the fragments that this run renders count as misses
+            cache.misses = 0;
+            return cache;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Saves the cache, from the least to the most recently used fragment so
+     * that the next run evicts in the same order. The file is written under
+     * a temporary name and renamed
+     * @throws IOException Thrown if the file could not be written
+     */
+    public synchronized void write() throws IOException
+    {
+        File temporary = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(fragments.size());
+            Iterator entryIterator = fragments.entrySet().iterator();
+            Map.Entry entry;
+            byte fragment[];
+            while (entryIterator.hasNext()) {
+                entry = (Map.Entry) entryIterator.next();
+                fragment = (byte[]) entry.getValue();
+                output.writeLong(((Key) entry.getKey()).content);
+                output.writeLong(((Key) entry.getKey()).render);
+                output.writeInt(fragment.length);
+                output.write(fragment);
+            }
+        } finally {
+            output.close();
+        }
+        Files.move(temporary.toPath(), file.toPath(), new StandardCopyOption[] {StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE});
+    }
+
+    /**
+     * Returns a fragment and marks it as the most recently used
+     * @param content The content hash of the transaction
+     * @param render The hash of the rest of what the output depends on
+     * @return The encoded output, or null if it is not in the cache
+     */
+    public synchronized byte[] get(long content, long render)
+    {
+        byte fragment[] = (byte[]) fragments.get(new Key(content, render));
+        if (fragment != null && fragment.length > 0)
+            hits++;
+        return fragment;
+    }
+
+    /**
+     * Adds a fragment, dropping the least recently used ones while the cache
+     * is larger than its cap
+     * @param content The content hash of the transaction
+     * @param render The hash of the rest of what the output depends on
+     * @param fragment The encoded output
+     */
+    public synchronized void put(long content, long render, byte fragment[])
+    {
+        if (fragment.length > 0)
+            misses++;
+        byte replaced[] = (byte[]) fragments.put(new Key(content, render), fragment);
+        if (replaced != null)
+            size -= replaced.length + ENTRY_OVERHEAD;
+        size += fragment.length + ENTRY_OVERHEAD;
+        Iterator entryIterator = fragments.values().iterator();
+        while (size > maxSize && entryIterator.hasNext()) {
+            size -= ((byte[]) entryIterator.next()).length + ENTRY_OVERHEAD;
+            entryIterator.remove();
+        }
+    }
+
+    /**
+     * Returns the number of fragments found in the cache, leaving out the
+     * empty ones of transactions that an account does not list
+     * @return The number of hits
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of fragments that were not in the cache and had to
+     * be rendered, leaving out the empty ones
+     * @return The number of misses
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the hash of everything that the output of every transaction
+     * in an export depends on
+     * @param formatName The name of the output format
+     * @param conversion The conversion with the options
+     * @param charset The charset of the output
+     * @param duplicate Whether transactions are listed in every account
+     * @return The hash
+     */
+    public static long getFormatKey(String formatName, Conversion conversion, Charset charset, boolean duplicate)
+    {
+        long hash = TransactionState.hash(TransactionState.FNV_OFFSET, formatName);
+        hash = TransactionState.hash(hash, charset.name());
+        hash = TransactionState.hash(hash, conversion.pruneUnusedAccounts? 'p': '-');
+        hash = TransactionState.hash(hash, conversion.splitMemoFromDescription? 'm': '-');
+        return TransactionState.hash(hash, duplicate? 'd': '-');
+    }
+
+    /**
+     * Works out a hash of how each account gets named in an export: by its
+     * full name if it is a category and by its own name otherwise
+     * @param context The export context, which has the account types and
+     * full names set
+     * @return The hashes, indexed by Account.index
+     */
+    public static long[] getAccountKeys(ExportContext context)
+    {
+        long keys[] = new long[context.conversion.accountCount];
+        Iterator accountIterator = context.conversion.accounts.values().iterator();
+        Account account;
+        long hash;
+        while (accountIterator.hasNext()) {
+            account = (Account) accountIterator.next();
+            hash = TransactionState.hash(TransactionState.FNV_OFFSET, account.guid);
+            if (context.isDoubleEntry(account))
+                hash = TransactionState.hash(TransactionState.hash(hash, 'c'), context.getFullName(account));
+            else
+                hash = TransactionState.hash(TransactionState.hash(hash, 'a'), account.name);
+            keys[account.index] = hash;
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the hash of everything besides its content that the output of
+     * a transaction in an account depends on
+     * @param formatKey The hash from getFormatKey()
+     * @param accountKeys The hashes from getAccountKeys()
+     * @param conversion The conversion with the accounts
+     * @param account The account that the transaction is listed in
+     * @param transaction The transaction
+     * @return The hash
+     */
+    public static long getRenderKey(long formatKey, long accountKeys[], Conversion conversion, Account account, Transaction transaction)
+    {
+        long hash = TransactionState.hash(formatKey, accountKeys[account.index]);
+        Iterator splitIterator = transaction.splits.iterator();
+        Account target;
+        while (splitIterator.hasNext()) {
+            target = (Account) conversion.accounts.get(((Split) splitIterator.next()).accountGuid);
+            hash = TransactionState.hash(hash, (target != null)? accountKeys[target.index]: 0L);
+        }
+        return hash;
+    }
+
+    /**
+     * The two hashes that find a fragment
+     */
+    protected static class Key
+    {
+        /** The content hash of the transaction */
+        protected final long content;
+
+        /** The hash of the rest of what the output depends on */
+        protected final long render;
+
+        /**
+         * Creates a new key
+         * @param content The content hash of the transaction
+         * @param render The hash of the rest of what the output depends on
+         */
+        protected Key(long content, long render)
+        {
+            this.content = content;
+            this.render = render;
+        }
+
+        public int hashCode() {
+            return (int) (content ^ (content >>> 32) ^ render ^ (render >>> 32));
+        }
+
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).content == content && ((Key) other).render == render;
+        }
+    }
+}
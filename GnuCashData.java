@@ -1,7 +1,12 @@
 package net.sourceforge.gnucashtoqif;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -26,7 +31,18 @@ public class GnuCashData
 	 * @throws IOException Thrown if an IOException arose while reading the input
 	 * @throws SAXException Thrown if the input GnuCash file has an XML format error
 	 */
-	public static void importGnuCash(Reader reader, Conversion conversion) throws SAXException, IOException
+	public static void importGnuCash(Reader reader, Conversion conversion) throws SAXException, IOException {
+		parse(reader, new GnuCashHandler(conversion));
+	}
+	
+	/**
+	 * Reads the given GnuCash input with the given handler
+	 * @param reader The Reader to read GnuCash data from
+	 * @param handler The handler that receives the XML events
+	 * @throws IOException Thrown if an IOException arose while reading the input
+	 * @throws SAXException Thrown if the input GnuCash file has an XML format error
+	 */
+	protected static void parse(Reader reader, GnuCashHandler handler) throws SAXException, IOException
 	{
         // Run the data conversion by having the XML parser provide
         // the file state events to us
@@ -36,7 +52,6 @@ public class GnuCashData
         } catch (ParserConfigurationException e) {
         	throw new RuntimeException(e);
         }
-        GnuCashHandler handler = new GnuCashHandler(conversion);
         parser.setContentHandler(handler);
         parser.setErrorHandler(handler);
         parser.setFeature("http://xml.org/sax/features/namespaces", true);
@@ -49,6 +64,120 @@ public class GnuCashData
         }
 	}
 	
+	/**
+	 * Imports a GnuCash file by mapping it into memory. Transaction and split
+	 * text is not decoded while importing; the conversion's text arena refers
+	 * to its bytes in the mapped file instead, so that it is only decoded or
+	 * copied when it is written
+	 * @param file The GnuCash file to import, which has to be UTF-8 encoded
+	 * @param conversion The conversion configuration to use
+	 * @throws IOException Thrown if the file could not be mapped
+	 * @throws SAXException Thrown if the input GnuCash file has an XML format error
+	 */
+	public static void importMappedGnuCash(File file, Conversion conversion) throws SAXException, IOException
+	{
+	    MappedBook book = new MappedBook(file);
+	    conversion.text = new TextArena(book);
+	    new MappedGnuCashReader(book, new GnuCashHandler(conversion)).parse();
+	}
+
+	/**
+	 * Imports everything from a GnuCash file except for its transactions,
+	 * only marking the accounts that splits refer to as used. This is the
+	 * first pass of a streamed export; streamTransactions() is the second
+	 * @param reader The Reader to read GnuCash data from
+	 * @param conversion The conversion configuration to use
+	 * @throws IOException Thrown if an IOException arose while reading the input
+	 * @throws SAXException Thrown if the input GnuCash file has an XML format error
+	 */
+	public static void importAccounts(Reader reader, Conversion conversion) throws SAXException, IOException {
+		parse(reader, new StreamingHandler(conversion, conversion.accounts, null));
+	}
+
+	/**
+	 * Imports everything from a mapped GnuCash file except for its
+	 * transactions, like importAccounts() does
+	 * @param file The GnuCash file to import, which has to be UTF-8 encoded
+	 * @param conversion The conversion configuration to use
+	 * @throws IOException Thrown if the file could not be mapped
+	 * @throws SAXException Thrown if the input GnuCash file has an XML format error
+	 */
+	public static void importMappedAccounts(File file, Conversion conversion) throws SAXException, IOException
+	{
+	    MappedBook book = new MappedBook(file);
+	    conversion.text = new TextArena(book);
+	    new MappedGnuCashReader(book, new StreamingHandler(conversion, conversion.accounts, null)).parse();
+	}
+
+	/**
+	 * Reads the transactions of a GnuCash file whose accounts were imported
+	 * by importAccounts(), handing them to the listener one at a time
+	 * without keeping them
+	 * @param reader The Reader to read GnuCash data from
+	 * @param conversion The conversion with the imported accounts
+	 * @param listener The listener to hand the transactions to
+	 * @throws IOException Thrown if an IOException arose while reading the
+	 * input or in the listener
+	 * @throws SAXException Thrown if the input GnuCash file has an XML format error
+	 */
+	public static void streamTransactions(Reader reader, Conversion conversion, TransactionListener listener) throws SAXException, IOException
+	{
+		try {
+			parse(reader, new StreamingHandler(createScratch(conversion), conversion.accounts, listener));
+		} catch (SAXException e) {
+			if (e.getException() instanceof IOException)
+				throw (IOException) e.getException();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the transactions of a mapped GnuCash file whose accounts were
+	 * imported by importMappedAccounts(), like streamTransactions() does
+	 * @param conversion The conversion with the imported accounts
+	 * @param listener The listener to hand the transactions to
+	 * @throws IOException Thrown if an IOException arose in the listener
+	 * @throws SAXException Thrown if the input GnuCash file has an XML format error
+	 */
+	public static void streamMappedTransactions(Conversion conversion, TransactionListener listener) throws SAXException, IOException
+	{
+		try {
+			new MappedGnuCashReader(conversion.text.getBook(), new StreamingHandler(createScratch(conversion), conversion.accounts, listener)).parse();
+		} catch (SAXException e) {
+			if (e.getException() instanceof IOException)
+				throw (IOException) e.getException();
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates a conversion that takes everything except the transactions
+	 * while a book is read for the second time, leaving the imported
+	 * conversion alone
+	 * @param conversion The imported conversion
+	 * @return The scratch conversion, which shares the text arena
+	 */
+	protected static Conversion createScratch(Conversion conversion)
+	{
+		Conversion scratch = new Conversion();
+		scratch.text = conversion.text;
+		return scratch;
+	}
+
+	/**
+	 * Receives the transactions of a book that is streamed rather than imported
+	 */
+	public static interface TransactionListener
+	{
+		/**
+		 * Handles a transaction that has been read. The transaction and its
+		 * splits are reused for the next transaction, so they must not be kept
+		 * @param transaction The transaction, whose splits refer to their accounts
+		 * @throws IOException Thrown if the transaction could not be handled
+		 */
+		public void transaction(Transaction transaction) throws IOException;
+	}
+
 	/**
 	 * XML file handler for the GnuCash file format
 	 */
@@ -72,6 +201,22 @@ public class GnuCashData
 	    public void startDocument() {
 	    }
 
+	    /** End document */
+	    public void endDocument()
+	    {
+	        // Link the invoices to their transactions and accounts
+	        Iterator invoiceIterator = conversion.invoices.values().iterator();
+	        Invoice invoice;
+	        while (invoiceIterator.hasNext()) {
+	            invoice = (Invoice) invoiceIterator.next();
+	            invoice.invoiceTransaction = (Transaction) conversion.transactions.get(invoice.invoiceTransactionGuid);
+	            invoice.account = (Account) conversion.accounts.get(invoice.accountGuid);
+	        }
+
+	        // The book is complete, so nothing may change it from here on
+	        conversion.freeze();
+	    }
+
 	    /** Start element */
 	    public void startElement(String uri, String localName, String qName, Attributes attributes)
 	    {
@@ -80,10 +225,13 @@ public class GnuCashData
 
 	        // Dispatch the type of element
 	        String value;
-	        if (qName.equalsIgnoreCase("gnc:account"))
+	        if (qName.equalsIgnoreCase("gnc:account")) {
 	            currentAccount = new Account();
-	        else if (qName.equalsIgnoreCase("gnc:transaction"))
+	            currentAccount.index = conversion.accountCount++;
+	        } else if (qName.equalsIgnoreCase("gnc:transaction")) {
 	            currentTransaction = new Transaction();
+	            currentTransaction.index = conversion.transactionCount++;
+	        }
 	        else if (qName.equalsIgnoreCase("trn:date-posted") ||
 	        		 qName.equalsIgnoreCase("invoice:opened") ||
 	        		 qName.equalsIgnoreCase("invoice:posted") ||
@@ -137,8 +285,12 @@ public class GnuCashData
 	    protected String parentName = null;
 	    
 	    /** End element */
-	    public void endElement(String uri, String localName, String qName)
+	    public void endElement(String uri, String localName, String qName) throws SAXException
 	    {
+	        // Keep transaction and split text in the text arena if it is enabled
+	        if (conversion.text != null && storeText(qName))
+	            return;
+
 	        // Trim the sides of the value
 	        String value = buffer.toString().trim();
 
@@ -203,8 +355,11 @@ public class GnuCashData
 	            // Look up the referenced account and add the current transaction
 	            // if found
 	            Account acct = (Account) conversion.accounts.get(currentSplit.accountGuid);
-	            if (acct != null)
+	            currentSplit.account = acct;
+	            if (acct != null) {
+	                acct.used = true;
 	                acct.trans.add(currentTransaction);
+	            }
 	            
 	            // Add this transaction to the transaction map
 	            conversion.transactions.put(currentTransaction.guid, currentTransaction);
@@ -257,9 +412,182 @@ public class GnuCashData
 	        }
 	    }
 
+	    /**
+	     * Stores the buffered value of a transaction or split text element
+	     * in the conversion's text arena without creating a String
+	     * @param qName The name of the element that is ending
+	     * @return True if the value was stored, or false if the element is
+	     * not a text field that the arena holds
+	     */
+	    protected boolean storeText(String qName)
+	    {
+	        // Only transaction and split text goes into the arena
+	        int field = getTextField(qName);
+	        if (field < 0)
+	            return false;
+
+	        // Trim the sides of the value the same way that String.trim() does
+	        int start = 0, end = buffer.length();
+	        while (start < end && buffer.charAt(start) <= ' ')
+	            start++;
+	        while (end > start && buffer.charAt(end - 1) <= ' ')
+	            end--;
+	        setTextField(field, conversion.text.add(buffer, start, end));
+	        return true;
+	    }
+
+	    /**
+	     * Stores a reference to the raw value of a transaction or split text
+	     * element in the mapped book instead of decoding it
+	     * @param qName The name of the element that is ending
+	     * @param start The position of the element's UTF-8 text in the mapped book
+	     * @param end The position after the element's text
+	     * @return True if the reference was stored, or false if the element
+	     * is not a text field that the arena holds
+	     */
+	    protected boolean storeMappedText(String qName, long start, long end)
+	    {
+	        // Only transaction and split text goes into the arena
+	        int field = getTextField(qName);
+	        if (field < 0)
+	            return false;
+
+	        // Trim the sides of the value; multi-byte UTF-8 sequences never
+	        // contain bytes that String.trim() would remove
+	        MappedBook book = conversion.text.getBook();
+	        while (start < end && (book.get(start) & 0xff) <= ' ')
+	            start++;
+	        while (end > start && (book.get(end - 1) & 0xff) <= ' ')
+	            end--;
+	        setTextField(field, conversion.text.addMapped(start, (int) (end - start)));
+	        return true;
+	    }
+
+	    /**
+	     * Returns which transaction or split text field an element holds
+	     * @param qName The name of the element
+	     * @return The field number for setTextField(), or -1 if the element
+	     * is not a text field that the arena holds
+	     */
+	    protected int getTextField(String qName)
+	    {
+	        if (qName.equalsIgnoreCase("trn:description"))
+	            return 0;
+	        else if (qName.equalsIgnoreCase("trn:num"))
+	            return 1;
+	        else if (qName.equalsIgnoreCase("split:memo"))
+	            return 2;
+	        else if (qName.equalsIgnoreCase("split:action"))
+	            return 3;
+	        else
+	            return -1;
+	    }
+
+	    /**
+	     * Sets a transaction or split text field to the given arena reference
+	     * @param field The field number from getTextField()
+	     * @param ref The reference to the field's text
+	     */
+	    protected void setTextField(int field, long ref)
+	    {
+	        switch (field) {
+	            case 0 :
+	                currentTransaction.descriptionText = ref;
+	                break;
+	            case 1 :
+	                currentTransaction.refText = ref;
+	                break;
+	            case 2 :
+	                currentSplit.memoText = ref;
+	                break;
+	            default :
+	                currentSplit.actionText = ref;
+	                break;
+	        }
+	    }
+
 	    /** Characters */
 	    public void characters(char ch[], int start, int length) {
 	        buffer.append(ch, start, length);
 	    }	
 	}
+
+	/**
+	 * XML file handler that reads the transactions of a GnuCash file one at
+	 * a time into a single reused transaction and a pool of reused splits
+	 * instead of keeping them
+	 */
+	protected static class StreamingHandler extends GnuCashHandler
+	{
+		/** The accounts that splits get matched against */
+		protected Map accounts;
+		
+		/** The listener that receives the transactions, or null to only mark accounts as used */
+		protected TransactionListener listener;
+		
+		/** The transaction that every transaction is read into */
+		protected Transaction transaction = new Transaction();
+		
+		/** The splits that get read into, in the order of the transaction's splits */
+		protected List splitPool = new ArrayList();
+		
+	    /**
+	     * Creates a new StreamingHandler
+	     * @param conversion The conversion that takes the accounts, lots,
+	     * vendors and invoices
+	     * @param accounts The accounts that splits get matched against
+	     * @param listener The listener that receives the transactions, or null
+	     * to only mark accounts as used
+	     */
+		public StreamingHandler(Conversion conversion, Map accounts, TransactionListener listener)
+		{
+			super(conversion);
+			this.accounts = accounts;
+			this.listener = listener;
+		}
+		
+	    /** Start element */
+	    public void startElement(String uri, String localName, String qName, Attributes attributes)
+	    {
+	        if (qName.equalsIgnoreCase("gnc:transaction")) {
+	            buffer.setLength(0);
+	            transaction.clear();
+	            currentTransaction = transaction;
+	        } else if (qName.equalsIgnoreCase("trn:split")) {
+	            buffer.setLength(0);
+	            int count = transaction.splits.size();
+	            if (count == splitPool.size())
+	                splitPool.add(new Split());
+	            currentSplit = (Split) splitPool.get(count);
+	            currentSplit.clear();
+	        } else
+	            super.startElement(uri, localName, qName, attributes);
+	    }
+	    
+	    /** End element */
+	    public void endElement(String uri, String localName, String qName) throws SAXException
+	    {
+	        if (qName.equalsIgnoreCase("trn:split"))
+	        {
+	            // Look up the referenced account and mark it as used
+	            Account acct = (Account) accounts.get(currentSplit.accountGuid);
+	            currentSplit.account = acct;
+	            if (acct != null)
+	                acct.used = true;
+	            currentTransaction.splits.add(currentSplit);
+	            currentSplit = null;
+	        } else if (qName.equalsIgnoreCase("gnc:transaction")) {
+	            // Hand the complete transaction to the listener
+	            if (listener != null) {
+	                try {
+	                    listener.transaction(currentTransaction);
+	                } catch (IOException e) {
+	                    throw new SAXException(e);
+	                }
+	            }
+	            currentTransaction = null;
+	        } else
+	            super.endElement(uri, localName, qName);
+	    }
+	}
 }
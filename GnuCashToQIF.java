@@ -4,16 +4,30 @@ import gnu.getopt.Getopt;
 import gnu.getopt.LongOpt;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
@@ -34,17 +48,44 @@ public class GnuCashToQIF
      * @param args The arguments from the command line
      */
     public static void main(String[] args) {
-        GnuCashToQIF program = new GnuCashToQIF();
+        System.exit(new GnuCashToQIF().run(args));
+    }
+    
+    /**
+     * Runs one conversion with the given command line
+     * @param args The arguments from the command line
+     * @return The exit status: 0 on success, 1 if the command line or the
+     * files were not usable, 2 if the source file could not be read and 3
+     * if an output could not be written
+     */
+    protected int run(String[] args) {
         
         // Construct the valid command-line parameters
-        LongOpt options[] = new LongOpt[4];
+        LongOpt options[] = new LongOpt[21];
         options[0] = new LongOpt("help", LongOpt.NO_ARGUMENT, null, 'h');
         options[1] = new LongOpt("output-format", LongOpt.REQUIRED_ARGUMENT, null, 't');
         options[2] = new LongOpt("ignore-unused", LongOpt.OPTIONAL_ARGUMENT, null, 'i');
         options[3] = new LongOpt("extract-memos", LongOpt.OPTIONAL_ARGUMENT, null, 'm');
+        options[4] = new LongOpt("text-arena", LongOpt.OPTIONAL_ARGUMENT, null, 'a');
+        options[5] = new LongOpt("lazy-text", LongOpt.OPTIONAL_ARGUMENT, null, 'l');
+        options[6] = new LongOpt("streaming", LongOpt.OPTIONAL_ARGUMENT, null, 's');
+        options[7] = new LongOpt("threads", LongOpt.OPTIONAL_ARGUMENT, null, 'j');
+        options[8] = new LongOpt("account-files", LongOpt.OPTIONAL_ARGUMENT, null, 'f');
+        options[9] = new LongOpt("positional-write", LongOpt.OPTIONAL_ARGUMENT, null, 'p');
+        options[10] = new LongOpt("gzip", LongOpt.OPTIONAL_ARGUMENT, null, 'z');
+        options[11] = new LongOpt("shard-by", LongOpt.REQUIRED_ARGUMENT, null, 'b');
+        options[12] = new LongOpt("state-file", LongOpt.REQUIRED_ARGUMENT, null, 'e');
+        options[13] = new LongOpt("fragment-cache", LongOpt.REQUIRED_ARGUMENT, null, 'r');
+        options[14] = new LongOpt("cache-size", LongOpt.REQUIRED_ARGUMENT, null, 'k');
+        options[15] = new LongOpt("snapshot", LongOpt.OPTIONAL_ARGUMENT, null, 'n');
+        options[16] = new LongOpt("verify", LongOpt.OPTIONAL_ARGUMENT, null, 'v');
+        options[17] = new LongOpt("pipeline", LongOpt.OPTIONAL_ARGUMENT, null, 'q');
+        options[18] = new LongOpt("batch", LongOpt.REQUIRED_ARGUMENT, null, 'c');
+        options[19] = new LongOpt("workers", LongOpt.OPTIONAL_ARGUMENT, null, 'w');
+        options[20] = new LongOpt("shard", LongOpt.REQUIRED_ARGUMENT, null, 'u');
 
         // Parse the command-line arguments
-        Getopt opt = new Getopt(GnuCashToQIF.class.getName(), args, "t:i::m::", options);
+        Getopt opt = new Getopt(GnuCashToQIF.class.getName(), args, "t:i::m::a::l::s::j::f::p::z::b:e:r:k:n::v::q::c:w::u:", options);
         int c;
         while ((c = opt.getopt()) != -1) {
             switch (c)
@@ -59,17 +100,114 @@ public class GnuCashToQIF
                     System.out.println(" [options] [source [output]]");
                     System.out.println();
                     System.out.println("Options:");
+                    System.out.println("--account-files     Write the lists and each account to QIF");
+                    System.out.println("                    files of their own in the output");
+                    System.out.println("                    directory, with a manifest.txt that");
+                    System.out.println("                    lists them in order. Needs output");
+                    System.out.println("                    directories on the command line.");
+                    System.out.println("                    Values: yes, no");
+                    System.out.println("                    Default: no");
+                    System.out.println("--batch             Run the conversions that this manifest");
+                    System.out.println("                    lists, one per line as source, output,");
+                    System.out.println("                    format and options separated by tabs,");
+                    System.out.println("                    in this one process. Writes one line of");
+                    System.out.println("                    JSON per job to the output file or");
+                    System.out.println("                    stdout.");
+                    System.out.println("--cache-size        The most megabytes that the");
+                    System.out.println("                    --fragment-cache file may take; the");
+                    System.out.println("                    least recently used output is dropped.");
+                    System.out.println("                    Default: 64");
                     System.out.println("--extract-memos     Extract a memo from a description when");
                     System.out.println("                    a memo does not exist.");
                     System.out.println("                    Values: yes, no");
                     System.out.println("                    Default: yes");
+                    System.out.println("--fragment-cache    Keep the QIF output of each transaction");
+                    System.out.println("                    in this file and copy it from there on");
+                    System.out.println("                    later runs while the transaction, its");
+                    System.out.println("                    accounts and the options are unchanged.");
+                    System.out.println("--gzip              Compress each output with gzip, in");
+                    System.out.println("                    independent blocks on the --threads");
+                    System.out.println("                    threads. Any gzip tool can read it.");
+                    System.out.println("                    Values: yes, no");
+                    System.out.println("                    Default: no");
                     System.out.println("--ignore-unused     Ignore unused accounts and categories,");
                     System.out.println("                    leaving them out of the output file.");
                     System.out.println("                    Values: yes, no");
                     System.out.println("                    Default: yes");
+                    System.out.println("--lazy-text         Map the source file into memory and only");
+                    System.out.println("                    decode transaction and split text when it");
+                    System.out.println("                    is written. Needs a UTF-8 source file.");
+                    System.out.println("                    Values: yes, no");
+                    System.out.println("                    Default: no");
                     System.out.println("--output-format     Set the output file compatibility format.");
-                    System.out.println("                    Values: 2003, 2004, iif");
+                    System.out.println("                    A comma-separated list writes several");
+                    System.out.println("                    formats from one read of the source file;");
+                    System.out.println("                    give each format its own file with =file.");
+                    System.out.println("                    One format may leave out its file and");
+                    System.out.println("                    use the output file.");
+                    System.out.println("                    template:file writes the format that a");
+                    System.out.println("                    template file describes.");
+                    System.out.println("                    csv and ndjson write one row per split.");
+                    System.out.println("                    Values: 2003, 2004, iif, csv, ndjson,");
+                    System.out.println("                            template:file");
                     System.out.println("                    Default: 2004");
+                    System.out.println("--pipeline          With --streaming, parse, render and");
+                    System.out.println("                    write on threads of their own that hand");
+                    System.out.println("                    transactions and output on through short");
+                    System.out.println("                    queues, so the stages overlap.");
+                    System.out.println("                    Values: yes, no");
+                    System.out.println("                    Default: no");
+                    System.out.println("--positional-write  With --threads, size each account's");
+                    System.out.println("                    output first and have the threads write");
+                    System.out.println("                    it straight into its place in the output");
+                    System.out.println("                    file instead of joining it in memory.");
+                    System.out.println("                    Values: yes, no");
+                    System.out.println("                    Default: no");
+                    System.out.println("--shard-by          Write one file per period of the posting");
+                    System.out.println("                    dates for each output, named after the");
+                    System.out.println("                    output with the period added, such as");
+                    System.out.println("                    my-2024-Q3.qif. Needs output files.");
+                    System.out.println("                    Values: year, quarter, month");
+                    System.out.println("--shard             With --batch, only run the i-th of every");
+                    System.out.println("                    n jobs, given as i/n, such as 2/4.");
+                    System.out.println("                    Default: 1/1");
+                    System.out.println("--snapshot          Keep a binary copy of the imported book");
+                    System.out.println("                    next to the source file, with .snapshot");
+                    System.out.println("                    added, and load it instead of the XML");
+                    System.out.println("                    while the source file is unchanged.");
+                    System.out.println("                    Values: yes, no");
+                    System.out.println("                    Default: no");
+                    System.out.println("--state-file        Only write the transactions that are new");
+                    System.out.println("                    or changed since the last export with");
+                    System.out.println("                    this state file, and list the GUIDs of");
+                    System.out.println("                    deleted ones in the file's name with");
+                    System.out.println("                    .deleted added. The file is updated once");
+                    System.out.println("                    every output has been written.");
+                    System.out.println("--streaming         Read the source file twice, writing QIF");
+                    System.out.println("                    or journal transactions as they are read");
+                    System.out.println("                    instead of keeping them in memory. Needs a");
+                    System.out.println("                    source file and QIF, CSV or NDJSON output");
+                    System.out.println("                    formats.");
+                    System.out.println("                    Values: yes, no");
+                    System.out.println("                    Default: no");
+                    System.out.println("--threads           Render the accounts of each output on");
+                    System.out.println("                    this many threads. Leave out the");
+                    System.out.println("                    value to use one thread per processor.");
+                    System.out.println("                    Default: 1");
+                    System.out.println("--text-arena        Keep transaction and split text in one");
+                    System.out.println("                    shared UTF-8 buffer to save memory.");
+                    System.out.println("                    Values: yes, no");
+                    System.out.println("                    Default: no");
+                    System.out.println("--workers           With --batch, run this many jobs at");
+                    System.out.println("                    once. Leave out the value to use one");
+                    System.out.println("                    worker per processor.");
+                    System.out.println("                    Default: 1");
+                    System.out.println("--verify            Read each QIF and IIF output file back");
+                    System.out.println("                    once it is written and check its records,");
+                    System.out.println("                    account totals and transaction GUIDs");
+                    System.out.println("                    against the book, failing if they differ.");
+                    System.out.println("                    Values: yes, no");
+                    System.out.println("                    Default: no");
                     System.out.println();
                     System.out.println("Source: The source GnuCash file name or - for stdin");
                     System.out.println();
@@ -88,6 +226,27 @@ public class GnuCashToQIF
                     System.out.println("Read a GnuCash file and output the QIF file in the 2004 format to stdout:");
                     System.out.print(launchString);
                     System.out.println("--output-format=2004 my.gnucash -");
+                    System.out.println("Read a GnuCash file once and write QIF 2003, QIF 2004 and IIF files:");
+                    System.out.print(launchString);
+                    System.out.println("--output-format=2003=my-2003.qif,2004=my.qif,iif=my.iif my.gnucash");
+                    System.out.println("Write a CSV journal of every split while the file is read:");
+                    System.out.print(launchString);
+                    System.out.println("--streaming --output-format=csv my.gnucash my.csv");
+                    System.out.println("Write the format that a template file describes:");
+                    System.out.print(launchString);
+                    System.out.println("--output-format=template:journal.properties my.gnucash my.txt");
+                    System.out.println("Run the second quarter of the jobs in a manifest on four workers:");
+                    System.out.print(launchString);
+                    System.out.println("--batch=jobs.tsv --workers=4 --shard=2/4 summary.ndjson");
+                    System.out.println("Write each account of a GnuCash file to its own file in a directory:");
+                    System.out.print(launchString);
+                    System.out.println("--account-files my.gnucash my-accounts");
+                    System.out.println("Write one QIF file per year of a GnuCash file:");
+                    System.out.print(launchString);
+                    System.out.println("--shard-by=year my.gnucash my.qif");
+                    System.out.println("Write the transactions added or changed since the last run:");
+                    System.out.print(launchString);
+                    System.out.println("--state-file=my.state my.gnucash my-new.qif");
                     System.out.println("Read a GnuCash file from stdin and write to stdout:");
                     System.out.print(launchString);
                     System.out.println("- -");
@@ -100,42 +259,48 @@ public class GnuCashToQIF
                     System.out.println("  GNU Getopt 1.0.12:   GNU Library General Public License, Version 2");
                     
                     // Exit normally, though indicate error if getopt gave us '?'
-                    System.exit((c == '?')? 1: 0);
-                    break;
+                    return (c == '?')? 1: 0;
                 }
                 case 't' :
                 {
-                    // Get the specified default file format
-                    int format;
-                    try {
-                        String val = opt.getOptarg();
-                        if (val.equalsIgnoreCase("iif"))
-                        	format = -1;
-                        else {
-                            if (val != null)
-                                format = Integer.parseInt(val, 10);
-                            else
-                                format = 2004;
+                    // Get the specified file formats, each with an optional destination file
+                    String entries[] = opt.getOptarg().split(",");
+                    String entry;
+                    OutputFormat format;
+                    File file;
+                    int pos;
+                    if (destinations.size() == 0)
+                        useOutputFile = false;
+                    for (int i = 0; i < entries.length; i++) {
+                        entry = entries[i].trim();
+                        if (entry.length() == 0)
+                            continue;
+                        if ((pos = entry.indexOf('=')) >= 0) {
+                            file = new File(entry.substring(pos + 1));
+                            entry = entry.substring(0, pos);
+                        } else
+                            file = null;
+                        if ((format = getOutputFormat(entry)) == null) {
+                            error = "Unknown output format " + entry;
+                            return 1;
                         }
-                    } catch (NumberFormatException e) {
-                        format = 2004;
-                    }
-                    
-                    // Adjust two-digit years, assuming that <= 69 is really 2069
-                    if (format < 70)
-                        format += 2000;
-                    else if (format < 100)
-                        format += 1900;
-                    else if (format < 1970) {
-                        System.out.println("Unknown year " + format + "; please specify 2003, 2004, or IIF");
-                        System.exit(1);
+                        
+                        // Only one format can use the output file; it also becomes
+                        // the default file format for the file chooser
+                        if (file == null) {
+                            if (useOutputFile)
+                                return reject("Only one output format can leave out its destination file");
+                            outputFileFormat = format;
+                            useOutputFile = true;
+                        }
+                        
+                        // Two outputs in the same place would write over each other
+                        if (file != null && isDestination(file))
+                            return reject(file.getName().equals("-")?
+                                "Only one output format can write to stdout; exiting":
+                                "More than one output format writes to \"" + file.getPath() + "\"; exiting");
+                        destinations.add(new Destination(format, file));
                     }
-                    
-                    // Set the default file format
-                    if (format <= 2003)
-                        program.outputFileFormat = qifFile2003Type;
-                    else
-                        program.outputFileFormat = qifFile2004Type;
                     break;
                 }
                 case 'i' :
@@ -143,9 +308,9 @@ public class GnuCashToQIF
                     // Whether or not we should ignore unused accounts
                     String value = opt.getOptarg();
                     if (value != null && (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equals("0")))
-                        program.conversion.pruneUnusedAccounts = false;
+                        conversion.pruneUnusedAccounts = false;
                     else
-                        program.conversion.pruneUnusedAccounts = true;
+                        conversion.pruneUnusedAccounts = true;
                     break;
                 }
                 case 'm' :
@@ -153,9 +318,197 @@ public class GnuCashToQIF
                     // Whether or not we should extract memos from descriptions
                     String value = opt.getOptarg();
                     if (value != null && (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equals("0")))
-                        program.conversion.splitMemoFromDescription = false;
+                        conversion.splitMemoFromDescription = false;
+                    else
+                        conversion.splitMemoFromDescription = true;
+                    break;
+                }
+                case 'a' :
+                {
+                    // Whether or not we should keep text in the shared text arena
+                    String value = opt.getOptarg();
+                    if (value != null && (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equals("0")))
+                        conversion.text = null;
+                    else
+                        conversion.text = new TextArena();
+                    break;
+                }
+                case 'l' :
+                {
+                    // Whether or not we should map the source file and decode text lazily
+                    String value = opt.getOptarg();
+                    if (value != null && (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equals("0")))
+                        mapSourceFile = false;
                     else
-                        program.conversion.splitMemoFromDescription = true;
+                        mapSourceFile = true;
+                    break;
+                }
+                case 's' :
+                {
+                    // Whether or not we should stream the transactions from a second read
+                    String value = opt.getOptarg();
+                    if (value != null && (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equals("0")))
+                        streaming = false;
+                    else
+                        streaming = true;
+                    break;
+                }
+                case 'f' :
+                {
+                    // Whether or not each account gets written to its own file
+                    String value = opt.getOptarg();
+                    if (value != null && (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equals("0")))
+                        accountFiles = false;
+                    else
+                        accountFiles = true;
+                    break;
+                }
+                case 'b' :
+                {
+                    // The period that the outputs get split by
+                    String value = opt.getOptarg();
+                    shardPeriod = PeriodShards.getPeriod(value);
+                    if (shardPeriod == PeriodShards.NONE)
+                        return reject("Unknown period " + value + "; please specify year, quarter, or month");
+                    break;
+                }
+                case 'n' :
+                {
+                    // Whether or not the imported book gets kept in a snapshot
+                    String value = opt.getOptarg();
+                    if (value != null && (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equals("0")))
+                        useSnapshot = false;
+                    else
+                        useSnapshot = true;
+                    break;
+                }
+                case 'r' :
+                {
+                    // The file that keeps the rendered transactions between runs
+                    fragmentCacheFile = new File(opt.getOptarg());
+                    break;
+                }
+                case 'k' :
+                {
+                    // The cap of the fragment cache in megabytes
+                    String value = opt.getOptarg();
+                    long megabytes;
+                    try {
+                        megabytes = Long.parseLong(value, 10);
+                    } catch (NumberFormatException e) {
+                        megabytes = -1;
+                    }
+                    if (megabytes < 0)
+                        return reject("Unknown cache size " + value + "; please specify a number of megabytes");
+                    fragmentCacheSize = megabytes * 1024 * 1024;
+                    break;
+                }
+                case 'e' :
+                {
+                    // The state of the last export, which limits this one to the changes
+                    stateFile = new File(opt.getOptarg());
+                    break;
+                }
+                case 'q' :
+                {
+                    // Whether or not streamed outputs get rendered and written on their own threads
+                    String value = opt.getOptarg();
+                    if (value != null && (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equals("0")))
+                        conversion.pipeline = false;
+                    else
+                        conversion.pipeline = true;
+                    break;
+                }
+                case 'c' :
+                {
+                    // The manifest of the conversions to run as a batch
+                    batchManifest = new File(opt.getOptarg());
+                    break;
+                }
+                case 'w' :
+                {
+                    // The number of batch jobs that run at once
+                    String value = opt.getOptarg();
+                    int workers;
+                    if (value == null)
+                        workers = Runtime.getRuntime().availableProcessors();
+                    else {
+                        try {
+                            workers = Integer.parseInt(value, 10);
+                        } catch (NumberFormatException e) {
+                            workers = 0;
+                        }
+                    }
+                    if (workers < 1)
+                        return reject("Unknown worker count " + value + "; please specify a number of 1 or more");
+                    batchWorkers = workers;
+                    break;
+                }
+                case 'u' :
+                {
+                    // The share of the batch's jobs that this run takes, as i/n
+                    String value = opt.getOptarg();
+                    int pos = value.indexOf('/');
+                    int index, count;
+                    try {
+                        index = Integer.parseInt(value.substring(0, Math.max(pos, 0)).trim(), 10);
+                        count = Integer.parseInt(value.substring(pos + 1).trim(), 10);
+                    } catch (NumberFormatException e) {
+                        index = count = 0;
+                    }
+                    if (pos < 0 || count < 1 || index < 1 || index > count)
+                        return reject("Unknown shard " + value + "; give it as i/n with i from 1 to n");
+                    shardIndex = index - 1;
+                    shardCount = count;
+                    break;
+                }
+                case 'v' :
+                {
+                    // Whether or not the outputs get read back and checked
+                    String value = opt.getOptarg();
+                    if (value != null && (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equals("0")))
+                        verify = false;
+                    else
+                        verify = true;
+                    break;
+                }
+                case 'z' :
+                {
+                    // Whether or not the outputs get compressed with gzip
+                    String value = opt.getOptarg();
+                    if (value != null && (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equals("0")))
+                        conversion.gzipOutput = false;
+                    else
+                        conversion.gzipOutput = true;
+                    break;
+                }
+                case 'p' :
+                {
+                    // Whether or not the threads write straight into the output file
+                    String value = opt.getOptarg();
+                    if (value != null && (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equals("0")))
+                        conversion.positionalWrites = false;
+                    else
+                        conversion.positionalWrites = true;
+                    break;
+                }
+                case 'j' :
+                {
+                    // The number of threads that render each output
+                    String value = opt.getOptarg();
+                    int threads;
+                    if (value == null)
+                        threads = Runtime.getRuntime().availableProcessors();
+                    else {
+                        try {
+                            threads = Integer.parseInt(value, 10);
+                        } catch (NumberFormatException e) {
+                            threads = 0;
+                        }
+                    }
+                    if (threads < 1)
+                        return reject("Unknown thread count " + value + "; please specify a number of 1 or more");
+                    conversion.renderThreads = threads;
                     break;
                 }
             }
@@ -163,100 +516,246 @@ public class GnuCashToQIF
         
         // Get the non-option argument start element
         c = opt.getOptind();
+        
+        // Run a batch instead if asked to, writing the summary to the output file
+        if (batchManifest != null) {
+            if (!interactive)
+                return reject("A batch job cannot run a batch of its own");
+            return new BatchConversion(batchManifest, batchWorkers, shardIndex, shardCount).run((args.length - c >= 1)? new File(args[c]): null);
+        }
 
+        // Batch jobs run side by side, so none of them may read stdin or
+        // write to stdout, where the summary may go
+        if (!interactive && (args.length - c < 1 || args[c].equals("-") || isDestination(new File("-")) ||
+            (useOutputFile && (args.length - c < 2 || args[c + 1].equals("-")))))
+            return reject("A batch job needs a source file and an output file rather than stdin or stdout");
+        
         // Get the source file
         File sourceFile;
         if (args.length - c >= 1) {
             sourceFile = new File(args[c]);
             if ((!sourceFile.exists() || !sourceFile.canRead()) && !sourceFile.getName().equals("-")) {
-                System.out.println("File \"" + sourceFile.getPath() + "\" not found or could not be read; exiting");
+                error = "File \"" + sourceFile.getPath() + "\" not found or could not be read";
+                System.out.println(error + "; exiting");
                 sourceFile = null;
             }
         } else
-            sourceFile = program.getSourceFile();
+            sourceFile = getSourceFile();
         if (sourceFile == null) {
-            System.exit(1);
-            return;
+            return 1;
+        }
+        
+        // Shards need output files to name themselves after
+        if (shardPeriod != PeriodShards.NONE && !canWriteShards((args.length - c >= 2)? args[c + 1]: null)) {
+            System.err.println("Sharding needs output files on the command line and cannot write account files; writing single files instead");
+            shardPeriod = PeriodShards.NONE;
         }
         
-        // Get the destination file
+        // Account files need QIF output formats and directories to write to
+        if (accountFiles && !canWriteAccountFiles((args.length - c >= 2)? args[c + 1]: null)) {
+            System.err.println("Account files need QIF output formats and output directories on the command line; writing single files instead");
+            accountFiles = false;
+        }
+        
+        // The output file must not be one that an output format writes to
+        if (useOutputFile && args.length - c >= 2 && isDestination(new File(args[c + 1])))
+            return reject(args[c + 1].equals("-")?
+                "Only one output format can write to stdout; exiting":
+                "More than one output format writes to \"" + args[c + 1] + "\"; exiting");
+        
+        // Create the destination files that were given with the output formats
+        Iterator destinationIterator = destinations.iterator();
+        Destination destination;
+        while (destinationIterator.hasNext()) {
+            destination = (Destination) destinationIterator.next();
+            if (destination.file != null && !destination.file.getName().equals("-")) {
+                try {
+                    createOutput(destination.file);
+                } catch (IOException e) {
+                    return reject("Could not create \"" + destination.file.getPath() + "\"; exiting");
+                }
+            }
+        }
+        
+        // Get the destination file unless every output format has its own
         File destFile;
-        if (args.length - c >= 2) {
+        if (!useOutputFile)
+            destFile = null;
+        else if (args.length - c >= 2) {
             destFile = new File(args[c + 1]);
             if (!destFile.getName().equals("-")) {
                 try {
-                    destFile.createNewFile();
+                    createOutput(destFile);
                 } catch (IOException e) {
                     System.out.println("Could not create \"" + destFile.getPath() + "\"; exiting");
                     destFile = null;
                 }
             }
         } else
-            destFile = program.getDestinationFile(sourceFile);
-        if (destFile == null) {
-            System.exit(1);
-            return;
+            destFile = getDestinationFile(sourceFile);
+        if (destFile == null && useOutputFile) {
+            return 1;
         }
         
-        // Read the source file
+        // Streaming reads the source file a second time and only writes QIF
+        boolean streaming = this.streaming;
+        if (streaming && accountFiles) {
+            System.err.println("Streaming does not write account files; reading the whole file instead");
+            streaming = false;
+        } else if (streaming && shardPeriod != PeriodShards.NONE) {
+            System.err.println("Streaming does not write shards; reading the whole file instead");
+            streaming = false;
+        } else if (streaming && stateFile != null) {
+            System.err.println("Streaming does not compare with a state file; reading the whole file instead");
+            streaming = false;
+        } else if (streaming && useSnapshot) {
+            System.err.println("Streaming does not use snapshots; reading the whole file instead");
+            streaming = false;
+        } else if (streaming && !canStream(sourceFile)) {
+            System.err.println("Streaming needs a source file and QIF or journal output formats; reading the whole file instead");
+            streaming = false;
+        }
+        
+        // The pipeline only runs the stages of a streamed export
+        if (conversion.pipeline && !streaming) {
+            System.err.println("The pipeline needs --streaming and an output that can be streamed; running the stages one after another");
+            conversion.pipeline = false;
+        }
+        
+        // Only whole output files of an imported book can be read back
+        if (verify && (streaming || accountFiles || shardPeriod != PeriodShards.NONE)) {
+            System.err.println("Verification only reads back whole output files of an imported book; not verifying");
+            verify = false;
+        }
+        
+        // Load the snapshot of the source file if it is still up to date
+        BookSnapshot snapshot = null;
+        boolean loaded = false;
+        if (useSnapshot && !sourceFile.getName().equals("-")) {
+            try {
+                snapshot = new BookSnapshot(sourceFile, mapSourceFile? Charset.forName("UTF-8"): Charset.defaultCharset());
+                loaded = snapshot.read(conversion);
+            } catch (IOException e) {
+                warnings.add("Could not load the snapshot of " + sourceFile.getPath() + " (" + e.getMessage() + "); reading the source file instead");
+            }
+        }
+        
+        // Read the source file, mapping it into memory if asked to; streaming
+        // only reads the accounts here
         try {
-            Reader fileReader;
-            if (sourceFile.getName().equals("-"))
-                fileReader = new InputStreamReader(System.in);
-            else
-                fileReader = new FileReader(sourceFile);
-            GnuCashData.importGnuCash(fileReader, program.conversion);
-            if (fileReader instanceof FileReader)
-                fileReader.close();
+            if (loaded) {
+                // The snapshot already has the whole book
+            } else if (streaming && mapSourceFile)
+                GnuCashData.importMappedAccounts(sourceFile, conversion);
+            else if (streaming) {
+                // The text arena would keep every transaction's text, so use Strings
+                conversion.text = null;
+                Reader fileReader = new FileReader(sourceFile);
+                try {
+                    GnuCashData.importAccounts(fileReader, conversion);
+                } finally {
+                    fileReader.close();
+                }
+            } else if (mapSourceFile && !sourceFile.getName().equals("-"))
+                GnuCashData.importMappedGnuCash(sourceFile, conversion);
+            else {
+                Reader fileReader;
+                if (sourceFile.getName().equals("-"))
+                    fileReader = new InputStreamReader(System.in);
+                else
+                    fileReader = new FileReader(sourceFile);
+                GnuCashData.importGnuCash(fileReader, conversion);
+                if (fileReader instanceof FileReader)
+                    fileReader.close();
+            }
         } catch (java.io.IOException e) {
             e.printStackTrace();
-            JOptionPane.showMessageDialog(
-                null,
-                "File read error during XML parsing; check stderr",
-                "GnuCash->QIF Data Conversion",
-                JOptionPane.ERROR_MESSAGE);
-            System.exit(2);
-            return;
+            showError("File read error during XML parsing; check stderr", "GnuCash->QIF Data Conversion");
+            return 2;
         } catch (org.xml.sax.SAXException e) {
             e.printStackTrace();
-            JOptionPane.showMessageDialog(
-                null,
-                "Corrupt GnuCash file: Invalid XML; check stderr",
-                "GnuCash->QIF Data Conversion",
-                JOptionPane.ERROR_MESSAGE);
-            System.exit(2);
-            return;
+            showError("Corrupt GnuCash file: Invalid XML; check stderr", "GnuCash->QIF Data Conversion");
+            return 2;
         } catch (Exception e) {
             e.printStackTrace();
-            JOptionPane.showMessageDialog(
-                null,
-                "General Exception " + e.toString() + "; check stderr",
-                "GnuCash->QIF Data Conversion",
-                JOptionPane.ERROR_MESSAGE);
-            System.exit(2);
-            return;
+            showError("General Exception " + e.toString() + "; check stderr", "GnuCash->QIF Data Conversion");
+            return 2;
+        }
+        
+        // Keep the imported book for the next run; without a snapshot, the
+        // next run only has to read the source file again
+        if (snapshot != null && !loaded) {
+            try {
+                snapshot.write(conversion);
+            } catch (IOException e) {
+                warnings.add("Could not save the snapshot " + snapshot.getFile().getPath() + ": " + e.getMessage());
+            }
         }
         
-        // Write the destination file
-        if (!program.writeDestinationFile(destFile)) {
+        // Load the rendered transactions of earlier runs; a cache that cannot
+        // be read only costs the time to render everything again
+        if (fragmentCacheFile != null) {
+            try {
+                conversion.fragmentCache = FragmentCache.read(fragmentCacheFile, fragmentCacheSize);
+            } catch (IOException e) {
+                warnings.add("Could not read the fragment cache " + fragmentCacheFile.getPath() + " (" + e.getMessage() + "); starting an empty one");
+                conversion.fragmentCache = new FragmentCache(fragmentCacheFile, fragmentCacheSize);
+            }
+        }
+        
+        // Leave out the transactions that the last export already wrote
+        TransactionState state = null;
+        List deleted = null;
+        if (stateFile != null) {
+            try {
+                TransactionState previous = TransactionState.read(stateFile);
+                state = TransactionState.of(conversion);
+                deleted = previous.missingFrom(state);
+                conversion = previous.newOrChanged(conversion);
+                warnings.add(conversion.transactions.size() + " of " + state.size()
+                    + " transactions are new or changed and " + deleted.size() + " were deleted since the last export");
+            } catch (IOException e) {
+                System.out.println("Could not read the state file \"" + stateFile.getPath() + "\": " + e.getMessage() + "; exiting");
+                return 2;
+            }
+        }
+        
+        // Write the destination files
+        boolean written;
+        if (shardPeriod != PeriodShards.NONE)
+            written = writeShardFiles(destFile);
+        else if (streaming)
+            written = streamDestinationFiles(sourceFile, destFile);
+        else
+            written = writeDestinationFiles(destFile);
+        if (written && state != null)
+            written = saveState(state, deleted);
+        if (written && conversion.fragmentCache != null)
+            saveFragmentCache();
+        if (!written) {
             String message = "One or more files could not be written; consult the source code or ask for help";
+            if (error == null)
+                error = message;
             if (args.length - c > 0)
                 System.out.println(message);
             else
                 JOptionPane.showMessageDialog(null, message, "GnuCash->QIF Data Conversion", JOptionPane.WARNING_MESSAGE);
-            System.exit(3);
-            return;
+            return 3;
         }
         
+        // Batch jobs leave their warnings to the batch summary
+        if (!interactive)
+            return 0;
+        
         // We're done! Write out any warnings that might have been gathered
-        if (args.length - c >= 2) {
-            Iterator warning = program.conversion.warnings.iterator();
+        if (args.length - c >= 2 || (!useOutputFile && args.length - c >= 1)) {
+            Iterator warning = warnings.iterator();
             while (warning.hasNext()) {
                 System.err.print("Warning: ");
                 System.err.println(warning.next().toString());
             }
         } else {
-            Iterator warning = program.conversion.warnings.iterator();
+            Iterator warning = warnings.iterator();
             StringBuffer messages = new StringBuffer();
             while (warning.hasNext()) {
                 messages.append("  ");
@@ -277,8 +776,7 @@ public class GnuCashToQIF
                 JOptionPane.INFORMATION_MESSAGE);
         }
         
-        // Close the virtual machine
-        System.exit(0);
+        return 0;
     }
     
     /**
@@ -491,54 +989,652 @@ public class GnuCashToQIF
     }
     
     /**
-     * Writes out the QIF file to the given File object
-     * @param destFile The File to write the QIF data to
-     * @return True if the file was written; false if it failed
+     * Writes out every destination file, rendering the output formats at the
+     * same time from the one parsed book
+     * @param destFile The File to write the QIF data to for the output format
+     * that has no destination file of its own, or null if there is none
+     * @return True if every file was written; false if any failed
      */
-    protected boolean writeDestinationFile(File destFile)
+    protected boolean writeDestinationFiles(File destFile)
     {
-        // Go through every account, writing out the data for those with
-        // at least one transaction
+        // Get the outputs and their export contexts
+        final OutputFormat formats[] = getOutputFormats();
+        final File files[] = getOutputFiles(destFile);
+        final ExportContext contexts[] = createContexts(formats, conversion);
+        int count = formats.length;
+        
+        // Render every output on its own thread, reading it back once it
+        // is written while the other outputs are still being rendered
+        final Exception failures[] = new Exception[count];
+        final List problems[] = new List[count];
+        Thread threads[] = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        if (accountFiles)
+                            ((QIF2003OutputFormat) formats[index]).exportAccountFiles(contexts[index], files[index], Charset.defaultCharset());
+                        else {
+                            writeDestinationFile(formats[index], contexts[index], files[index]);
+                            if (verify)
+                                problems[index] = verifyDestinationFile(formats[index], contexts[index], files[index]);
+                        }
+                    } catch (Exception e) {
+                        failures[index] = e;
+                    }
+                }
+            }, "export-" + (i + 1));
+            threads[i].start();
+        }
+        
+        // Wait for the exports, gathering their warnings in order
         boolean failure = false;
-        try
-        {
-            // Create the output file
-            Writer writer;
-            if (destFile.getName().equals("-"))
-                writer = new OutputStreamWriter(System.out);
-            else
-                writer = new FileWriter(destFile);
+        warnings.addAll(conversion.warnings);
+        for (int i = 0; i < count; i++) {
+            while (true) {
+                try {
+                    threads[i].join();
+                    break;
+                } catch (InterruptedException e) {
+                    // Keep waiting; the export cannot be abandoned halfway
+                }
+            }
+            warnings.addAll(contexts[i].warnings);
             
-            // Write out the proper format, defaulting to 2004 if All Files was selected
-            outputFileFormat.export(conversion, writer);
-
-            // Close this file or, if stdout, flush the buffers
-            if (writer instanceof FileWriter)
-                writer.close();
-            else
-                writer.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(
-                null,
-                "Error while writing the output file " + destFile.getPath() + "; check stderr",
-                "Exporting File",
-                JOptionPane.ERROR_MESSAGE);
-            failure = true;
-        } catch (RuntimeException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(
-                null,
-                "A problem came up while exporting the file: " + e.getMessage() + "; check stderr",
-                "Exporting File",
-                JOptionPane.ERROR_MESSAGE);
-            failure = true;
+            // Report the failure, if any
+            if (failures[i] != null) {
+                reportFailure(failures[i], files[i]);
+                failure = true;
+            } else if (problems[i] != null && !problems[i].isEmpty()) {
+                System.out.println("\"" + files[i].getPath() + "\" does not match the book:");
+                Iterator problem = problems[i].iterator();
+                while (problem.hasNext())
+                    System.out.println("  " + problem.next());
+                failure = true;
+            }
         }
 
         // Return whether or not all files were written successfully
         return !failure;
     }
-
+    
+    /**
+     * Writes out every destination file from a second read of the source
+     * file, which importAccounts() read the accounts from. The transactions
+     * are handed to every output as they are read
+     * @param sourceFile The GnuCash file to read the transactions from
+     * @param destFile The File to write the QIF data to for the output format
+     * that has no destination file of its own, or null if there is none
+     * @return True if every file was written; false if any failed
+     */
+    protected boolean streamDestinationFiles(File sourceFile, File destFile)
+    {
+        // Get the outputs and their export contexts
+        OutputFormat formats[] = getOutputFormats();
+        File files[] = getOutputFiles(destFile);
+        ExportContext contexts[] = createContexts(formats, conversion);
+        int count = formats.length;
+        OutputSink writers[] = new OutputSink[count];
+        final StreamingExport exports[] = new StreamingExport[count];
+        PipelinedExport pipeline = null;
+        
+        // Write out the lists, then the transactions as they are read and
+        // finally each output's accounts
+        Exception failure = null;
+        int current = 0;
+        try {
+            for (current = 0; current < count; current++) {
+                writers[current] = createSink(files[current], conversion);
+                if (formats[current] instanceof JournalOutputFormat)
+                    exports[current] = new StreamingJournalExport((JournalOutputFormat) formats[current], contexts[current], writers[current]);
+                else
+                    exports[current] = new StreamingQIFExport((QIF2003OutputFormat) formats[current], contexts[current], writers[current]);
+                exports[current].start();
+            }
+            GnuCashData.TransactionListener listener;
+            if (conversion.pipeline)
+                listener = pipeline = new PipelinedExport(exports);
+            else {
+                listener = new GnuCashData.TransactionListener() {
+                    public void transaction(Transaction transaction) throws IOException {
+                        for (int i = 0; i < exports.length; i++)
+                            exports[i].transaction(transaction);
+                    }
+                };
+            }
+            if (conversion.text != null && conversion.text.getBook() != null)
+                GnuCashData.streamMappedTransactions(conversion, listener);
+            else {
+                Reader fileReader = new FileReader(sourceFile);
+                try {
+                    GnuCashData.streamTransactions(fileReader, conversion, listener);
+                } finally {
+                    fileReader.close();
+                }
+            }
+            if (pipeline != null)
+                pipeline.finish();
+            for (current = 0; current < count; current++)
+                exports[current].finish();
+        } catch (Exception e) {
+            failure = e;
+        }
+        
+        // Stop the rendering threads if reading the book failed
+        if (pipeline != null)
+            pipeline.close();
+        
+        // Close every output, keeping the first failure
+        for (int i = 0; i < count; i++) {
+            try {
+                if (exports[i] != null)
+                    exports[i].close();
+                if (writers[i] != null)
+                    closeSink(writers[i], files[i]);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                    current = i;
+                }
+            }
+        }
+        
+        // Gather the warnings and report the failure, if any
+        warnings.addAll(conversion.warnings);
+        for (int i = 0; i < count; i++)
+            warnings.addAll(contexts[i].warnings);
+        if (failure != null)
+            reportFailure(failure, files[Math.min(current, count - 1)]);
+        return failure == null;
+    }
+    
+    /**
+     * Returns whether the destination files can be streamed from a second
+     * read of the source file, which needs a file that can be read again
+     * and QIF or journal output formats
+     * @param sourceFile The GnuCash file
+     * @return True if the outputs can be streamed
+     */
+    protected boolean canStream(File sourceFile)
+    {
+        if (sourceFile.getName().equals("-"))
+            return false;
+        OutputFormat formats[] = getOutputFormats();
+        for (int i = 0; i < formats.length; i++)
+            if (!(formats[i] instanceof QIF2003OutputFormat) && !(formats[i] instanceof JournalOutputFormat))
+                return false;
+        return true;
+    }
+    
+    /**
+     * Writes out every destination file split into one file per period,
+     * rendering the shards of every output at the same time
+     * @param destFile The File to write the QIF data to for the output format
+     * that has no destination file of its own, or null if there is none
+     * @return True if every file was written; false if any failed
+     */
+    protected boolean writeShardFiles(File destFile)
+    {
+        // Split the book and get an export context for every shard of every output
+        final OutputFormat formats[] = getOutputFormats();
+        File files[] = getOutputFiles(destFile);
+        SortedMap shards = PeriodShards.split(conversion, shardPeriod);
+        List contexts = new ArrayList();
+        List shardFormats = new ArrayList();
+        List shardFiles = new ArrayList();
+        Iterator shardIterator = shards.entrySet().iterator();
+        Map.Entry shard;
+        Conversion book;
+        ExportContext bookContexts[];
+        while (shardIterator.hasNext()) {
+            shard = (Map.Entry) shardIterator.next();
+            book = (Conversion) shard.getValue();
+            
+            // The shards already keep the threads busy
+            book.renderThreads = 1;
+            bookContexts = createContexts(formats, book);
+            for (int i = 0; i < formats.length; i++) {
+                contexts.add(bookContexts[i]);
+                shardFormats.add(formats[i]);
+                shardFiles.add(PeriodShards.getShardFile(files[i], (String) shard.getKey()));
+            }
+        }
+        
+        // Render the shards on a thread per processor or, if more were asked
+        // for, on that many threads
+        int threads = Math.max(Runtime.getRuntime().availableProcessors(), conversion.renderThreads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List results = new ArrayList();
+        try {
+            for (int i = 0; i < contexts.size(); i++) {
+                final OutputFormat format = (OutputFormat) shardFormats.get(i);
+                final ExportContext context = (ExportContext) contexts.get(i);
+                final File file = (File) shardFiles.get(i);
+                results.add(pool.submit(new Callable() {
+                    public Object call() throws IOException {
+                        writeDestinationFile(format, context, file);
+                        return null;
+                    }
+                }));
+            }
+            
+            // Wait for the shards, gathering their warnings in order
+            boolean failure = false;
+            warnings.addAll(conversion.warnings);
+            for (int i = 0; i < results.size(); i++) {
+                while (true) {
+                    try {
+                        ((Future) results.get(i)).get();
+                        break;
+                    } catch (InterruptedException e) {
+                        // Keep waiting; the shard cannot be abandoned halfway
+                    } catch (ExecutionException e) {
+                        reportFailure((e.getCause() instanceof Exception)? (Exception) e.getCause(): e, (File) shardFiles.get(i));
+                        failure = true;
+                        break;
+                    }
+                }
+                warnings.addAll(((ExportContext) contexts.get(i)).warnings);
+            }
+            return !failure;
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    /**
+     * Saves the state of the exported book for the next export, along with
+     * the report of the deleted transactions
+     * @param state The state of the book
+     * @param deleted The GUIDs of the transactions deleted since the last export
+     * @return True if both files were written; false if either failed
+     */
+    protected boolean saveState(TransactionState state, List deleted)
+    {
+        File reportFile = new File(stateFile.getPath() + ".deleted");
+        try {
+            Writer report = new BufferedWriter(new FileWriter(reportFile));
+            try {
+                Iterator guidIterator = deleted.iterator();
+                while (guidIterator.hasNext()) {
+                    report.write((String) guidIterator.next());
+                    report.write('\n');
+                }
+            } finally {
+                report.close();
+            }
+        } catch (IOException e) {
+            reportFailure(e, reportFile);
+            return false;
+        }
+        try {
+            state.write(stateFile);
+        } catch (IOException e) {
+            reportFailure(e, stateFile);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Saves the fragment cache for the next run and reports how much of this
+     * run's output came from it. A cache that cannot be saved only gets a
+     * warning, since the outputs have been written
+     */
+    protected void saveFragmentCache()
+    {
+        FragmentCache cache = conversion.fragmentCache;
+        warnings.add(cache.getHits() + " of " + (cache.getHits() + cache.getMisses()) + " transactions were copied from the fragment cache");
+        try {
+            cache.write();
+        } catch (IOException e) {
+            warnings.add("Could not save the fragment cache " + fragmentCacheFile.getPath() + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Returns whether the outputs can be split into shards, which needs
+     * output files on the command line rather than stdout, and no account files
+     * @param outputName The output from the command line, or null if none was given
+     * @return True if shards can be written
+     */
+    protected boolean canWriteShards(String outputName)
+    {
+        if (accountFiles || (useOutputFile && (outputName == null || outputName.equals("-"))))
+            return false;
+        Iterator destinationIterator = destinations.iterator();
+        Destination destination;
+        while (destinationIterator.hasNext()) {
+            destination = (Destination) destinationIterator.next();
+            if (destination.file != null && destination.file.getName().equals("-"))
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Returns whether every output can be written as account files, which
+     * needs QIF output formats and output directories on the command line
+     * @param outputName The output from the command line, or null if none was given
+     * @return True if account files can be written
+     */
+    protected boolean canWriteAccountFiles(String outputName)
+    {
+        if (useOutputFile && (outputName == null || outputName.equals("-")))
+            return false;
+        Iterator destinationIterator = destinations.iterator();
+        Destination destination;
+        while (destinationIterator.hasNext()) {
+            destination = (Destination) destinationIterator.next();
+            if (destination.file != null && destination.file.getName().equals("-"))
+                return false;
+        }
+        OutputFormat formats[] = getOutputFormats();
+        for (int i = 0; i < formats.length; i++)
+            if (!(formats[i] instanceof QIF2003OutputFormat))
+                return false;
+        return true;
+    }
+    
+    /**
+     * Returns whether an output format was already given a file as its
+     * destination, where - only matches - and stands for stdout
+     * @param file The file
+     * @return True if an output format writes to the file
+     */
+    protected boolean isDestination(File file)
+    {
+        boolean stdout = file.getName().equals("-");
+        Iterator destinationIterator = destinations.iterator();
+        Destination destination;
+        while (destinationIterator.hasNext()) {
+            destination = (Destination) destinationIterator.next();
+            if (destination.file == null || destination.file.getName().equals("-") != stdout)
+                continue;
+            if (stdout || getPath(destination.file).equals(getPath(file)))
+                return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Returns the path of a file with . and .. and links resolved where
+     * possible, so that different ways of naming a file can be compared
+     * @param file The file, which need not exist yet
+     * @return The canonical path, or the absolute path if it cannot be found
+     */
+    protected static String getPath(File file)
+    {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+    
+    /**
+     * Creates an output file or, when writing account files, an output
+     * directory if it does not exist yet. Shards create their own files
+     * @param file The file or directory to create
+     * @throws IOException Thrown if it could not be created
+     */
+    protected void createOutput(File file) throws IOException
+    {
+        if (shardPeriod != PeriodShards.NONE)
+            return;
+        else if (!accountFiles)
+            file.createNewFile();
+        else if (!file.isDirectory() && !file.mkdirs())
+            throw new IOException("Could not create directory " + file.getPath());
+    }
+    
+    /**
+     * Returns the output formats, which is the output file's format if no
+     * output formats were given
+     * @return The output formats in the order that they were given
+     */
+    protected OutputFormat[] getOutputFormats()
+    {
+        int count = (destinations.size() == 0)? 1: destinations.size();
+        OutputFormat formats[] = new OutputFormat[count];
+        Destination destination;
+        for (int i = 0; i < count; i++) {
+            destination = (destinations.size() == 0)? null: (Destination) destinations.get(i);
+            formats[i] = (destination == null || destination.file == null)? outputFileFormat: destination.format;
+        }
+        return formats;
+    }
+    
+    /**
+     * Returns the files that the output formats get written to
+     * @param destFile The File to write the QIF data to for the output format
+     * that has no destination file of its own, or null if there is none
+     * @return The files, in the same order as getOutputFormats()
+     */
+    protected File[] getOutputFiles(File destFile)
+    {
+        int count = (destinations.size() == 0)? 1: destinations.size();
+        File files[] = new File[count];
+        Destination destination;
+        for (int i = 0; i < count; i++) {
+            destination = (destinations.size() == 0)? null: (Destination) destinations.get(i);
+            files[i] = (destination == null || destination.file == null)? destFile: destination.file;
+        }
+        return files;
+    }
+    
+    /**
+     * Creates one export context per output, sharing the account names
+     * between formats that name accounts the same way. The names get
+     * resolved here so that the exports only read them
+     * @param formats The output formats
+     * @param conversion The book to export
+     * @return The export contexts, in the same order as the formats
+     */
+    protected static ExportContext[] createContexts(OutputFormat formats[], Conversion conversion)
+    {
+        ExportContext contexts[] = new ExportContext[formats.length];
+        int j;
+        for (int i = 0; i < formats.length; i++) {
+            for (j = 0; j < i && !sameAccountNames(formats[i], formats[j]); j++);
+            if (j < i)
+                contexts[i] = new ExportContext(contexts[j]);
+            else {
+                contexts[i] = new ExportContext(conversion);
+                formats[i].resolveAccountNames(contexts[i]);
+            }
+        }
+        return contexts;
+    }
+    
+    /**
+     * Tells the user that an output could not be written
+     * @param failure The exception that stopped the export
+     * @param file The file that was being written
+     */
+    protected void reportFailure(Exception failure, File file)
+    {
+        failure.printStackTrace();
+        if (failure instanceof IOException)
+            showError("Error while writing the output file " + file.getPath() + " (" + failure.getMessage() + "); check stderr", "Exporting File");
+        else
+            showError("A problem came up while exporting the file: " + failure.getMessage() + "; check stderr", "Exporting File");
+    }
+    
+    /**
+     * Tells the user why the conversion cannot run and keeps the reason for
+     * the batch summary
+     * @param message The reason
+     * @return The exit status 1
+     */
+    protected int reject(String message)
+    {
+        if (error == null)
+            error = message;
+        System.out.println(message);
+        return 1;
+    }
+    
+    /**
+     * Tells the user about an error in a dialog, unless this conversion is a
+     * batch job, and keeps the first error for the batch summary
+     * @param message The error message
+     * @param title The title of the dialog
+     */
+    protected void showError(String message, String title)
+    {
+        if (error == null)
+            error = message;
+        if (interactive)
+            JOptionPane.showMessageDialog(null, message, title, JOptionPane.ERROR_MESSAGE);
+    }
+    
+    /**
+     * Writes out one output format to the given File object
+     * @param format The output format to write
+     * @param context The export context to use
+     * @param destFile The File to write the data to, or - for stdout
+     * @throws IOException Thrown if the file could not be written
+     */
+    protected static void writeDestinationFile(OutputFormat format, ExportContext context, File destFile) throws IOException
+    {
+        // Write out the format, closing this file or, if stdout, flushing the buffers
+        OutputSink writer = createSink(destFile, context.conversion);
+        try {
+            format.export(context, writer);
+        } finally {
+            closeSink(writer, destFile);
+        }
+    }
+    
+    /**
+     * Reads a written destination file back and checks it against the book
+     * @param format The output format that was written
+     * @param context The export context that it was written with
+     * @param destFile The File that was written, or - for stdout
+     * @return The problems found, which is empty if the file matches the book
+     * or could not be read back
+     * @throws IOException Thrown if the file could not be read
+     */
+    protected static List verifyDestinationFile(OutputFormat format, ExportContext context, File destFile) throws IOException
+    {
+        if (destFile.getName().equals("-") || !ExportVerifier.canVerify(format)) {
+            context.warnings.add("Did not verify " + destFile.getPath() + ", since only QIF and IIF files can be read back");
+            return new ArrayList();
+        }
+        ExportVerifier verifier = new ExportVerifier(context);
+        List problems = verifier.verify(format, destFile);
+        if (problems.isEmpty())
+            context.warnings.add("Verified " + destFile.getPath() + ": " + verifier.getSummary() + " match the book");
+        return problems;
+    }
+    
+    /**
+     * Creates the output sink of a destination file, which gets encoded in
+     * the platform's default charset like FileWriter does
+     * @param destFile The File to write to, or - for stdout
+     * @param conversion The conversion options, which say whether the output
+     * gets compressed, written positionally or written on a thread of its own
+     * @return The output sink
+     * @throws IOException Thrown if the file could not be opened
+     */
+    protected static OutputSink createSink(File destFile, Conversion conversion) throws IOException
+    {
+        boolean stdout = destFile.getName().equals("-");
+        if (conversion.positionalWrites && !conversion.gzipOutput && !conversion.pipeline && !stdout)
+            return new FileSink(destFile);
+        OutputStream out = stdout? (OutputStream) System.out: new FileOutputStream(destFile);
+        if (conversion.pipeline)
+            out = new QueuedOutputStream(out, "write-" + destFile.getName());
+        if (conversion.gzipOutput)
+            return new GzipSink(out, conversion.renderThreads);
+        else
+            return new OutputSink(out);
+    }
+    
+    /**
+     * Closes the output sink of a destination file or, if stdout, flushes it
+     * @param writer The output sink
+     * @param destFile The File that the sink writes to, or - for stdout
+     * @throws IOException Thrown if the file could not be written
+     */
+    protected static void closeSink(OutputSink writer, File destFile) throws IOException
+    {
+        if (destFile.getName().equals("-"))
+            writer.flush();
+        else
+            writer.close();
+    }
+    
+    /**
+     * Returns whether two output formats give accounts the same full names
+     * @param a The first output format
+     * @param b The second output format
+     * @return True if the formats name accounts the same way
+     */
+    protected static boolean sameAccountNames(OutputFormat a, OutputFormat b)
+    {
+        // QIF 2004 names accounts the same way as QIF 2003 and templates the
+        // way that QIF or IIF does; journals use the whole GnuCash names,
+        // which only other journals share
+        if (a instanceof TemplateOutputFormat)
+            a = ((TemplateOutputFormat) a).usesIIFNames()? iifFileType: qifFile2003Type;
+        if (b instanceof TemplateOutputFormat)
+            b = ((TemplateOutputFormat) b).usesIIFNames()? iifFileType: qifFile2003Type;
+        return a.getClass() == b.getClass() ||
+            (a instanceof QIF2003OutputFormat && b instanceof QIF2003OutputFormat);
+    }
+    
+    /**
+     * Returns the output format for the given --output-format value
+     * @param value The format name, which is IIF, CSV, NDJSON, the year of
+     * the Quicken version or template: followed by a template file
+     * @return The output format, or null if the year is unknown or the
+     * template could not be loaded
+     */
+    protected static OutputFormat getOutputFormat(String value)
+    {
+        // Load template files
+        if (value.regionMatches(true, 0, TemplateOutputFormat.PREFIX, 0, TemplateOutputFormat.PREFIX.length())) {
+            try {
+                return TemplateOutputFormat.load(new File(value.substring(TemplateOutputFormat.PREFIX.length())));
+            } catch (IOException e) {
+                System.out.println("Could not load the template " + e.getMessage());
+                return null;
+            }
+        }
+        
+        // Get the file format's year
+        int format;
+        if (value.equalsIgnoreCase("iif"))
+            return iifFileType;
+        else if (value.equalsIgnoreCase("csv"))
+            return csvFileType;
+        else if (value.equalsIgnoreCase("ndjson"))
+            return ndjsonFileType;
+        try {
+            format = Integer.parseInt(value, 10);
+        } catch (NumberFormatException e) {
+            format = 2004;
+        }
+        
+        // Adjust two-digit years, assuming that <= 69 is really 2069
+        if (format < 70)
+            format += 2000;
+        else if (format < 100)
+            format += 1900;
+        else if (format < 1970) {
+            System.out.println("Unknown year " + format + "; please specify 2003, 2004, or IIF");
+            return null;
+        }
+        
+        // Return the file format
+        if (format <= 2003)
+            return qifFile2003Type;
+        else
+            return qifFile2004Type;
+    }
     
     /**
      * Returns a String with the first letter of the input String capitalized
@@ -564,6 +1660,57 @@ public class GnuCashToQIF
     
     /** The QIF format of the destination file */
     protected OutputFormat outputFileFormat = qifFile2004Type;
+
+    /** The output formats given on the command line with their destination files */
+    protected List destinations = new ArrayList();
+    
+    /** Whether the output file from the command line or the user gets written */
+    protected boolean useOutputFile = true;
+
+    /** Whether the source file gets mapped into memory with its text decoded lazily */
+    protected boolean mapSourceFile = false;
+    
+    /** Whether QIF transactions get streamed from a second read of the source file */
+    protected boolean streaming = false;
+    
+    /** Whether each account gets written to its own file in the output directories */
+    protected boolean accountFiles = false;
+    
+    /** The period that the outputs get split by, as specified by the PeriodShards constants */
+    protected int shardPeriod = PeriodShards.NONE;
+    
+    /** The state file of the last export, or null to export every transaction */
+    protected File stateFile = null;
+    
+    /** Whether the imported book gets kept in a snapshot next to the source file */
+    protected boolean useSnapshot = false;
+    
+    /** Whether the written files get read back and checked against the book */
+    protected boolean verify = false;
+    
+    /** The manifest of the conversions to run as a batch, or null to run one conversion */
+    protected File batchManifest = null;
+    
+    /** The number of batch jobs that run at once */
+    protected int batchWorkers = 1;
+    
+    /** The share of the batch's jobs that this run takes, counting from 0 */
+    protected int shardIndex = 0;
+    
+    /** The number of shares that the batch's jobs are split into */
+    protected int shardCount = 1;
+    
+    /** Whether errors are shown in dialogs and the warnings written out; false for batch jobs */
+    protected boolean interactive = true;
+    
+    /** The first error that came up, or null */
+    protected String error = null;
+    
+    /** The file that keeps the rendered transactions between runs, or null to render every transaction */
+    protected File fragmentCacheFile = null;
+    
+    /** The number of bytes that the fragment cache may take */
+    protected long fragmentCacheSize = FragmentCache.DEFAULT_MAX_SIZE;
     
     /** The QIF file <= 2003 format */
     protected static OutputFormat qifFile2003Type = new QIF2003OutputFormat();
@@ -574,6 +1721,15 @@ public class GnuCashToQIF
     /** The IFF file format */
     protected static OutputFormat iifFileType = new IIFOutputFormat();
     
+    /** The CSV split journal format */
+    protected static OutputFormat csvFileType = new JournalOutputFormat(JournalOutputFormat.CSV);
+    
+    /** The NDJSON split journal format */
+    protected static OutputFormat ndjsonFileType = new JournalOutputFormat(JournalOutputFormat.NDJSON);
+    
     /** Our conversion configuration */
     protected Conversion conversion = new Conversion();
+
+    /** The warnings from the import and every export */
+    protected SortedSet warnings = new TreeSet();
 }
@@ -0,0 +1,165 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output sink that writes standard gzip. Every full buffer gets compressed
+ * on its own as one gzip member, and the members are written one after the
+ * other, which any gzip tool reads as a single file. The members can
+ * therefore be compressed on several threads at once, like pigz does
+ */
+class GzipSink extends OutputSink
+{
+    /** The number of uncompressed bytes in each gzip member */
+    public static final int BLOCK_SIZE = 1024 * 1024;
+
+    /** The threads that compress the blocks, or null to compress them on the writing thread */
+    protected ExecutorService pool = null;
+
+    /** The compressed members that have not been written yet, as Futures in output order */
+    protected LinkedList pending = new LinkedList();
+
+    /** The number of members that may be compressing or waiting at once */
+    protected int maxPending;
+
+    /** Whether any member has been written */
+    protected boolean started = false;
+
+    /**
+     * Creates a new sink that writes gzip to the given stream in the
+     * platform's default charset, like FileWriter does
+     * @param out The stream to write the compressed output to
+     * @param threads The number of threads to compress with
+     */
+    public GzipSink(OutputStream out, int threads)
+    {
+        super(out, Charset.defaultCharset(), BLOCK_SIZE);
+        maxPending = threads * 2;
+        if (threads > 1) {
+            final String name = Thread.currentThread().getName() + "-gzip-";
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                protected int created = 0;
+                public synchronized Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, name + (++created));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Compresses a block of output into a member, on one of the threads if
+     * there are any
+     * @param bytes The encoded bytes
+     * @param off The index of the first byte
+     * @param len The number of bytes
+     */
+    protected void drain(byte bytes[], int off, int len) throws IOException
+    {
+        if (pool == null) {
+            writeMember(compress(bytes, off, len));
+            return;
+        }
+
+        // The buffer gets reused, so compress a copy of it
+        final byte block[] = new byte[len];
+        System.arraycopy(bytes, off, block, 0, len);
+        pending.add(pool.submit(new Callable() {
+            public Object call() throws IOException {
+                return compress(block, 0, block.length);
+            }
+        }));
+        while (pending.size() > maxPending)
+            writeMember(takeMember());
+    }
+
+    /**
+     * Waits for the oldest member that is being compressed
+     * @return The compressed member
+     * @throws IOException Thrown if the member could not be compressed
+     */
+    protected byte[] takeMember() throws IOException
+    {
+        Future member = (Future) pending.removeFirst();
+        while (true) {
+            try {
+                return (byte[]) member.get();
+            } catch (InterruptedException e) {
+                // Keep waiting; the members have to be written in order
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException("Could not compress the output: " + e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Writes a compressed member to the stream
+     * @param member The compressed member
+     * @throws IOException Thrown if the stream could not be written to
+     */
+    protected void writeMember(byte member[]) throws IOException
+    {
+        out.write(member);
+        started = true;
+    }
+
+    /**
+     * Compresses bytes into a gzip member of their own
+     * @param bytes The bytes to compress
+     * @param off The index of the first byte
+     * @param len The number of bytes
+     * @return The gzip member
+     * @throws IOException Thrown if the bytes could not be compressed
+     */
+    protected static byte[] compress(byte bytes[], int off, int len) throws IOException
+    {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(len / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(member, 64 * 1024);
+        gzip.write(bytes, off, len);
+        gzip.finish();
+        return member.toByteArray();
+    }
+
+    /**
+     * Ends the current member and writes out every member, so that the output
+     * so far is complete gzip, and flushes the stream. An empty output still
+     * gets one empty member
+     */
+    public void flush() throws IOException
+    {
+        drainBuffer();
+        while (!pending.isEmpty())
+            writeMember(takeMember());
+        if (!started)
+            writeMember(compress(buffer, 0, 0));
+        out.flush();
+    }
+
+    /**
+     * Writes out every member, closes the stream and stops the threads
+     */
+    public void close() throws IOException
+    {
+        try {
+            flush();
+            out.close();
+        } finally {
+            if (pool != null)
+                pool.shutdownNow();
+        }
+    }
+}
@@ -2,13 +2,10 @@ package net.sourceforge.gnucashtoqif;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.Writer;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.text.NumberFormat;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Locale;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
 
@@ -21,84 +18,79 @@ import javax.swing.filechooser.FileFilter;
  */
 public class IIFOutputFormat implements OutputFormat
 {
-    /** A number formatter for the currency that gets written to the IIF file */
-    protected static final NumberFormat currencyFormat = new DecimalFormat("0.00", new DecimalFormatSymbols(Locale.US));
-
     /**
-	 * Writes out the state in the given Conversion object to the given Writer
+	 * Writes out the state in the given export context to the given Writer
 	 * using the IIF format
-	 * @param conversion The input conversion parameters
-	 * @param writer The output Writer
+	 * @param context The export context, which holds the input conversion parameters
+	 * @param writer The output sink
 	 * @throws IOException Thrown when an IOException occurs during the conversion
 	 */
-	public void export(Conversion conversion, Writer writer) throws IOException
+	public void export(ExportContext context, OutputSink writer) throws IOException
 	{
 		// Ensure that all accounts have getFullName() called
-		updateFullNames(conversion);
+		updateFullNames(context);
 		
 		// Create a Set of sorted accounts
-	    conversion.accountSet = new TreeSet(new AccountComparator());
-	    conversion.accountSet.addAll(conversion.accounts.values());
-	    
-	    // Validate the transactions
-	    validateTransactions(conversion);
+	    context.accountSet = new TreeSet(new AccountComparator(context));
+	    context.accountSet.addAll(context.conversion.accounts.values());
 
 		// Write out the account list
-		writeAccountList(conversion, writer);
+		writeAccountList(context, writer);
 		
 		// Write out the vendor list
-		writeVendorList(conversion, writer);
+		writeVendorList(context, writer);
 		
 		// Write out the transactions for each account
-		writeTransactions(conversion, writer);
+		writeTransactions(context, writer);
+		
+		// Tell the user about text that would have broken up its line
+		if (context.rewrittenFields > 0)
+			context.warnings.add(context.rewrittenFields + " IIF fields had tabs, line breaks or other control characters, which were replaced with spaces");
 	}
 	
 	/**
-	 * Writes out the account list in the given Conversion object to the given Writer
+	 * Writes out the account list in the given export context to the given Writer
 	 * using the IIF format given at http://www.datablox.com/qb/qbaccnt.htm
-	 * @param conversion The input conversion parameters
-	 * @param writer The output Writer
+	 * @param context The export context
+	 * @param writer The output sink
 	 * @throws IOException Thrown when an IOException occurs during the conversion
 	 */
-	protected static void writeAccountList(Conversion conversion, Writer writer) throws IOException
+	protected static void writeAccountList(ExportContext context, OutputSink writer) throws IOException
 	{
 		// Write the table header
 		writer.write("!ACCNT\tACCNTTYPE\tACCNUM\tNAME\tDESC\tBANKNUM\r\n");
 		
 		// Write out the account list
-		Iterator accountIterator = conversion.accountSet.iterator();
+		Iterator accountIterator = context.accountSet.iterator();
 		Account currentAccount;
 		while (accountIterator.hasNext()) {
 			currentAccount = (Account) accountIterator.next();
 
 			// Set this account's type
-			setAccountType(currentAccount);
+			setAccountType(context, currentAccount);
 			
 			// Write the account line in the above column order
 			writer.write("ACCNT\t");
 			writer.write(currentAccount.getIIFTypeName());
 			writer.write('\t');
-			if (currentAccount.code != null)
-			    writer.write(currentAccount.code);
+			writeField(context, writer, currentAccount.code);
 			writer.write('\t');
-			writer.write(getFullName(currentAccount, conversion.accounts));
+			writeField(context, writer, context.getFullName(currentAccount));
 			writer.write('\t');
-			if (currentAccount.description != null)
-			    writer.write(currentAccount.description);
+			writeField(context, writer, currentAccount.description);
 			writer.write('\t');
-			if (currentAccount.notes != null)
-				writer.write(currentAccount.notes);  // FIXME: filter out tabs and other invalid characters!
+			writeField(context, writer, currentAccount.notes);
 			writer.write("\r\n");
 		}
 	}
 	
 	/**
-	 * Writes out the transactions in the given Conversion object for the given
+	 * Writes out the transactions in the given export context for the given
 	 * Account to the given Writer
 	 * using the IIF format
 	 * http://www.datablox.com/qb/qbtran.htm
-	 * @param conversion The input conversion parameters
-	 * @param writer The output Writer
+	 * @param context The export context
+	 * @param writer The output sink
 	 * @param invoice The invoice to write transaction information for, which is
 	 * only non-null for invoices
 	 * @param account The account to write transaction information for
@@ -106,46 +98,30 @@ public class IIFOutputFormat implements OutputFormat
 	 * @param export The export strategy to use, which defines the output format
 	 * @throws IOException Thrown when an IOException occurs during the conversion
 	 */
-	protected static void writeTransactions(Conversion conversion, Writer writer, Invoice invoice, Account account, Iterator transIterator, TransactionExport export) throws IOException
+	protected static void writeTransactions(ExportContext context, OutputSink writer, Invoice invoice, Account account, Iterator transIterator, TransactionExport export) throws IOException
 	{
         // Write out every transaction
+        Conversion conversion = context.conversion;
         Split splits[] = new Split[2];
         int i, acctSplit;
         String memo, splitMemo, alternativeMemo;
-        StringBuffer category = new StringBuffer();
         Account lastAccount = null;
         boolean primaryAccount;
+        int firstPrimarySplit, exportedSplits;
         Transaction currentTransaction;
-        Map uniqueSplits = new HashMap();
-        Split currentSplit, existingSplit;
-        Iterator splitIterator;
+        CombinedSplits uniqueSplits = new CombinedSplits();
         while (transIterator.hasNext()) {
             currentTransaction = (Transaction) transIterator.next();
             
             // Combine splits to the same account together
-            splitIterator = currentTransaction.splits.iterator();
-            uniqueSplits.clear();
-            while (splitIterator.hasNext()) {
-            	currentSplit = (Split) splitIterator.next();
-            	
-            	// Add splits that affect a unique account
-            	if ((existingSplit = (Split) uniqueSplits.get(currentSplit.accountGuid)) == null)
-            		uniqueSplits.put(currentSplit.accountGuid, currentSplit);
-            	
-            	// Combine duplicate splits and notify the user
-            	else {
-            		conversion.warnings.add("Combined multiple splits in transaction " + currentTransaction + " that all pointed to " + ((Account) conversion.accounts.get(existingSplit.accountGuid)).name);
-            		existingSplit.amount += currentSplit.amount;
-            		splitIterator.remove();
-            	}
-            }
+            uniqueSplits.combine(context, currentTransaction);
             
             // Discover if this account is the last account listed in the splits
-            splits = (Split[]) currentTransaction.splits.toArray(splits);
+            splits = uniqueSplits.toArray(splits);
             acctSplit = -1;
-            for (i = currentTransaction.splits.size() - 1; acctSplit == -1 && i >= 0; i--) {
+            for (i = uniqueSplits.size() - 1; acctSplit == -1 && i >= 0; i--) {
                 lastAccount = (Account) conversion.accounts.get(((Split) splits[i]).accountGuid);
-                if (lastAccount != null && !lastAccount.isDoubleEntry())
+                if (lastAccount != null && !context.isDoubleEntry(lastAccount))
                     acctSplit = i;
             }
             if (acctSplit >= 0 && !lastAccount.guid.equalsIgnoreCase(account.guid))
@@ -160,39 +136,30 @@ public class IIFOutputFormat implements OutputFormat
             // record in a simple two-account transaction
             alternativeMemo = null;
 
-            // Set the primary split's account
-            if (acctSplit >= 0)
-            	((Split) splits[acctSplit]).account = (Account) conversion.accounts.get(((Split) splits[acctSplit]).accountGuid);
-            
-            // If this is the transaction's primary account, then write out the full detail
-            category.setLength(0);
+            // If this is the transaction's primary account, then gather the memos and
+            // count the splits that get exported along with the account's split
+            firstPrimarySplit = acctSplit;
+            exportedSplits = 0;
             if (primaryAccount)
             {
                 for (i = 0; i < splits.length && splits[i] != null; i++)
                 {
                     // Get the split memo
-                    splitMemo = ((Split) splits[i]).memo;
+                    splitMemo = ((Split) splits[i]).getMemo(conversion.text);
                     
                     // If this is split is the current account's split, then use
                     // its data for the overall transaction details
                     if (((Split) splits[i]).accountGuid.equalsIgnoreCase(account.guid)) {
                         acctSplit = i;
-                        
-                        // Set the account if it's not already set
-                        if (((Split) splits[acctSplit]).account == null)
-                    	    ((Split) splits[acctSplit]).account = (Account) conversion.accounts.get(((Split) splits[acctSplit]).accountGuid);
 
                         // Use this split's memo as the main memo if one exists
                         if (splitMemo != null && splitMemo.length() > 0)
                             memo = splitMemo;
                     } else
                     {
-                        // Set the account if it's not already set
-                        if (((Split) splits[i]).account == null)
-                    	    ((Split) splits[i]).account = (Account) conversion.accounts.get(((Split) splits[i]).accountGuid);
-
-                        // Write out the split detail
-                    	export.exportSplitInformation(conversion, category, currentTransaction, (acctSplit >= 0)? (Split) splits[acctSplit]: null, (Split) splits[i], i + 1);
+                        // The first exported split settles the transaction type
+                        if (exportedSplits++ == 0)
+                            export.getTransactionType(context, currentTransaction, (acctSplit >= 0)? (Split) splits[acctSplit]: null);
 
                         // Use this split's memo as the alternative memo if less than two splits exist
                         if (splits.length <= 2 && splitMemo != null && splitMemo.length() > 0)
@@ -207,8 +174,8 @@ public class IIFOutputFormat implements OutputFormat
             
             // If we have no splits, then the transaction "moved" money from an account to
             // the same account. Warn the user and don't convert this transaction
-            if (category.length() == 0) {
-            	conversion.warnings.add("Ignoring transaction to/from same account " + getFullName(((Split) splits[acctSplit]).account, conversion.accounts) + ": " + currentTransaction);
+            if (exportedSplits == 0) {
+            	context.warnings.add("Ignoring transaction to/from same account " + context.getFullName(((Split) splits[acctSplit]).account) + ": " + currentTransaction.toString(conversion.text));
             	continue;
             }
             
@@ -217,19 +184,222 @@ public class IIFOutputFormat implements OutputFormat
                 memo = alternativeMemo;
             
             // Write the transaction information
-            export.writeTransactionInformation(conversion, writer, currentTransaction, memo, (Split) splits[acctSplit], category.toString());
+            export.writeTransactionInformation(context, writer, currentTransaction, memo, (Split) splits[acctSplit]);
+            
+            // Write out the split detail straight after it, passing each split
+            // the primary split that was known when the split came up
+            int primarySplit = firstPrimarySplit;
+            for (i = 0; i < splits.length && splits[i] != null; i++) {
+                if (((Split) splits[i]).accountGuid.equalsIgnoreCase(account.guid))
+                    primarySplit = i;
+                else
+                	export.exportSplitInformation(context, writer, currentTransaction, (primarySplit >= 0)? (Split) splits[primarySplit]: null, (Split) splits[i], i + 1);
+            }
+            export.writeTransactionEnd(context, writer, currentTransaction);
         }
 	}
 	
+	/**
+	 * Returns whether a transaction has a primary account, which is the last
+	 * account in its splits that is not a double-entry account. Transactions
+	 * without one get written out in every account that they affect
+	 * @param context The export context, which has the account types set
+	 * @param transaction The transaction to check
+	 * @return True if the transaction is only written out in its primary account
+	 */
+	protected static boolean hasPrimaryAccount(ExportContext context, Transaction transaction)
+	{
+        Iterator splitIterator = transaction.splits.iterator();
+        Account account;
+        while (splitIterator.hasNext()) {
+            account = (Account) context.conversion.accounts.get(((Split) splitIterator.next()).accountGuid);
+            if (account != null && !context.isDoubleEntry(account))
+                return true;
+        }
+        return false;
+	}
+	
+	/**
+	 * Settles the transaction types of the transactions that are written out
+	 * in more than one account. The first account that writes one of these
+	 * sets its type for the others, so this goes through the accounts in the
+	 * order that they get written out, just like a serial export does. This
+	 * lets the accounts be written out on several threads afterwards
+	 * @param context The export context, which has the account types set
+	 * @param export The export strategy that gives the transaction types
+	 */
+	protected static void settleSharedTransactionTypes(ExportContext context, TransactionExport export)
+	{
+		Iterator accountIterator = context.accountSet.iterator();
+		Iterator transIterator;
+		Account currentAccount;
+		Transaction currentTransaction;
+        CombinedSplits uniqueSplits = new CombinedSplits();
+        Split split;
+        int i, acctSplit;
+		while (accountIterator.hasNext()) {
+			currentAccount = (Account) accountIterator.next();
+			transIterator = currentAccount.trans.iterator();
+			while (transIterator.hasNext()) {
+				currentTransaction = (Transaction) transIterator.next();
+				if (context.getTransactionType(currentTransaction) != null || hasPrimaryAccount(context, currentTransaction))
+					continue;
+				
+				// Give the first exported split the primary split that
+				// writeTransactions() would give it
+				uniqueSplits.combine(context, currentTransaction);
+				acctSplit = -1;
+				for (i = 0; i < uniqueSplits.size(); i++) {
+					split = uniqueSplits.get(i);
+					if (split.accountGuid.equalsIgnoreCase(currentAccount.guid))
+						acctSplit = i;
+					else {
+						// Without a primary split, the export fails on this
+						// transaction, so later accounts must not settle anything
+						if (acctSplit < 0)
+							return;
+						export.getTransactionType(context, currentTransaction, uniqueSplits.get(acctSplit));
+						break;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Scratch space of one export that combines the splits of a transaction
+	 * that go to the same account. The transaction's own splits are left
+	 * alone; only a combined split is a copy. Most transactions have two
+	 * splits, so accounts are looked up by comparing them one by one, and
+	 * only transactions with many splits use a map
+	 */
+	protected static class CombinedSplits
+	{
+		/** The most splits that get compared one by one */
+		protected static final int LINEAR_SCAN_LIMIT = 8;
+		
+		/** The combined splits, one per account, in the order that the accounts first come up */
+		protected Split splits[] = new Split[LINEAR_SCAN_LIMIT];
+		
+		/** Whether each combined split is a copy already */
+		protected boolean copies[] = new boolean[LINEAR_SCAN_LIMIT];
+		
+		/** The number of combined splits */
+		protected int size = 0;
+		
+		/** Map of account GUIDs to indexes in splits, for transactions with many splits */
+		protected Map indexes = new HashMap();
+		
+		/**
+		 * Combines the splits of a transaction, replacing those of the last one
+		 * @param context The export context, which receives a warning for every
+		 * combined split
+		 * @param transaction The transaction whose splits get combined
+		 */
+		public void combine(ExportContext context, Transaction transaction)
+		{
+			List transactionSplits = transaction.splits;
+			int count = transactionSplits.size();
+			boolean linear = count <= LINEAR_SCAN_LIMIT;
+			Split currentSplit;
+			Integer existingIndex;
+			int index;
+			for (int i = 0; i < size; i++)
+				splits[i] = null;
+			size = 0;
+			if (!linear) {
+				indexes.clear();
+				if (splits.length < count) {
+					splits = new Split[count];
+					copies = new boolean[count];
+				}
+			}
+			for (int i = 0; i < count; i++) {
+				currentSplit = (Split) transactionSplits.get(i);
+				
+				// Find the split of the same account, if any
+				if (linear) {
+					for (index = 0; index < size && !currentSplit.accountGuid.equals(splits[index].accountGuid); index++);
+				} else if ((existingIndex = (Integer) indexes.get(currentSplit.accountGuid)) != null)
+					index = existingIndex.intValue();
+				else {
+					index = size;
+					indexes.put(currentSplit.accountGuid, Integer.valueOf(index));
+				}
+				
+				// Add splits that affect a unique account
+				if (index == size) {
+					splits[size] = currentSplit;
+					copies[size++] = false;
+				}
+				
+				// Combine duplicate splits and notify the user
+				else {
+					if (!copies[index]) {
+						splits[index] = splits[index].copy();
+						copies[index] = true;
+					}
+					context.warnings.add("Combined multiple splits in transaction " + transaction.toString(context.conversion.text) + " that all pointed to " + ((Account) context.conversion.accounts.get(currentSplit.accountGuid)).name);
+					splits[index].amount += currentSplit.amount;
+				}
+			}
+		}
+		
+		/**
+		 * Returns the number of combined splits
+		 * @return The number of combined splits
+		 */
+		public int size() {
+			return size;
+		}
+		
+		/**
+		 * Returns a combined split
+		 * @param index The index of the split
+		 * @return The split
+		 */
+		public Split get(int index) {
+			return splits[index];
+		}
+		
+		/**
+		 * Copies the combined splits into an array the way List.toArray() does:
+		 * an array with room to spare is reused and gets a null after the last
+		 * split, and a new array of exactly the right size replaces one that
+		 * is too small
+		 * @param array The array to reuse, if it is large enough
+		 * @return The array with the combined splits
+		 */
+		public Split[] toArray(Split array[])
+		{
+			if (array.length < size)
+				array = new Split[size];
+			System.arraycopy(splits, 0, array, 0, size);
+			if (array.length > size)
+				array[size] = null;
+			return array;
+		}
+	}
+	
 	/**
 	 * Interface used by the exportTransactions() method to specify the export format
 	 */
 	protected static interface TransactionExport
 	{
 		/**
-		 * Export split information into the given output StringBuffer
-		 * @param conversion The conversion information object
-		 * @param output The destination of the export
+		 * Returns the transaction type given the transaction and primary
+		 * split
+		 * @param context The export context
+		 * @param transaction The transaction to get the type of
+		 * @param primarySplit The primary split of the given transaction
+		 * @return The IIF transaction type for this transaction
+		 */
+		public String getTransactionType(ExportContext context, Transaction transaction, Split primarySplit);
+		
+		/**
+		 * Writes out the information of one split
+		 * @param context The export context
+		 * @param writer The sink to write the split information to
       	 * @param invoice The invoice to write transaction information for, which is
 	     * only non-null for invoices
 		 * @param account The account containing the split
@@ -238,24 +408,33 @@ public class IIFOutputFormat implements OutputFormat
 		 * @param split The split to export, which should never equal primarySplit
 		 * (the primary split is exported in writeTransactionInformation)
 		 * @param splitID The ID of the split to export
+		 * @throws IOException Thrown if an IOException arises during export
 		 */
-		public void exportSplitInformation(Conversion conversion, StringBuffer output, Transaction transaction, Split primarySplit, Split split, int splitID);
+		public void exportSplitInformation(ExportContext context, OutputSink writer, Transaction transaction, Split primarySplit, Split split, int splitID) throws IOException;
 		
 		/**
-		 * Writes the transaction information to the given Writer
-		 * @param conversion The conversion information object
-		 * @param writer The Writer to write the transaction information to
+		 * Writes the transaction information to the given Writer, which is
+		 * followed by the information of its splits
+		 * @param context The export context
+		 * @param writer The sink to write the transaction information to
       	 * @param invoice The invoice to write transaction information for, which is
 	     * only non-null for invoices
 		 * @param account The account that the transaction belongs to
 		 * @param transaction The transaction to export
 		 * @param memo The memo to use if not null
 		 * @param primarySplit The primary split of the given transaction
-		 * @param splits The exported String of splits that resulted from calls
-		 * to exportSplitInformation on every split
 		 * @throws IOException Thrown if an IOException arises during export
 		 */
-		public void writeTransactionInformation(Conversion conversion, Writer writer, Transaction transaction, String memo, Split primarySplit, String splits) throws IOException;
+		public void writeTransactionInformation(ExportContext context, OutputSink writer, Transaction transaction, String memo, Split primarySplit) throws IOException;
+		
+		/**
+		 * Ends a transaction after the information of its splits
+		 * @param context The export context
+		 * @param writer The sink to write to
+		 * @param transaction The transaction to end
+		 * @throws IOException Thrown if an IOException arises during export
+		 */
+		public void writeTransactionEnd(ExportContext context, OutputSink writer, Transaction transaction) throws IOException;
 	}
 	
 	/**
@@ -265,38 +444,42 @@ public class IIFOutputFormat implements OutputFormat
 	{
 		/**
 		 * Returns the transaction type given the transaction and primary
-		 * split. This method caches its value for fast subsequent lookups
+		 * split. This method caches its value in the export context for fast
+		 * subsequent lookups
+		 * @param context The export context
 		 * @param transaction The transaction to get the type of
 		 * @param primarySplit The primary split of the given transaction
 		 * @return The IIF transaction type for this transaction
 		 */
-		public String getTransactionType(Transaction transaction, Split primarySplit)
+		public String getTransactionType(ExportContext context, Transaction transaction, Split primarySplit)
 		{
 			// Return the cached value if present
-			if (transaction.exportTransactionType != null)
-				return transaction.exportTransactionType;
+			String type = context.getTransactionType(transaction);
+			if (type != null)
+				return type;
 			
 			// Perform action-based checks if we have an action on this split
-			if (primarySplit.action != null)
+			String action = primarySplit.getAction(context.conversion.text);
+			if (action != null)
 			{
 				// Handle bill payments (they have to be CC or CHECK due to a
 				// bug in QuickBooks >= 2003 :-(
-				if (primarySplit.action.equalsIgnoreCase("payment")) {
+				if (action.equalsIgnoreCase("payment")) {
 					if (primarySplit.account.typeName.equalsIgnoreCase("credit"))
-						return transaction.exportTransactionType = "CC";
+						return context.setTransactionType(transaction, "CC");
 					else
-					    return transaction.exportTransactionType = "CHECK";
+					    return context.setTransactionType(transaction, "CHECK");
 				}
 
 				// Handle bills
-				else if (primarySplit.action.equalsIgnoreCase("bill"))
+				else if (action.equalsIgnoreCase("bill"))
 				{
 					// If the money is going into the primary, then it's a refund;
 					// otherwise, it's a bill
 					if (primarySplit.amount > 0)
-						return transaction.exportTransactionType = "BILL REFUND";
+						return context.setTransactionType(transaction, "BILL REFUND");
 					else
-					    return transaction.exportTransactionType = "BILL";
+					    return context.setTransactionType(transaction, "BILL");
 				}
 			}
 			
@@ -310,9 +493,9 @@ public class IIFOutputFormat implements OutputFormat
 				{
 					// Money out is a check and money in is a deposit
 				    if (primarySplit.amount > 0)
-				    	return transaction.exportTransactionType = "DEP";
+				    	return context.setTransactionType(transaction, "DEP");
 				    else
-				    	return transaction.exportTransactionType = "CHECK";
+				    	return context.setTransactionType(transaction, "CHECK");
 				}
 				
 				// Credit card accounts
@@ -320,20 +503,20 @@ public class IIFOutputFormat implements OutputFormat
 				{
 					// An increase is a charge and a decrease is a credit
 					if (primarySplit.amount > 0)
-						return transaction.exportTransactionType = "CC";
+						return context.setTransactionType(transaction, "CC");
 					else
-						return transaction.exportTransactionType = "CC CRED";
+						return context.setTransactionType(transaction, "CC CRED");
 				}
 			}
 			
 			// By default, this is a general journal entry
-			return transaction.exportTransactionType = "GENJRNL";
+			return context.setTransactionType(transaction, "GENJRNL");
 		}
 		
 		/**
-		 * Export split information into the given output StringBuffer
-		 * @param conversion The conversion information object
-		 * @param output The destination of the export
+		 * Writes out the information of one split
+		 * @param context The export context
+		 * @param writer The sink to write the split information to
       	 * @param invoice The invoice to write transaction information for, which is
 	     * only non-null for invoices
 		 * @param account The account containing the split
@@ -342,24 +525,26 @@ public class IIFOutputFormat implements OutputFormat
 		 * @param split The split to export, which should never equal primarySplit
 		 * (the primary split is exported in writeTransactionInformation)
 		 * @param splitID The ID of the split to export
+		 * @throws IOException Thrown if an IOException arises during export
 		 */
-		public void exportSplitInformation(Conversion conversion, StringBuffer output, Transaction currentTransaction, Split primarySplit, Split split, int splitID)
+		public void exportSplitInformation(ExportContext context, OutputSink writer, Transaction currentTransaction, Split primarySplit, Split split, int splitID) throws IOException
 		{
-			output.append("SPL\t");
-			output.append(splitID + "\t");
-			output.append(getTransactionType(currentTransaction, primarySplit));
-			output.append('\t');
-			output.append(gnucashDateToIIFDate(currentTransaction.datePosted));
-			output.append('\t');
-			output.append(getFullName(split.account, conversion.accounts));
-			output.append('\t');
+			Conversion conversion = context.conversion;
+			writer.write("SPL\t");
+			writer.appendInt(splitID).append('\t');
+			writer.write(getTransactionType(context, currentTransaction, primarySplit));
+			writer.write('\t');
+			DateCache.MONTH_DAY_YEAR.append(writer, currentTransaction.datePosted);
+			writer.write('\t');
+			writeFullName(writer, context, split.account);
+			writer.write('\t');
 			// NAME
-			output.append('\t');
-			output.append(currencyFormat.format(split.amount));
-			output.append('\t');
+			writer.write('\t');
+			writer.appendAmount(split.amount);
+			writer.write('\t');
             
         	// If this has a lot GUID, ...
-			String memo = split.memo;
+			String memo = split.getMemo(conversion.text);
         	if (split.lotGuid != null)
         	{
         		// Resolve the lot GUID to an invoice
@@ -371,67 +556,67 @@ public class IIFOutputFormat implements OutputFormat
         			// Set the document number on this split to the
         			// document number of the bill to help QuickBooks
         			// establish the link between the two
-        			output.append(invoice.invoiceTransaction.ref);
+        			String ref = invoice.invoiceTransaction.getRef(conversion.text);
+        			writeField(context, writer, String.valueOf(ref));
         			
         			// If the memo is blank, use the bill reference
         			if (memo == null)
-        				memo = invoice.invoiceTransaction.ref;
+        				memo = ref;
         		}
         		
         		// If the invoice was not found, give the user a warning
         		else
-        			conversion.warnings.add("Invoice not found in transaction " + currentTransaction + " in account " + primarySplit.account.name);
+        			context.warnings.add("Invoice not found in transaction " + currentTransaction.toString(conversion.text) + " in account " + primarySplit.account.name);
         	}
         	
-			output.append('\t');
-			if (memo != null)
-				output.append(memo);  // FIXME: remove \n, \t, and other invalid chars!
-			output.append('\t');
+			writer.write('\t');
+			writeField(context, writer, memo);
+			writer.write('\t');
             if (split.reconciliationStatus == 'c' || split.reconciliationStatus == 'y')
-            	output.append('T');
-            output.append("\r\n");
+            	writer.write('T');
+            writer.write("\r\n");
 		}
 
 		/**
 		 * Writes the transaction information to the given Writer
-		 * @param conversion The conversion information object
-		 * @param writer The Writer to write the transaction information to
+		 * @param context The export context
+		 * @param writer The sink to write the transaction information to
       	 * @param invoice The invoice to write transaction information for, which is
 	     * only non-null for invoices
 		 * @param account The account that the transaction belongs to
 		 * @param currentTransaction The transaction to export
 		 * @param memo The memo to use if not null
 		 * @param primarySplit The primary split of the given transaction
-		 * @param splits The exported String of splits that resulted from calls
-		 * to exportSplitInformation on every split
 		 * @throws IOException Thrown if an IOException arises during export
 		 */
-		public void writeTransactionInformation(Conversion conversion, Writer writer, Transaction currentTransaction, String memo, Split primarySplit, String splits) throws IOException
+		public void writeTransactionInformation(ExportContext context, OutputSink writer, Transaction currentTransaction, String memo, Split primarySplit) throws IOException
 		{
 			// Write out the transaction information
+			Conversion conversion = context.conversion;
 			writer.write("TRNS\t");
-			writer.write(currentTransaction.guid + "\t");
-			writer.write(getTransactionType(currentTransaction, primarySplit));
+			writer.write(currentTransaction.guid);
 			writer.write('\t');
-			writer.write(gnucashDateToIIFDate(currentTransaction.datePosted));
+			writer.write(getTransactionType(context, currentTransaction, primarySplit));
 			writer.write('\t');
-			writer.write(getFullName(primarySplit.account, conversion.accounts));
+			DateCache.MONTH_DAY_YEAR.append(writer, currentTransaction.datePosted);
 			writer.write('\t');
-			writer.write(currentTransaction.description);
+			writeFullName(writer, context, primarySplit.account);
 			writer.write('\t');
-            writer.write(currencyFormat.format(primarySplit.amount));
+			if (writer.appendField(currentTransaction.description, conversion.text, currentTransaction.descriptionText))
+				context.rewrittenFields++;
 			writer.write('\t');
-			if (currentTransaction.ref != null)
-		        writer.write(currentTransaction.ref);
+            writer.appendAmount(primarySplit.amount);
 			writer.write('\t');
-			if (memo != null)
-				writer.write(memo);
+			if (writer.appendField(currentTransaction.ref, conversion.text, currentTransaction.refText))
+				context.rewrittenFields++;
+			writer.write('\t');
+			writeField(context, writer, memo);
 			writer.write('\t');
             if (primarySplit.reconciliationStatus == 'c' || primarySplit.reconciliationStatus == 'y')
             	writer.write('T');
             writer.write('\t');
             if (currentTransaction.dateDue != null)
-            	writer.write(gnucashDateToIIFDate(currentTransaction.dateDue));
+            	DateCache.MONTH_DAY_YEAR.append(writer, currentTransaction.dateDue);
             writer.write("\tN\t");
             
             // If the primary split's lot's invoice has been posted, then this
@@ -445,77 +630,89 @@ public class IIFOutputFormat implements OutputFormat
             else
             	writer.write('N');
 			writer.write("\r\n");
-			
-			// Write out the split information
-			writer.write(splits);
+		}
 
-			// Terminate this transaction
+		/**
+		 * Ends a transaction after the information of its splits
+		 * @param context The export context
+		 * @param writer The sink to write to
+		 * @param transaction The transaction to end
+		 * @throws IOException Thrown if an IOException arises during export
+		 */
+		public void writeTransactionEnd(ExportContext context, OutputSink writer, Transaction transaction) throws IOException {
 			writer.write("ENDTRNS\r\n");
 		}
 	}
 	
 	/**
-	 * Writes out the transactions in the given Conversion object to the given Writer
+	 * Writes out the transactions in the given export context to the given Writer
 	 * using the IIF format
 	 * http://www.datablox.com/qb/qbtran.htm
-	 * @param conversion The input conversion parameters
-	 * @param writer The output Writer
+	 * @param context The export context
+	 * @param writer The output sink
 	 * @throws IOException Thrown when an IOException occurs during the conversion
 	 */
-	protected static void writeTransactions(Conversion conversion, Writer writer) throws IOException
+	protected static void writeTransactions(ExportContext context, OutputSink writer) throws IOException
 	{
 		// Write the table header
 		writer.write("!TRNS\tTRNSID\tTRNSTYPE\tDATE\tACCNT\tNAME\tAMOUNT\tDOCNUM\tMEMO\tCLEAR\tDUEDATE\tTOPRINT\tPAID\r\n");
 		writer.write("!SPL\tSPLID\tTRNSTYPE\tDATE\tACCNT\tNAME\tAMOUNT\tDOCNUM\tMEMO\tCLEAR\r\n");
 		writer.write("!ENDTRNS\r\n");
 		
-		// Write out the transaction list for each account
-		Iterator accountIterator = conversion.accountSet.iterator();
+		// Write out the transaction list for each account, on several
+		// threads if asked to
+		final TransactionExport export = new TransferExport();
+		if (context.conversion.renderThreads > 1) {
+			settleSharedTransactionTypes(context, export);
+			final Object accounts[] = context.accountSet.toArray();
+			new ParallelExport() {
+				protected void render(int section, OutputSink sink, ExportContext fork) throws IOException {
+					Account account = (Account) accounts[section];
+					writeTransactions(fork, sink, null, account, account.trans.iterator(), export);
+				}
+			}.write(writer, context, accounts.length, context.conversion.renderThreads);
+			return;
+		}
+		Iterator accountIterator = context.accountSet.iterator();
 		Account currentAccount;
-		TransactionExport export = new TransferExport();
 		while (accountIterator.hasNext()) {
 			currentAccount = (Account) accountIterator.next();
 			
 			// Write general journal transactions
-			writeTransactions(conversion, writer, null, currentAccount, currentAccount.trans.iterator(), export);
+			writeTransactions(context, writer, null, currentAccount, currentAccount.trans.iterator(), export);
 		}
 	}
 
 	/**
 	 * Writes out the vendor list using the format at http://www.datablox.com/qb/qbvend.htm
-	 * @param conversion The input conversion parameters
-	 * @param writer The output Writer
+	 * @param context The export context
+	 * @param writer The output sink
 	 * @throws IOException Thrown when an IOException occurs during the conversion
 	 */
-	protected static void writeVendorList(Conversion conversion, Writer writer) throws IOException
+	protected static void writeVendorList(ExportContext context, OutputSink writer) throws IOException
 	{
 		// Write out the vendor list header
 		writer.append("!VEND\tNAME\tREFNUM\tCOMPANYNAME\tPRINTAS\tADDR1\tADDR2\tHIDDEN\r\n");
 		
 		// Loop through all the vendors
-		Iterator vendorIterator = conversion.vendors.iterator();
+		Iterator vendorIterator = context.conversion.vendors.iterator();
 		Vendor currentVendor;
 		while (vendorIterator.hasNext()) {
 			currentVendor = (Vendor) vendorIterator.next();
 			
 			// Write out this vendor's detail
 			writer.append("VEND\t");
-			writer.append(currentVendor.name);
+			writeField(context, writer, String.valueOf(currentVendor.name));
 			writer.append('\t');
-			if (currentVendor.id != null)
-			    writer.append(currentVendor.id);
+			writeField(context, writer, currentVendor.id);
 			writer.append('\t');
-			if (currentVendor.addressName != null)
-			    writer.append(currentVendor.addressName);
+			writeField(context, writer, currentVendor.addressName);
 			writer.append('\t');
-			if (currentVendor.addressName != null)   // Assume address name is the company name
-			    writer.append(currentVendor.addressName);
+			writeField(context, writer, currentVendor.addressName);   // Assume address name is the company name
 			writer.append('\t');
-			if (currentVendor.addressLine1 != null)
-			    writer.append(currentVendor.addressLine1);
+			writeField(context, writer, currentVendor.addressLine1);
 			writer.append('\t');
-			if (currentVendor.addressLine2 != null)
-			    writer.append(currentVendor.addressLine2);
+			writeField(context, writer, currentVendor.addressLine2);
 			writer.append('\t');
 			writer.append((currentVendor.active)? 'N': 'Y');
 			writer.append("\r\n");
@@ -523,87 +720,20 @@ public class IIFOutputFormat implements OutputFormat
 	}
 	
 	/**
-	 * Separates the transactions into their proper buckets so that they
-	 * can be exported to QuickBooks properly
-	 * @param conversion The conversion object to use
+	 * Writes out a text field, replacing tabs, line breaks and other control
+	 * characters that would break up the line with spaces and counting the
+	 * fields that had any
+	 * @param context The export context, which counts the rewritten fields
+	 * @param writer The output sink
+	 * @param value The text, or null to write nothing
+	 * @throws IOException Thrown when an IOException occurs during the conversion
 	 */
-	protected static void validateTransactions(Conversion conversion)
+	protected static void writeField(ExportContext context, OutputSink writer, String value) throws IOException
 	{
-		// Loop through all the invoices
-		Iterator invoiceIterator = conversion.invoices.values().iterator();
-		Invoice currentInvoice;
-		while (invoiceIterator.hasNext()) {
-			currentInvoice = (Invoice) invoiceIterator.next();
-			
-			// Set the invoice transaction
-			currentInvoice.invoiceTransaction = (Transaction) conversion.transactions.get(currentInvoice.invoiceTransactionGuid);
-			
-			// Set the invoice account object
-			currentInvoice.account = (Account) conversion.accounts.get(currentInvoice.accountGuid);
-		}
-		
-		// Loop through all the accounts
-//		Iterator accountIterator = conversion.accountSet.iterator();
-//		Account currentAccount;
-//		while (accountIterator.hasNext()) {
-//			currentAccount = (Account) accountIterator.next();
-//			
-//			// Loop through all the transactions
-//	        Iterator transIterator = currentAccount.trans.iterator();
-//	        Transaction currentTransaction;
-//	        while (transIterator.hasNext()) {
-//	            currentTransaction = (Transaction) transIterator.next();
-//	            
-//	            // Find which split has a lot GUID
-//	            Iterator splitIterator = currentTransaction.splits.iterator();
-//	            Split currentSplit;
-//	            while (splitIterator.hasNext()) {
-//	            	currentSplit = (Split) splitIterator.next();
-//	            	
-//	            	// If this has a lot GUID, ...
-//	            	if (currentSplit.lotGuid != null)
-//	            	{
-//	            		// Resolve the lot GUID to an invoice
-//	            		currentInvoice = (Invoice) conversion.invoices.get(((Lot) conversion.lots.get(currentSplit.lotGuid)).invoiceGuid);
-//	            		
-//	            		// If the invoice was found, ...
-//	            		if (currentInvoice != null)
-//	            		{
-//	            			// Set the document number on this split to the
-//	            			// document number of the bill to help QuickBooks
-//	            			// establish the link between the two
-//	            			currentTransaction.
-//	            		}
-//	            		
-//	            		// If the invoice was not found, throw a warning
-//	            		else
-//	            			conversion.warnings.add("Invoice not found in transaction " + currentTransaction);
-//	            	}
-//	            }
-	            
-//	            // If this is an invoice or invoice payment with one and only one
-//	            // lot GUID, then process further
-//	            if (invoice != null && currentTransaction.transactionType != null)
-//	            {
-//	            	// If this is an invoice, remove it after ensuring that it is set
-//	            	if (currentTransaction.transactionType.equals("I")) {
-//	            		if (invoice.invoiceTransaction != currentTransaction)
-//	            			conversion.warnings.add("One or more invoice transactions are not set properly!");
-//	            		else
-//	            			transIterator.remove();
-//	            	}
-	            	
-//	            	// If this is an invoice payment, then remove it after adding it
-//	            	// to the invoice transactions
-//	            	else if (currentTransaction.transactionType.equals("P")) {
-//	            	    invoice.invoicePayments.add(currentTransaction);
-//	            	    transIterator.remove();
-//	            	}
-//	            }
-//	        }
-//		}
+		if (value != null && writer.appendField(value))
+			context.rewrittenFields++;
 	}
-
+	
     /**
      * Returns the full name of this account by looking at our parents
      * and prepending their names to our name while delimiting with colons.
@@ -615,20 +745,16 @@ public class IIFOutputFormat implements OutputFormat
      */
     protected static String getFullName(Account account, Map accounts)
     {
-        // If we know the full name, then return it; otherwise, construct it
-        if (account.fullName != null)
-            return account.fullName;
-
         // Follow chain of parents, pre-pending their names,
         // so we get "Grandparent:Parent:Name"
         String p = account.parentGuid;
-        account.fullName = account.name;
+        String fullName = account.name;
         while (null != p) {
             Account parent = (Account) accounts.get(p);
             
             // If this is the same type as the parent, then proceed
             if (account.typeName.equalsIgnoreCase(parent.typeName)) {
-                account.fullName = parent.name + ":" + account.fullName;
+                fullName = parent.name + ":" + fullName;
                 p = parent.parentGuid;
             }
             
@@ -638,23 +764,59 @@ public class IIFOutputFormat implements OutputFormat
             	break;
             }
         }
-        return account.fullName;
+        return fullName;
     }
     
     /**
-     * Updates the full names of the accounts in the given conversion
-     * @param conversion The conversion to update the full names in
+     * Writes out the full name of an account, as in the ACCNT column. Each
+     * name is encoded and cleaned up once per export and copied into the
+     * output after that
+     * @param writer The output sink
+     * @param context The export context, which keeps the encoded names
+     * @param account The account to write the full name of
+     * @throws IOException Thrown when an IOException occurs during the conversion
      */
-    protected static void updateFullNames(Conversion conversion)
+    protected static void writeFullName(OutputSink writer, ExportContext context, Account account) throws IOException
+    {
+        byte name[] = context.getAccountLine(account, ExportContext.LINE_FULL_NAME, writer.getCharset());
+        if (name == null) {
+            String fullName = context.getFullName(account);
+            if ((name = writer.encode(fullName)) == null) {
+                writer.appendField(fullName);
+                return;
+            }
+            
+            // The account list already counted a name that needs cleaning up
+            OutputSink.replaceControlBytes(ByteBuffer.wrap(name), 0, name.length);
+            context.setAccountLine(account, ExportContext.LINE_FULL_NAME, writer.getCharset(), name);
+        }
+        writer.appendBytes(name, 0, name.length);
+    }
+    
+    /**
+     * Sets the full names of the accounts in the given export context whose
+     * full names are not known yet
+     * @param context The export context to set the full names in
+     */
+    protected static void updateFullNames(ExportContext context)
     {
 		// Ensure that all accounts have getFullName() called
-		Iterator accountIterator = conversion.accounts.values().iterator();
+		Iterator accountIterator = context.conversion.accounts.values().iterator();
         Account currentAccount;
         while (accountIterator.hasNext()) {
         	currentAccount = (Account) accountIterator.next();
-        	currentAccount.fullName = getFullName(currentAccount, conversion.accounts);
+        	if (context.getFullName(currentAccount) == null)
+        	    context.setFullName(currentAccount, getFullName(currentAccount, context.conversion.accounts));
         }
     }
+
+    /**
+     * Works out the full account names that this format uses
+     * @param context The export context to keep the full names in
+     */
+    public void resolveAccountNames(ExportContext context) {
+        updateFullNames(context);
+    }
     
 	/** Our cached FileFilter singleton instance */
 	protected static FileFilter fileFilter = null;
@@ -680,28 +842,18 @@ public class IIFOutputFormat implements OutputFormat
 	        return fileFilter;
 	}
 
-    /**
-     * Converts a GnuCash date into a IIF date
-     * @param gnucashDate The GnuCash date to convert
-     * @return The IIF-friendly date (4-digit year)
-     */
-    protected static String gnucashDateToIIFDate(String gnucashDate) {
-        if (gnucashDate == null || gnucashDate.length() < 10)
-            return "";
-        return gnucashDate.substring(5, 7) + "/" + gnucashDate.substring(8, 10) + "/" + gnucashDate.substring(0, 4);
-    }
-
     /**
      * Sets the account type by its type name
-     * @param typeName The name of the type to set this account to
+     * @param context The export context to set the account type in
+     * @param account The account to set the type of
      */
-    protected static void setAccountType(Account account)
+    protected static void setAccountType(ExportContext context, Account account)
     {
         // Set income and expense accounts, not caring about others
         if (account.typeName.equals("income")) {
-        	account.type = Account.TYPE_DOUBLEENTRY_INCOME;
+        	context.setType(account, Account.TYPE_DOUBLEENTRY_INCOME);
         } else if (account.typeName.equals("expense")) {
-        	account.type = Account.TYPE_DOUBLEENTRY_EXPENSE;
+        	context.setType(account, Account.TYPE_DOUBLEENTRY_EXPENSE);
         }
     }
 }
@@ -0,0 +1,147 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads an IIF file one line at a time, keeping only the current line and
+ * the column names that the ! header lines give each line type, so that
+ * files of any size can be read back in constant memory
+ */
+class IIFReader
+{
+    /** The IIF file */
+    protected BufferedReader reader;
+
+    /** The column names of each line type, as maps of names to Integer indexes */
+    protected Map columns = new HashMap();
+
+    /** The current line */
+    protected String line = null;
+
+    /** The line type of the current line, such as TRNS */
+    protected String type = null;
+
+    /** The start of each column in the current line */
+    protected int starts[] = new int[16];
+
+    /** The end of each column in the current line */
+    protected int ends[] = new int[16];
+
+    /** The number of columns in the current line */
+    protected int columnCount = 0;
+
+    /** The number of lines read */
+    protected int lineNumber = 0;
+
+    /**
+     * Creates a new IIF reader
+     * @param reader The IIF file, which gets buffered
+     */
+    public IIFReader(Reader reader) {
+        this.reader = new BufferedReader(reader, 64 * 1024);
+    }
+
+    /**
+     * Reads the next data line, taking in the header lines before it
+     * @return True if a line was read, or false at the end of the file
+     * @throws IOException Thrown if the file could not be read
+     */
+    public boolean next() throws IOException
+    {
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.length() == 0)
+                continue;
+            splitColumns();
+            if (line.charAt(0) != '!') {
+                type = get(0);
+                return true;
+            }
+
+            // Remember the column names of the line type
+            Map names = new HashMap();
+            for (int i = 1; i < columnCount; i++)
+                names.put(get(i), Integer.valueOf(i));
+            columns.put(get(0).substring(1), names);
+        }
+        type = null;
+        return false;
+    }
+
+    /**
+     * Finds the columns of the current line
+     */
+    protected void splitColumns()
+    {
+        int start = 0, end;
+        columnCount = 0;
+        do {
+            if ((end = line.indexOf('\t', start)) < 0)
+                end = line.length();
+            if (columnCount == starts.length) {
+                int larger[] = new int[starts.length * 2];
+                System.arraycopy(starts, 0, larger, 0, columnCount);
+                starts = larger;
+                larger = new int[ends.length * 2];
+                System.arraycopy(ends, 0, larger, 0, columnCount);
+                ends = larger;
+            }
+            starts[columnCount] = start;
+            ends[columnCount++] = end;
+            start = end + 1;
+        } while (end < line.length());
+    }
+
+    /**
+     * Returns the line type of the current line
+     * @return The line type, such as TRNS, SPL or ENDTRNS
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Returns the index of a column of a line type
+     * @param lineType The line type, such as TRNS
+     * @param name The column name, such as AMOUNT
+     * @return The index to hand to get(), or -1 if no header line names the column
+     */
+    public int getColumn(String lineType, String name)
+    {
+        Map names = (Map) columns.get(lineType);
+        Integer index = (names != null)? (Integer) names.get(name): null;
+        return (index != null)? index.intValue(): -1;
+    }
+
+    /**
+     * Returns a column of the current line
+     * @param index The column index, where 0 is the line type
+     * @return The column, or null if the line does not have it
+     */
+    public String get(int index)
+    {
+        if (index < 0 || index >= columnCount)
+            return null;
+        return line.substring(starts[index], ends[index]);
+    }
+
+    /**
+     * Returns the number of the last line read, starting at 1
+     * @return The line number
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Closes the IIF file
+     * @throws IOException Thrown if the file could not be closed
+     */
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,276 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.swing.filechooser.FileFilter;
+
+/**
+ * Output format that writes a flat journal with one row per split, either
+ * as CSV or as newline-delimited JSON. The rows come in the order that the
+ * transactions have in the GnuCash file and nothing is grouped by account,
+ * so the journal can also be written while the file is streamed. Each row
+ * has the posting date, the transaction GUID, the full GnuCash name of the
+ * split's account, the amount, the memo and the reconcile state
+ */
+public class JournalOutputFormat implements OutputFormat
+{
+    /** Comma-separated values with a header row */
+    public static final int CSV = 0;
+
+    /** One JSON object per line */
+    public static final int NDJSON = 1;
+
+    /** The header row of CSV journals */
+    protected static final String CSV_HEADER = "date,transaction,account,amount,memo,reconciled\n";
+
+    /** Hexadecimal digits for JSON escapes */
+    protected static final char HEX_DIGITS[] = "0123456789abcdef".toCharArray();
+
+    /** The style of the journal, as specified by the constants above */
+    protected int style;
+
+    /** Our cached FileFilter instance */
+    protected FileFilter fileFilter = null;
+
+    /**
+     * Creates a new journal format
+     * @param style CSV or NDJSON
+     */
+    public JournalOutputFormat(int style) {
+        this.style = style;
+    }
+
+    /**
+     * Writes out every split of the book in the order of its transactions
+     * @param context The export context with the accounts and their transaction data
+     * @param writer The sink to output the converted data to
+     */
+    public void export(ExportContext context, OutputSink writer) throws IOException
+    {
+        // Ensure that all accounts have getFullName() called
+        resolveAccountNames(context);
+
+        // Put the transactions back into the order that they were read in
+        Transaction transactions[] = new Transaction[context.conversion.transactionCount];
+        Iterator transIterator = context.conversion.transactions.values().iterator();
+        Transaction currentTransaction;
+        while (transIterator.hasNext()) {
+            currentTransaction = (Transaction) transIterator.next();
+            transactions[currentTransaction.index] = currentTransaction;
+        }
+
+        // Write the rows
+        writeHeader(writer);
+        for (int i = 0; i < transactions.length; i++)
+            if (transactions[i] != null)
+                writeTransaction(writer, context, transactions[i]);
+    }
+
+    /**
+     * Writes out what comes before the first row
+     * @param writer The sink to write to
+     * @throws IOException Thrown if the sink could not be written to
+     */
+    public void writeHeader(OutputSink writer) throws IOException
+    {
+        if (style == CSV)
+            writer.write(CSV_HEADER);
+    }
+
+    /**
+     * Writes out the rows of a transaction's splits
+     * @param writer The sink to write to
+     * @param context The export context with the full account names
+     * @param transaction The transaction
+     * @throws IOException Thrown if the sink could not be written to
+     */
+    public void writeTransaction(OutputSink writer, ExportContext context, Transaction transaction) throws IOException
+    {
+        TextArena text = context.conversion.text;
+        Iterator splitIterator = transaction.splits.iterator();
+        Split currentSplit;
+        String account;
+        while (splitIterator.hasNext()) {
+            currentSplit = (Split) splitIterator.next();
+            account = (currentSplit.account != null)? context.getFullName(currentSplit.account): null;
+            if (style == CSV) {
+                writeCSV(writer, transaction.datePosted);
+                writer.write(',');
+                writeCSV(writer, transaction.guid);
+                writer.write(',');
+                writeCSV(writer, account);
+                writer.write(',');
+                writer.appendAmount(currentSplit.amount);
+                writer.write(',');
+                writeCSV(writer, currentSplit.getMemo(text));
+                writer.write(',');
+                if (currentSplit.reconciliationStatus != 0)
+                    writer.write(currentSplit.reconciliationStatus);
+                writer.write('\n');
+            } else {
+                writer.write("{\"date\":");
+                writeJSON(writer, transaction.datePosted);
+                writer.write(",\"transaction\":");
+                writeJSON(writer, transaction.guid);
+                writer.write(",\"account\":");
+                writeJSON(writer, account);
+                writer.write(",\"amount\":");
+                writer.appendAmount(currentSplit.amount);
+                writer.write(",\"memo\":");
+                writeJSON(writer, currentSplit.getMemo(text));
+                if (currentSplit.reconciliationStatus != 0) {
+                    writer.write(",\"reconciled\":\"");
+                    writer.write(currentSplit.reconciliationStatus);
+                    writer.write("\"}\n");
+                } else
+                    writer.write(",\"reconciled\":null}\n");
+            }
+        }
+    }
+
+    /**
+     * Writes a CSV field, quoting it if it has a comma, a quote or a line
+     * break in it
+     * @param writer The sink to write to
+     * @param value The field, or null for an empty field
+     * @throws IOException Thrown if the sink could not be written to
+     */
+    protected static void writeCSV(OutputSink writer, String value) throws IOException
+    {
+        if (value == null)
+            return;
+        int length = value.length();
+        int i;
+        char c;
+        for (i = 0; i < length; i++) {
+            c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r')
+                break;
+        }
+        if (i == length) {
+            writer.write(value);
+            return;
+        }
+
+        // Quote the field, doubling its quotes
+        writer.write('"');
+        writer.write(value, 0, i);
+        for (; i < length; i++) {
+            c = value.charAt(i);
+            if (c == '"')
+                writer.write('"');
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Writes a JSON string, escaping quotes, backslashes and control characters
+     * @param writer The sink to write to
+     * @param value The String, or null to write null
+     * @throws IOException Thrown if the sink could not be written to
+     */
+    protected static void writeJSON(OutputSink writer, String value) throws IOException
+    {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        int length = value.length();
+        int start = 0;
+        char c;
+        for (int i = 0; i < length; i++) {
+            c = value.charAt(i);
+            if (c >= ' ' && c != '"' && c != '\\')
+                continue;
+
+            // Write what came before the character and escape it
+            writer.write(value, start, i - start);
+            start = i + 1;
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c == '\n')
+                writer.write("\\n");
+            else if (c == '\r')
+                writer.write("\\r");
+            else if (c == '\t')
+                writer.write("\\t");
+            else {
+                writer.write("\\u00");
+                writer.write(HEX_DIGITS[c >> 4]);
+                writer.write(HEX_DIGITS[c & 0xf]);
+            }
+        }
+        writer.write(value, start, length - start);
+        writer.write('"');
+    }
+
+    /**
+     * Returns the full GnuCash name of an account by prepending the names of
+     * all its parents, including the top-level one, while delimiting with
+     * colons. Only the root account of newer GnuCash files is left out
+     * @param account The account
+     * @param accounts The map of account GUIDs to Account object instances to
+     * use when building this account's full name
+     * @return The full name of this account, such as "Expenses:Food"
+     */
+    protected static String getFullName(Account account, Map accounts)
+    {
+        // Follow chain of parents, pre-pending their names,
+        // so we get "Top:Parent:Name"
+        String p = account.parentGuid;
+        String fullName = account.name;
+        while (null != p) {
+            Account parent = (Account) accounts.get(p);
+            if (null == parent || "root".equals(parent.typeName)) {
+                break;
+            }
+            fullName = parent.name + ":" + fullName;
+            p = parent.parentGuid;
+        }
+        return fullName;
+    }
+
+    /**
+     * Works out the full account names that this format uses, which are
+     * the whole GnuCash paths so that accounts with the same name under
+     * different parents can be told apart
+     * @param context The export context to keep the full names in
+     */
+    public void resolveAccountNames(ExportContext context)
+    {
+        Iterator accountIterator = context.conversion.accounts.values().iterator();
+        Account currentAccount;
+        while (accountIterator.hasNext()) {
+            currentAccount = (Account) accountIterator.next();
+            if (context.getFullName(currentAccount) == null)
+                context.setFullName(currentAccount, getFullName(currentAccount, context.conversion.accounts));
+        }
+    }
+
+    /**
+     * Returns the FileFilter of CSV or NDJSON files
+     * @return The FileFilter
+     */
+    public FileFilter getFileFilter() {
+        if (fileFilter == null)
+            return fileFilter = new FileFilter() {
+                public boolean accept(File f) {
+                    if (f.isDirectory() || f.getName().endsWith((style == CSV)? ".csv": ".ndjson"))
+                        return true;
+                    else
+                        return false;
+                }
+                public String getDescription() {
+                    return (style == CSV)? "CSV split journal": "NDJSON split journal";
+                }
+            };
+        else
+            return fileFilter;
+    }
+}
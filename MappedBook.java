@@ -0,0 +1,104 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory mapping of a GnuCash file. Large files are mapped in
+ * overlapping segments so that any range of up to MAX_RANGE bytes can be
+ * read from a single segment
+ */
+class MappedBook
+{
+    /** The number of bits in a segment offset */
+    protected static final int SEGMENT_BITS = 30;
+
+    /** The distance between the starts of two segments */
+    protected static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    /** The longest range that is guaranteed to lie within one segment */
+    public static final int MAX_RANGE = 1 << 24;
+
+    /** The mapped segments */
+    protected MappedByteBuffer segments[];
+
+    /** The length of the file */
+    protected long length;
+
+    /**
+     * Maps the given file into memory
+     * @param file The file to map
+     * @throws IOException Thrown if the file could not be mapped
+     */
+    public MappedBook(File file) throws IOException
+    {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            // The mappings stay valid after the file is closed
+            FileChannel channel = input.getChannel();
+            length = channel.size();
+            int count = (int) Math.max(1, (length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+            segments = new MappedByteBuffer[count];
+            long start;
+            for (int i = 0; i < count; i++) {
+                start = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length - start, SEGMENT_SIZE + MAX_RANGE));
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns the length of the mapped file
+     * @return The length of the mapped file in bytes
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns the byte at the given position
+     * @param position The position in the file
+     * @return The byte at the given position
+     */
+    public byte get(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & (SEGMENT_SIZE - 1)));
+    }
+
+    /**
+     * Copies a range of the file into the given array
+     * @param position The position of the first byte to copy
+     * @param destination The array to copy into
+     * @param offset The offset in the array to copy to
+     * @param count The number of bytes to copy, which must not exceed MAX_RANGE
+     */
+    public void get(long position, byte destination[], int offset, int count)
+    {
+        MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)];
+        int base = (int) (position & (SEGMENT_SIZE - 1));
+        for (int i = 0; i < count; i++)
+            destination[offset + i] = segment.get(base + i);
+    }
+
+    /**
+     * Decodes a UTF-8 range of the file into a String
+     * @param position The position of the first byte
+     * @param count The number of bytes, which must not exceed MAX_RANGE
+     * @return The decoded String
+     */
+    public String decode(long position, int count)
+    {
+        byte bytes[] = new byte[count];
+        get(position, bytes, 0, count);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
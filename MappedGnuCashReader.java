@@ -0,0 +1,632 @@
+package net.sourceforge.gnucashtoqif;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Reads a memory-mapped GnuCash XML file and sends a GnuCashHandler the same
+ * content events that the SAX parser does. Text is only decoded when an
+ * element ends, and transaction and split text that needs no decoding is
+ * handed to the handler as a range of bytes in the mapped file instead
+ */
+class MappedGnuCashReader
+{
+    /** The mapped GnuCash file */
+    protected MappedBook book;
+
+    /** The handler that receives the content events */
+    protected GnuCashData.GnuCashHandler handler;
+
+    /** The current read position */
+    protected long position;
+
+    /** The length of the mapped file */
+    protected long length;
+
+    /** The starts of the text runs since the last tag */
+    protected long textStart[] = new long[8];
+
+    /** The ends of the text runs since the last tag */
+    protected long textEnd[] = new long[8];
+
+    /** Whether each text run is a CDATA section, which has no references */
+    protected boolean textCData[] = new boolean[8];
+
+    /** The number of text runs since the last tag */
+    protected int textCount = 0;
+
+    /** Whether the text runs contain references or carriage returns that need decoding */
+    protected boolean textEncoded = false;
+
+    /** The names of the open elements */
+    protected String elements[] = new String[32];
+
+    /** The number of open elements */
+    protected int depth = 0;
+
+    /** The decoded text that gets passed to the handler */
+    protected char chars[] = new char[1024];
+
+    /** The number of decoded characters in chars */
+    protected int charCount;
+
+    /** The attributes of the current start tag */
+    protected AttributesImpl attributes = new AttributesImpl();
+
+    /** The UTF-8 bytes of the interned names, indexed by hash */
+    protected byte nameBytes[][] = new byte[256][];
+
+    /** The interned names, indexed by hash */
+    protected String names[] = new String[256];
+
+    /** The number of interned names */
+    protected int nameCount = 0;
+
+    /**
+     * Creates a new reader of the given mapped file
+     * @param book The mapped GnuCash file
+     * @param handler The handler that receives the content events
+     */
+    public MappedGnuCashReader(MappedBook book, GnuCashData.GnuCashHandler handler) {
+        this.book = book;
+        this.handler = handler;
+    }
+
+    /**
+     * Reads the whole file, sending its content to the handler
+     * @throws SAXException Thrown if the file is not well-formed XML or is
+     * not UTF-8 encoded
+     */
+    public void parse() throws SAXException
+    {
+        // Skip the UTF-8 byte order mark if there is one
+        position = 0;
+        length = book.length();
+        if (length >= 3 && (book.get(0) & 0xff) == 0xef && (book.get(1) & 0xff) == 0xbb && (book.get(2) & 0xff) == 0xbf)
+            position = 3;
+
+        // Dispatch on the markup at the current position until the end of the file
+        handler.startDocument();
+        byte next;
+        while (position < length) {
+            if (book.get(position) != '<') {
+                readText();
+                continue;
+            }
+            next = get(position + 1);
+            if (next == '/')
+                readEndTag();
+            else if (next == '?')
+                readProcessingInstruction();
+            else if (next == '!')
+                readDeclaration();
+            else
+                readStartTag();
+        }
+        if (depth > 0)
+            throw error("Unexpected end of file in element " + elements[depth - 1]);
+        handler.endDocument();
+    }
+
+    /**
+     * Reads a run of character data up to the next tag
+     */
+    protected void readText()
+    {
+        long start = position;
+        byte b;
+        while (position < length && (b = book.get(position)) != '<') {
+            if (b == '&' || b == '\r')
+                textEncoded = true;
+            position++;
+        }
+        addText(start, position, false);
+    }
+
+    /**
+     * Reads a start tag or an empty element tag along with its attributes
+     * @throws SAXException Thrown if the tag is malformed
+     */
+    protected void readStartTag() throws SAXException
+    {
+        position++;
+        String qName = readName();
+        attributes.clear();
+        skipWhitespace();
+        byte b;
+        while ((b = get(position)) != '>' && b != '/') {
+            String attributeName = readName();
+            skipWhitespace();
+            expect('=');
+            skipWhitespace();
+            attributes.addAttribute("", attributeName, attributeName, "CDATA", readAttributeValue());
+            skipWhitespace();
+        }
+        position++;
+        if (b == '/')
+            expect('>');
+
+        // Text before a start tag never reaches a value since the handler
+        // resets its buffer here, so it is simply dropped
+        clearText();
+        if (depth == elements.length) {
+            String grown[] = new String[depth * 2];
+            System.arraycopy(elements, 0, grown, 0, depth);
+            elements = grown;
+        }
+        elements[depth++] = qName;
+        handler.startElement("", qName, qName, attributes);
+        if (b == '/')
+            endElement();
+    }
+
+    /**
+     * Reads an end tag
+     * @throws SAXException Thrown if the tag is malformed or does not match
+     * the open element
+     */
+    protected void readEndTag() throws SAXException
+    {
+        position += 2;
+        String qName = readName();
+        skipWhitespace();
+        expect('>');
+        if (depth == 0 || elements[depth - 1] != qName)
+            throw error("End tag " + qName + " does not match " + ((depth == 0)? "any open element": "element " + elements[depth - 1]));
+        endElement();
+    }
+
+    /**
+     * Ends the innermost open element, passing its text to the handler
+     * @throws SAXException Thrown if the text contains an unknown reference
+     */
+    protected void endElement() throws SAXException
+    {
+        String qName = elements[--depth];
+
+        // Hand over raw text ranges when the bytes are the text itself
+        if (textCount <= 1 && !textEncoded) {
+            long start = (textCount == 0)? position: textStart[0];
+            long end = (textCount == 0)? position: textEnd[0];
+            if (handler.storeMappedText(qName, start, end)) {
+                clearText();
+                return;
+            }
+        }
+
+        // Otherwise, decode the text the way the SAX parser would deliver it
+        if (textCount > 0) {
+            decodeText();
+            handler.characters(chars, 0, charCount);
+        }
+        clearText();
+        handler.endElement("", qName, qName);
+    }
+
+    /**
+     * Reads a processing instruction, checking the encoding of the XML declaration
+     * @throws SAXException Thrown if the instruction is not terminated or if the
+     * file is not UTF-8 encoded
+     */
+    protected void readProcessingInstruction() throws SAXException
+    {
+        long start = position;
+        long end = indexOf("?>", position + 2);
+        position = end + 2;
+
+        // Only UTF-8 (and its ASCII subset) can be read straight from the mapped bytes
+        String instruction = book.decode(start, (int) Math.min(end - start, 1024));
+        if (!instruction.startsWith("<?xml") || instruction.length() < 6 || !Character.isWhitespace(instruction.charAt(5)))
+            return;
+        int pos = instruction.indexOf("encoding");
+        if (pos < 0)
+            return;
+        pos = instruction.indexOf('=', pos);
+        while (pos >= 0 && ++pos < instruction.length() && instruction.charAt(pos) != '"' && instruction.charAt(pos) != '\'')
+            ;
+        if (pos < 0 || pos >= instruction.length())
+            throw error("Malformed XML declaration");
+        int quote = instruction.indexOf(instruction.charAt(pos), pos + 1);
+        String encoding = instruction.substring(pos + 1, (quote < 0)? instruction.length(): quote);
+        if (!encoding.equalsIgnoreCase("utf-8") && !encoding.equalsIgnoreCase("utf8") &&
+            !encoding.equalsIgnoreCase("us-ascii") && !encoding.equalsIgnoreCase("ascii"))
+            throw error("Mapped import only reads UTF-8 files, not " + encoding);
+    }
+
+    /**
+     * Reads a comment, a CDATA section or a document type declaration
+     * @throws SAXException Thrown if the markup is not terminated
+     */
+    protected void readDeclaration() throws SAXException
+    {
+        if (startsWith("<!--", position))
+            position = indexOf("-->", position + 4) + 3;
+        else if (startsWith("<![CDATA[", position)) {
+            long start = position + 9;
+            long end = indexOf("]]>", start);
+            for (long i = start; i < end && !textEncoded; i++)
+                if (book.get(i) == '\r')
+                    textEncoded = true;
+            addText(start, end, true);
+            position = end + 3;
+        } else
+        {
+            // Skip a document type declaration, including any internal subset
+            int brackets = 0;
+            byte b;
+            while ((b = get(position++)) != '>' || brackets > 0) {
+                if (b == '[')
+                    brackets++;
+                else if (b == ']')
+                    brackets--;
+            }
+        }
+    }
+
+    /**
+     * Reads an element or attribute name
+     * @return The interned name
+     * @throws SAXException Thrown if no name is at the current position
+     */
+    protected String readName() throws SAXException
+    {
+        long start = position;
+        byte b;
+        while (position < length && (b = book.get(position)) != '>' && b != '/' && b != '=' && (b < 0 || b > ' '))
+            position++;
+        if (position == start)
+            throw error("Expected a name");
+        return intern(start, position);
+    }
+
+    /**
+     * Reads a quoted attribute value, decoding references and normalizing whitespace
+     * @return The attribute value
+     * @throws SAXException Thrown if the value is not quoted or not terminated
+     */
+    protected String readAttributeValue() throws SAXException
+    {
+        byte quote = get(position);
+        if (quote != '"' && quote != '\'')
+            throw error("Expected a quoted attribute value");
+        long start = ++position;
+        boolean encoded = false;
+        byte b;
+        while ((b = get(position)) != quote) {
+            if (b == '&' || b == '\t' || b == '\n' || b == '\r')
+                encoded = true;
+            position++;
+        }
+        position++;
+
+        // Most values repeat, such as "guid" or "2.0.0", so intern the plain ones
+        if (!encoded)
+            return intern(start, position - 1);
+        charCount = 0;
+        ensureChars(position - start);
+        decode(start, position - 1, false);
+        for (int i = 0; i < charCount; i++)
+            if (chars[i] == '\t' || chars[i] == '\n')
+                chars[i] = ' ';
+        return new String(chars, 0, charCount);
+    }
+
+    /**
+     * Adds a run of text to the text since the last tag. Text outside of the
+     * document element is ignored
+     * @param start The position of the run
+     * @param end The position after the run
+     * @param cdata True if the run is a CDATA section
+     */
+    protected void addText(long start, long end, boolean cdata)
+    {
+        if (depth == 0 || start == end)
+            return;
+        if (textCount == textStart.length) {
+            long grownStart[] = new long[textCount * 2];
+            long grownEnd[] = new long[textCount * 2];
+            boolean grownCData[] = new boolean[textCount * 2];
+            System.arraycopy(textStart, 0, grownStart, 0, textCount);
+            System.arraycopy(textEnd, 0, grownEnd, 0, textCount);
+            System.arraycopy(textCData, 0, grownCData, 0, textCount);
+            textStart = grownStart;
+            textEnd = grownEnd;
+            textCData = grownCData;
+        }
+        textStart[textCount] = start;
+        textEnd[textCount] = end;
+        textCData[textCount++] = cdata;
+    }
+
+    /**
+     * Forgets the text since the last tag
+     */
+    protected void clearText() {
+        textCount = 0;
+        textEncoded = false;
+    }
+
+    /**
+     * Decodes the text since the last tag into chars
+     * @throws SAXException Thrown if the text contains an unknown reference
+     */
+    protected void decodeText() throws SAXException
+    {
+        long total = 0;
+        for (int i = 0; i < textCount; i++)
+            total += textEnd[i] - textStart[i];
+        charCount = 0;
+        ensureChars(total);
+        for (int i = 0; i < textCount; i++)
+            decode(textStart[i], textEnd[i], textCData[i]);
+    }
+
+    /**
+     * Decodes a range of UTF-8 bytes, appending the characters to chars.
+     * Line ends are normalized to \n like the SAX parser does
+     * @param start The position of the first byte
+     * @param end The position after the last byte
+     * @param cdata True if the range is a CDATA section, which has no references
+     * @throws SAXException Thrown if the range contains an unknown reference
+     */
+    protected void decode(long start, long end, boolean cdata) throws SAXException
+    {
+        long i = start;
+        int b, codePoint, extra;
+        while (i < end) {
+            b = book.get(i++) & 0xff;
+            if (b < 0x80) {
+                if (b == '&' && !cdata)
+                    i = decodeReference(i, end);
+                else if (b == '\r') {
+                    chars[charCount++] = '\n';
+                    if (i < end && book.get(i) == '\n')
+                        i++;
+                } else
+                    chars[charCount++] = (char) b;
+                continue;
+            }
+
+            // Decode a multi-byte sequence, replacing malformed ones
+            if (b >= 0xf0 && b < 0xf8) {
+                codePoint = b & 0x07;
+                extra = 3;
+            } else if (b >= 0xe0) {
+                codePoint = b & 0x0f;
+                extra = 2;
+            } else if (b >= 0xc0) {
+                codePoint = b & 0x1f;
+                extra = 1;
+            } else {
+                chars[charCount++] = '\uFFFD';
+                continue;
+            }
+            while (extra > 0 && i < end && (book.get(i) & 0xc0) == 0x80) {
+                codePoint = (codePoint << 6) | (book.get(i++) & 0x3f);
+                extra--;
+            }
+            if (extra > 0 || codePoint > Character.MAX_CODE_POINT)
+                chars[charCount++] = '\uFFFD';
+            else
+                appendCodePoint(codePoint);
+        }
+    }
+
+    /**
+     * Decodes an entity or character reference, appending it to chars
+     * @param start The position after the ampersand
+     * @param end The end of the text that contains the reference
+     * @return The position after the reference's semicolon
+     * @throws SAXException Thrown if the reference is unknown or malformed
+     */
+    protected long decodeReference(long start, long end) throws SAXException
+    {
+        long semicolon = start;
+        while (semicolon < end && book.get(semicolon) != ';' && semicolon - start < 12)
+            semicolon++;
+        if (semicolon >= end || book.get(semicolon) != ';')
+            throw error("Malformed reference");
+        String name = book.decode(start, (int) (semicolon - start));
+        if (name.equals("lt"))
+            chars[charCount++] = '<';
+        else if (name.equals("gt"))
+            chars[charCount++] = '>';
+        else if (name.equals("amp"))
+            chars[charCount++] = '&';
+        else if (name.equals("quot"))
+            chars[charCount++] = '"';
+        else if (name.equals("apos"))
+            chars[charCount++] = '\'';
+        else if (name.startsWith("#")) {
+            int codePoint;
+            try {
+                if (name.startsWith("#x"))
+                    codePoint = Integer.parseInt(name.substring(2), 16);
+                else
+                    codePoint = Integer.parseInt(name.substring(1), 10);
+            } catch (NumberFormatException e) {
+                throw error("Malformed character reference &" + name + ";");
+            }
+            if (codePoint < 0 || codePoint > Character.MAX_CODE_POINT)
+                throw error("Invalid character reference &" + name + ";");
+            appendCodePoint(codePoint);
+        } else
+            throw error("The entity \"" + name + "\" was referenced, but not declared");
+        return semicolon + 1;
+    }
+
+    /**
+     * Appends a Unicode code point to chars
+     * @param codePoint The code point to append
+     */
+    protected void appendCodePoint(int codePoint) {
+        if (codePoint >= 0x10000) {
+            chars[charCount++] = Character.highSurrogate(codePoint);
+            chars[charCount++] = Character.lowSurrogate(codePoint);
+        } else
+            chars[charCount++] = (char) codePoint;
+    }
+
+    /**
+     * Ensures that chars can take the given number of bytes worth of characters
+     * @param bytes The number of UTF-8 bytes about to be decoded
+     * @throws SAXException Thrown if the text is too long to decode
+     */
+    protected void ensureChars(long bytes) throws SAXException
+    {
+        // Decoding never produces more characters than there are bytes
+        if (charCount + bytes <= chars.length)
+            return;
+        if (charCount + bytes > Integer.MAX_VALUE - 8)
+            throw error("Text is too long");
+        char grown[] = new char[(int) Math.max(charCount + bytes, chars.length * 2L)];
+        System.arraycopy(chars, 0, grown, 0, charCount);
+        chars = grown;
+    }
+
+    /**
+     * Returns the String for a name, creating it only the first time
+     * that the name is seen
+     * @param start The position of the name's first byte
+     * @param end The position after the name
+     * @return The interned name
+     */
+    protected String intern(long start, long end)
+    {
+        int hash = 0, count = (int) (end - start);
+        for (long i = start; i < end; i++)
+            hash = 31 * hash + book.get(i);
+        int mask = names.length - 1;
+        int index = hash & mask;
+        byte bytes[];
+        while ((bytes = nameBytes[index]) != null) {
+            if (bytes.length == count) {
+                int i = 0;
+                while (i < count && bytes[i] == book.get(start + i))
+                    i++;
+                if (i == count)
+                    return names[index];
+            }
+            index = (index + 1) & mask;
+        }
+
+        // Add the name, growing the table when it gets half full
+        bytes = new byte[count];
+        book.get(start, bytes, 0, count);
+        String name = book.decode(start, count);
+        if (++nameCount > names.length / 2) {
+            byte oldBytes[][] = nameBytes;
+            String oldNames[] = names;
+            nameBytes = new byte[oldBytes.length * 2][];
+            names = new String[oldNames.length * 2];
+            for (int i = 0; i < oldBytes.length; i++)
+                if (oldBytes[i] != null)
+                    put(oldBytes[i], oldNames[i]);
+            put(bytes, name);
+        } else {
+            nameBytes[index] = bytes;
+            names[index] = name;
+        }
+        return name;
+    }
+
+    /**
+     * Puts a name into the name table, which must have room for it
+     * @param bytes The UTF-8 bytes of the name
+     * @param name The name
+     */
+    protected void put(byte bytes[], String name)
+    {
+        int hash = 0;
+        for (int i = 0; i < bytes.length; i++)
+            hash = 31 * hash + bytes[i];
+        int mask = names.length - 1;
+        int index = hash & mask;
+        while (nameBytes[index] != null)
+            index = (index + 1) & mask;
+        nameBytes[index] = bytes;
+        names[index] = name;
+    }
+
+    /**
+     * Returns the byte at the given position, failing at the end of the file
+     * @param position The position of the byte
+     * @return The byte at the given position
+     * @throws SAXException Thrown if the position is past the end of the file
+     */
+    protected byte get(long position) throws SAXException
+    {
+        if (position >= length)
+            throw error("Unexpected end of file");
+        return book.get(position);
+    }
+
+    /**
+     * Skips over whitespace at the current position
+     */
+    protected void skipWhitespace() {
+        while (position < length && book.get(position) <= ' ' && book.get(position) >= 0)
+            position++;
+    }
+
+    /**
+     * Consumes the given character at the current position
+     * @param c The character that has to be at the current position
+     * @throws SAXException Thrown if a different character is there
+     */
+    protected void expect(char c) throws SAXException
+    {
+        if (get(position) != c)
+            throw error("Expected '" + c + "'");
+        position++;
+    }
+
+    /**
+     * Returns whether the ASCII text is at the given position
+     * @param text The text to look for
+     * @param position The position to look at
+     * @return True if the text is at the given position
+     */
+    protected boolean startsWith(String text, long position)
+    {
+        if (position + text.length() > length)
+            return false;
+        for (int i = 0; i < text.length(); i++)
+            if (book.get(position + i) != text.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * Finds the next occurrence of the ASCII text
+     * @param text The text to look for
+     * @param from The position to start looking at
+     * @return The position of the text
+     * @throws SAXException Thrown if the text does not occur before the end of the file
+     */
+    protected long indexOf(String text, long from) throws SAXException
+    {
+        byte first = (byte) text.charAt(0);
+        for (long i = from; i + text.length() <= length; i++)
+            if (book.get(i) == first && startsWith(text, i))
+                return i;
+        position = length;
+        throw error("Expected " + text + " before the end of the file");
+    }
+
+    /**
+     * Creates a parse exception for the current position
+     * @param message The description of the problem
+     * @return The exception to throw
+     */
+    protected SAXParseException error(String message)
+    {
+        // Line numbers are only counted when something goes wrong
+        int line = 1;
+        for (long i = 0; i < position && i < length; i++)
+            if (book.get(i) == '\n')
+                line++;
+        return new SAXParseException(message, null, null, line, -1);
+    }
+}
@@ -0,0 +1,121 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Output sink that keeps all of its output in memory. Parts of an export
+ * that get rendered on other threads are collected in these and copied into
+ * the real output in order by copyTo()
+ */
+class MemorySink extends OutputSink
+{
+    /** The default buffer size of memory sinks */
+    public static final int DEFAULT_MEMORY_BUFFER_SIZE = 8 * 1024;
+
+    /** The bytes that have been drained out of the buffer */
+    protected byte data[] = new byte[0];
+
+    /** The number of bytes in data */
+    protected int size = 0;
+
+    /**
+     * Creates a new memory sink
+     * @param charset The charset of the output
+     */
+    public MemorySink(Charset charset) {
+        super(null, charset, DEFAULT_MEMORY_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new memory sink whose output can be copied into the given
+     * sink. The output's charset is used when separately encoded pieces can
+     * be joined in it; otherwise the output is kept as UTF-8 and decoded again
+     * by copyTo()
+     * @param out The sink that the output will be copied into
+     * @return The memory sink
+     */
+    public static MemorySink forOutput(OutputSink out) {
+        return new MemorySink(out.isPreEncodable()? out.getCharset(): Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Keeps encoded bytes in memory
+     * @param bytes The encoded bytes
+     * @param off The index of the first byte
+     * @param len The number of bytes
+     */
+    protected void drain(byte bytes[], int off, int len)
+    {
+        if (data.length - size < len) {
+            byte newData[] = new byte[Math.max(data.length * 2, size + len)];
+            System.arraycopy(data, 0, newData, 0, size);
+            data = newData;
+        }
+        System.arraycopy(bytes, off, data, size, len);
+        size += len;
+    }
+
+    /**
+     * Returns the number of bytes written to this sink
+     * @return The number of bytes
+     */
+    public int length() {
+        return size + count;
+    }
+
+    /**
+     * Returns a copy of everything written to this sink
+     * @return The encoded bytes
+     * @throws IOException Thrown if the buffer could not be drained
+     */
+    public byte[] toByteArray() throws IOException
+    {
+        drainBuffer();
+        byte bytes[] = new byte[size];
+        System.arraycopy(data, 0, bytes, 0, size);
+        return bytes;
+    }
+
+    /**
+     * Empties this sink so that it can be written to again
+     */
+    public void reset()
+    {
+        size = 0;
+        count = 0;
+    }
+
+    /**
+     * Writes everything written to this sink to a channel
+     * @param channel The channel to write to
+     * @throws IOException Thrown if the channel could not be written to
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException
+    {
+        drainBuffer();
+        ByteBuffer bytes = ByteBuffer.wrap(data, 0, size);
+        while (bytes.hasRemaining())
+            channel.write(bytes);
+    }
+
+    /**
+     * Copies everything written to this sink into another sink. The bytes are
+     * copied as they are if both sinks use the same charset; otherwise they
+     * are decoded and written as characters
+     * @param out The sink to copy into
+     * @throws IOException Thrown if the other sink could not be written to
+     */
+    public void copyTo(OutputSink out) throws IOException
+    {
+        if (!out.getCharset().equals(charset)) {
+            drainBuffer();
+            out.write(new String(data, 0, size, charset));
+            return;
+        }
+        out.appendBytes(data, 0, size);
+        out.appendBytes(buffer, 0, count);
+    }
+}
@@ -1,7 +1,6 @@
 package net.sourceforge.gnucashtoqif;
 
 import java.io.IOException;
-import java.io.Writer;
 
 import javax.swing.filechooser.FileFilter;
 
@@ -11,11 +10,20 @@ import javax.swing.filechooser.FileFilter;
 public interface OutputFormat
 {
 	/**
-	 * Write out a file format to the given writer using the input account Map
-	 * @param conversion The conversion configuration to use
-	 * @param writer The writer to output the converted data to
+	 * Write out a file format to the given writer using the input account Map.
+	 * The export keeps everything that it works out in the given context and
+	 * never changes the context's Conversion
+	 * @param context The export context, which holds the conversion configuration to use
+	 * @param writer The sink to output the converted data to
 	 */
-    public void export(Conversion conversion, Writer writer) throws IOException;
+    public void export(ExportContext context, OutputSink writer) throws IOException;
+
+    /**
+     * Works out the full account names that this format uses and keeps them
+     * in the given context. Exports whose contexts share names skip this work
+     * @param context The export context to keep the full names in
+     */
+    public void resolveAccountNames(ExportContext context);
     
     /**
      * Returns this output format's FileFilter
@@ -0,0 +1,693 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Buffered Writer that encodes straight into one large reusable byte buffer.
+ * ASCII and UTF-8 are encoded without a CharsetEncoder, and numbers and text
+ * arena references are appended without building Strings first. Subclasses
+ * can send the full buffer somewhere other than an OutputStream by
+ * overriding drain()
+ */
+public class OutputSink extends Writer
+{
+    /** The default buffer size */
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    /** The most bytes that one char can need in any supported charset */
+    protected static final int MAX_BYTES_PER_CHAR = 4;
+
+    /** The stream that full buffers get written to, or null if a subclass drains them */
+    protected OutputStream out;
+
+    /** The charset of the output */
+    protected Charset charset;
+
+    /** Whether the output is UTF-8, which gets encoded directly */
+    protected boolean utf8;
+
+    /** Whether ASCII characters encode to single bytes of the same value */
+    protected boolean asciiCompatible;
+
+    /** Whether Strings can be encoded ahead of time by encode() */
+    protected boolean preEncodable;
+
+    /** The encoder for characters that are not encoded directly, or null if not needed yet */
+    protected CharsetEncoder encoder = null;
+
+    /** The encoded output */
+    protected byte buffer[];
+
+    /** The number of bytes in the buffer */
+    protected int count = 0;
+
+    /** Scratch space for copying characters out of StringBuffers and Strings */
+    protected char chars[] = new char[1024];
+
+    /** View of the buffer for reading it eight bytes at a time, or null if not needed yet */
+    protected ByteBuffer words = null;
+
+    /** Eight bytes of 0x20, the lowest character that is not a control character */
+    protected static final long SPACES = 0x2020202020202020L;
+
+    /** Eight bytes with only their top bit set */
+    protected static final long TOP_BITS = 0x8080808080808080L;
+
+    /**
+     * Creates a new sink that writes to the given stream in the platform's
+     * default charset, like FileWriter does
+     * @param out The stream to write to
+     */
+    public OutputSink(OutputStream out) {
+        this(out, Charset.defaultCharset(), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new sink that writes to the given stream
+     * @param out The stream to write to, or null if a subclass drains the buffer
+     * @param charset The charset of the output
+     * @param bufferSize The size of the byte buffer
+     */
+    public OutputSink(OutputStream out, Charset charset, int bufferSize)
+    {
+        this.out = out;
+        this.charset = charset;
+        utf8 = charset.name().equals("UTF-8");
+        asciiCompatible = utf8 || isAsciiCompatible(charset);
+        preEncodable = utf8 || (asciiCompatible && charset.newEncoder().maxBytesPerChar() == 1);
+        buffer = new byte[Math.max(bufferSize, 64)];
+    }
+
+    /**
+     * Returns whether ASCII characters encode to single bytes of the same
+     * value in the given charset
+     * @param charset The charset to check
+     * @return True if ASCII text can be copied into the output as is
+     */
+    protected static boolean isAsciiCompatible(Charset charset)
+    {
+        if (!charset.canEncode())
+            return false;
+        char ascii[] = new char[128];
+        for (int i = 0; i < ascii.length; i++)
+            ascii[i] = (char) i;
+        byte encoded[] = new String(ascii).getBytes(charset);
+        if (encoded.length != ascii.length)
+            return false;
+        for (int i = 0; i < encoded.length; i++)
+            if (encoded[i] != i)
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns whether this sink encodes as UTF-8, so that text arena bytes
+     * can be copied into it as is
+     * @return True if the output is UTF-8
+     */
+    public boolean isUTF8() {
+        return utf8;
+    }
+
+    /**
+     * Returns whether Strings can be encoded ahead of time by encode(), which
+     * also means that separately encoded pieces of output can be joined
+     * @return True if the charset encodes every character by itself
+     */
+    public boolean isPreEncodable() {
+        return preEncodable;
+    }
+
+    /**
+     * Returns the charset of the output
+     * @return The charset of the output
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Returns whether this sink encodes ASCII characters as single ASCII
+     * bytes, so that pre-encoded ASCII can be copied into it as is
+     * @return True if the charset is ASCII compatible
+     */
+    public boolean isAsciiCompatible() {
+        return asciiCompatible;
+    }
+
+    /**
+     * Writes a single character
+     * @param c The character to write
+     */
+    public void write(int c) throws IOException
+    {
+        if (c < 0x80 && asciiCompatible) {
+            if (count == buffer.length)
+                drainBuffer();
+            buffer[count++] = (byte) c;
+        } else {
+            chars[0] = (char) c;
+            write(chars, 0, 1);
+        }
+    }
+
+    /**
+     * Writes a range of characters
+     * @param cbuf The characters to write
+     * @param off The index of the first character
+     * @param len The number of characters
+     */
+    public void write(char cbuf[], int off, int len) throws IOException
+    {
+        int end = off + len;
+        int i = off;
+        char c;
+        while (i < end) {
+            // Make room for the worst case of the next chunk
+            int chunk = Math.min(end - i, buffer.length / MAX_BYTES_PER_CHAR);
+            if (buffer.length - count < chunk * MAX_BYTES_PER_CHAR)
+                drainBuffer();
+            int chunkEnd = i + chunk;
+
+            // Keep surrogate pairs together in one chunk
+            if (chunkEnd < end && chunk > 1 && Character.isHighSurrogate(cbuf[chunkEnd - 1]))
+                chunkEnd--;
+
+            // Copy ASCII straight across
+            if (asciiCompatible)
+                while (i < chunkEnd && (c = cbuf[i]) < 0x80) {
+                    buffer[count++] = (byte) c;
+                    i++;
+                }
+            if (i == chunkEnd)
+                continue;
+
+            // Encode the rest of the chunk
+            if (utf8)
+                i = encodeUTF8(cbuf, i, chunkEnd);
+            else
+                i = encodeOther(cbuf, i, chunkEnd);
+        }
+    }
+
+    /**
+     * Encodes characters as UTF-8 into the buffer, which has room for them
+     * @param cbuf The characters to encode
+     * @param start The index of the first character
+     * @param end The index after the last character
+     * @return The index after the last character encoded
+     */
+    protected int encodeUTF8(char cbuf[], int start, int end)
+    {
+        int i = start;
+        char c;
+        byte b[] = buffer;
+        int pos = count;
+        while (i < end) {
+            c = cbuf[i++];
+            if (c < 0x80)
+                b[pos++] = (byte) c;
+            else if (c < 0x800) {
+                b[pos++] = (byte) (0xc0 | (c >> 6));
+                b[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i < end && Character.isLowSurrogate(cbuf[i])) {
+                int codePoint = Character.toCodePoint(c, cbuf[i++]);
+                b[pos++] = (byte) (0xf0 | (codePoint >> 18));
+                b[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                b[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                b[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c))
+                b[pos++] = (byte) '?';
+            else {
+                b[pos++] = (byte) (0xe0 | (c >> 12));
+                b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                b[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        count = pos;
+        return i;
+    }
+
+    /**
+     * Encodes characters with a CharsetEncoder into the buffer, which has room for them
+     * @param cbuf The characters to encode
+     * @param start The index of the first character
+     * @param end The index after the last character
+     * @return The index after the last character encoded
+     */
+    protected int encodeOther(char cbuf[], int start, int end)
+    {
+        if (encoder == null)
+            encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // The encoder is never reset so that charsets with byte order marks only write one
+        CharBuffer input = CharBuffer.wrap(cbuf, start, end - start);
+        ByteBuffer output = ByteBuffer.wrap(buffer, count, buffer.length - count);
+        CoderResult result = encoder.encode(input, output, false);
+        if (result.isOverflow())
+            throw new IllegalStateException("Output buffer too small for the " + charset.name() + " encoding");
+        
+        // A high surrogate at the end has no pair, so write the replacement for it
+        if (input.hasRemaining()) {
+            byte replacement[] = encoder.replacement();
+            output.put(replacement);
+            input.get();
+        }
+        count = output.position();
+        return input.position();
+    }
+
+    /**
+     * Writes a String
+     * @param str The String to write
+     */
+    public void write(String str) throws IOException {
+        write(str, 0, str.length());
+    }
+
+    /**
+     * Writes a range of a String
+     * @param str The String to write
+     * @param off The index of the first character
+     * @param len The number of characters
+     */
+    public void write(String str, int off, int len) throws IOException
+    {
+        // Short ASCII strings go straight into the buffer
+        if (asciiCompatible && len <= 64) {
+            if (buffer.length - count < len)
+                drainBuffer();
+            int pos = count, end = off + len;
+            char c;
+            for (int i = off; i < end; i++) {
+                if ((c = str.charAt(i)) >= 0x80) {
+                    writeChars(str, i, end - i, pos);
+                    return;
+                }
+                buffer[pos++] = (byte) c;
+            }
+            count = pos;
+            return;
+        }
+        writeChars(str, off, len, count);
+    }
+
+    /**
+     * Writes a range of a CharSequence through the scratch character array
+     * @param str The characters to write
+     * @param off The index of the first character
+     * @param len The number of characters
+     * @param pos The buffer position that the bytes before off were written up to
+     */
+    protected void writeChars(CharSequence str, int off, int len, int pos) throws IOException
+    {
+        count = pos;
+        int end = off + len, chunk;
+        while (off < end) {
+            chunk = Math.min(end - off, chars.length);
+            if (off + chunk < end && chunk > 1 && Character.isHighSurrogate(str.charAt(off + chunk - 1)))
+                chunk--;
+            if (str instanceof String)
+                ((String) str).getChars(off, off + chunk, chars, 0);
+            else if (str instanceof StringBuffer)
+                ((StringBuffer) str).getChars(off, off + chunk, chars, 0);
+            else if (str instanceof StringBuilder)
+                ((StringBuilder) str).getChars(off, off + chunk, chars, 0);
+            else
+                for (int i = 0; i < chunk; i++)
+                    chars[i] = str.charAt(off + i);
+            write(chars, 0, chunk);
+            off += chunk;
+        }
+    }
+
+    /**
+     * Appends a character
+     * @param c The character to append
+     * @return This sink
+     */
+    public OutputSink append(char c) throws IOException {
+        write(c);
+        return this;
+    }
+
+    /**
+     * Appends a CharSequence, writing "null" if it is null like Writer does
+     * @param csq The characters to append
+     * @return This sink
+     */
+    public OutputSink append(CharSequence csq) throws IOException
+    {
+        if (csq == null)
+            write("null");
+        else if (csq instanceof String)
+            write((String) csq);
+        else
+            writeChars(csq, 0, csq.length(), count);
+        return this;
+    }
+
+    /**
+     * Appends part of a CharSequence
+     * @param csq The characters to append
+     * @param start The index of the first character
+     * @param end The index after the last character
+     * @return This sink
+     */
+    public OutputSink append(CharSequence csq, int start, int end) throws IOException
+    {
+        if (csq == null)
+            csq = "null";
+        writeChars(csq, start, end - start, count);
+        return this;
+    }
+
+    /**
+     * Appends the decimal digits of a number
+     * @param value The number to append
+     * @return This sink
+     */
+    public OutputSink appendInt(long value) throws IOException
+    {
+        if (value == Long.MIN_VALUE || !asciiCompatible)
+            return append(Long.toString(value));
+        if (buffer.length - count < 20)
+            drainBuffer();
+        if (value < 0) {
+            buffer[count++] = '-';
+            value = -value;
+        }
+        count = putDigits(value, 1);
+        return this;
+    }
+
+    /**
+     * Appends a fixed-point number, such as an amount in cents as a number of
+     * dollars with two decimal places
+     * @param value The number as a count of the smallest unit
+     * @param decimals The number of decimal places in value
+     * @return This sink
+     */
+    public OutputSink appendFixed(long value, int decimals) throws IOException
+    {
+        if (value == Long.MIN_VALUE || !asciiCompatible)
+            return append(new BigDecimal(value).movePointLeft(decimals).toPlainString());
+        if (buffer.length - count < 21 + decimals)
+            drainBuffer();
+        if (value < 0) {
+            buffer[count++] = '-';
+            value = -value;
+        }
+        int end = putDigits(value, decimals + 1);
+        if (decimals > 0) {
+            // Shift the decimals right by one to make room for the point
+            System.arraycopy(buffer, end - decimals, buffer, end - decimals + 1, decimals);
+            buffer[end - decimals] = '.';
+            end++;
+        }
+        count = end;
+        return this;
+    }
+
+    /**
+     * Appends a currency amount with two decimal places, exactly like
+     * DecimalFormat("0.00") would write it
+     * @param amount The amount to append
+     * @return This sink
+     */
+    public OutputSink appendAmount(double amount) throws IOException {
+        AmountFormat.append(this, amount);
+        return this;
+    }
+
+    /**
+     * Puts the digits of a non-negative number at the end of the buffer,
+     * which has room for them
+     * @param value The number
+     * @param minDigits The least number of digits to write, padding with zeros
+     * @return The buffer position after the last digit
+     */
+    protected int putDigits(long value, int minDigits)
+    {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10)
+            digits++;
+        if (digits < minDigits)
+            digits = minDigits;
+        int end = count + digits;
+        for (int pos = end - 1; pos >= count; pos--) {
+            buffer[pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Appends bytes that are already encoded in this sink's charset
+     * @param bytes The encoded bytes
+     * @param off The index of the first byte
+     * @param len The number of bytes
+     * @return This sink
+     */
+    public OutputSink appendBytes(byte bytes[], int off, int len) throws IOException
+    {
+        if (buffer.length - count < len) {
+            drainBuffer();
+            if (len > buffer.length) {
+                drain(bytes, off, len);
+                return this;
+            }
+        }
+        System.arraycopy(bytes, off, buffer, count, len);
+        count += len;
+        return this;
+    }
+
+    /**
+     * Encodes a String the way this sink would, so that appendBytes() can
+     * copy it into the output later on. Only charsets that encode every
+     * character by itself, such as UTF-8 and single-byte charsets, can be
+     * encoded ahead of time
+     * @param str The String to encode
+     * @return The encoded String, or null if it cannot be encoded ahead of time
+     */
+    public byte[] encode(String str) throws IOException
+    {
+        int maxLength = str.length() * MAX_BYTES_PER_CHAR;
+        if (!preEncodable || maxLength > buffer.length)
+            return null;
+        
+        // Encode into the free end of the buffer and take it back out again
+        if (buffer.length - count < maxLength)
+            drainBuffer();
+        int start = count;
+        write(str);
+        byte encoded[] = new byte[count - start];
+        System.arraycopy(buffer, start, encoded, 0, encoded.length);
+        count = start;
+        return encoded;
+    }
+
+    /**
+     * Appends text that is either held in a String or in a text arena. UTF-8
+     * arena text is copied without being decoded. Nothing is written if
+     * the text does not exist
+     * @param value The String, or null if the text is in the arena or does not exist
+     * @param text The text arena, or null if none is used
+     * @param ref The arena reference, which is used when value is null
+     * @return This sink
+     */
+    public OutputSink appendText(String value, TextArena text, long ref) throws IOException
+    {
+        if (value != null)
+            write(value);
+        else if (text == null || ref == TextArena.NONE)
+            return this;
+        else if (!utf8)
+            write(text.get(ref));
+        else if (TextArena.isMapped(ref)) {
+            // Copy the bytes out of the mapped book
+            int len = TextArena.length(ref);
+            if (buffer.length - count < len)
+                drainBuffer();
+            if (len > buffer.length)
+                write(text.get(ref));
+            else {
+                text.getBook().get(TextArena.mappedPosition(ref), buffer, count, len);
+                count += len;
+            }
+        } else
+            appendBytes(text.getData(), TextArena.offset(ref), TextArena.length(ref));
+        return this;
+    }
+
+    /**
+     * Appends text like appendText() does, but as one field of a line of
+     * tab-separated values, so tabs, line breaks and other control characters
+     * become spaces. UTF-8 and single-byte output is checked eight bytes at
+     * a time after it has been encoded into the buffer, which leaves clean
+     * text as it was copied
+     * @param value The String, or null if the text is in the arena or does not exist
+     * @param text The text arena, or null if none is used
+     * @param ref The arena reference, which is used when value is null
+     * @return True if any character was replaced
+     */
+    public boolean appendField(String value, TextArena text, long ref) throws IOException
+    {
+        int maxLength;
+        if (value != null)
+            maxLength = value.length() * MAX_BYTES_PER_CHAR;
+        else if (text == null || ref == TextArena.NONE)
+            return false;
+        else
+            maxLength = TextArena.length(ref) * (utf8? 1: MAX_BYTES_PER_CHAR);
+
+        // Encode the field into the buffer in one piece and clean it up there
+        if (preEncodable && maxLength <= buffer.length) {
+            if (buffer.length - count < maxLength)
+                drainBuffer();
+            int start = count;
+            appendText(value, text, ref);
+            if (words == null)
+                words = ByteBuffer.wrap(buffer).order(ByteOrder.nativeOrder());
+            return replaceControlBytes(words, start, count);
+        }
+
+        // Otherwise clean up the characters before they get encoded
+        if (value == null)
+            value = text.get(ref);
+        int length = value.length();
+        int i;
+        for (i = 0; i < length && value.charAt(i) >= 0x20; i++);
+        if (i == length) {
+            write(value);
+            return false;
+        }
+        write(value, 0, i);
+        char c;
+        for (; i < length; i++)
+            write(((c = value.charAt(i)) < 0x20)? ' ': c);
+        return true;
+    }
+
+    /**
+     * Appends a String as one field of a line of tab-separated values, like
+     * appendField(String, TextArena, long) does
+     * @param value The String, or null to write nothing
+     * @return True if any character was replaced
+     */
+    public boolean appendField(String value) throws IOException {
+        return appendField(value, null, TextArena.NONE);
+    }
+
+    /**
+     * Replaces the control characters in a range of UTF-8 or single-byte
+     * ASCII compatible text with spaces. These charsets only use bytes below
+     * 0x20 for the control characters themselves, so the range is checked
+     * eight bytes at a time and only a word with such a byte is looked at
+     * byte by byte
+     * @param bytes The encoded text
+     * @param start The index of the first byte
+     * @param end The index after the last byte
+     * @return True if any byte was replaced
+     */
+    public static boolean replaceControlBytes(ByteBuffer bytes, int start, int end)
+    {
+        boolean replaced = false;
+        int i, wordEnd;
+        long word;
+        byte b;
+        if (end - start < 8) {
+            for (i = start; i < end; i++) {
+                b = bytes.get(i);
+                if (b >= 0 && b < 0x20) {
+                    bytes.put(i, (byte) ' ');
+                    replaced = true;
+                }
+            }
+            return replaced;
+        }
+
+        // Check whole words, the last of which overlaps the one before it
+        // rather than leaving a few bytes over. A byte below 0x20 borrows when
+        // 0x20 is taken from it, setting its top bit, which was clear
+        for (i = start; ; i += 8) {
+            if (i > end - 8)
+                i = end - 8;
+            word = bytes.getLong(i);
+            if (((word - SPACES) & ~word & TOP_BITS) != 0) {
+                for (wordEnd = i + 8; i < wordEnd; i++) {
+                    b = bytes.get(i);
+                    if (b >= 0 && b < 0x20) {
+                        bytes.put(i, (byte) ' ');
+                        replaced = true;
+                    }
+                }
+                i -= 8;
+            }
+            if (i == end - 8)
+                return replaced;
+        }
+    }
+
+    /**
+     * Returns the number of bytes waiting in the buffer
+     * @return The number of buffered bytes
+     */
+    public int getBufferedCount() {
+        return count;
+    }
+
+    /**
+     * Hands the buffered bytes to drain() and empties the buffer
+     */
+    protected void drainBuffer() throws IOException
+    {
+        if (count > 0) {
+            drain(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Sends encoded bytes on to their destination. Subclasses override this
+     * to write somewhere other than the OutputStream
+     * @param bytes The encoded bytes
+     * @param off The index of the first byte
+     * @param len The number of bytes
+     */
+    protected void drain(byte bytes[], int off, int len) throws IOException {
+        out.write(bytes, off, len);
+    }
+
+    /**
+     * Writes out the buffered bytes and flushes the stream
+     */
+    public void flush() throws IOException
+    {
+        drainBuffer();
+        if (out != null)
+            out.flush();
+    }
+
+    /**
+     * Writes out the buffered bytes and closes the stream
+     */
+    public void close() throws IOException
+    {
+        flush();
+        if (out != null)
+            out.close();
+    }
+}
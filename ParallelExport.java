@@ -0,0 +1,331 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders the independent sections of an export on several threads. Every
+ * section is rendered into its own MemorySink with a forked export context,
+ * and the sections are written out in their own order as soon as they are
+ * ready, so the output is the same as rendering them one after the other.
+ * Threads do not run further ahead of the writing than a few sections each,
+ * which keeps the memory use down. If a section fails, the sections before
+ * it and the part of it rendered before the failure still get written, as
+ * they would have been by a serial export.
+ * <p>
+ * When the output is a FileSink and the conversion asks for positional
+ * writes, the sections are first rendered into counting sinks to get their
+ * exact lengths. The space for all of them is then reserved in the file, and
+ * every thread writes its sections straight into their place in the file,
+ * with nothing joined in memory
+ */
+abstract class ParallelExport
+{
+    /** The number of sections that every thread may render ahead of the writing */
+    protected static final int SECTIONS_AHEAD = 4;
+
+    /** The rendered sections that have not been written yet, indexed by section */
+    protected MemorySink rendered[];
+
+    /** The number of sections written out so far */
+    protected int written = 0;
+
+    /** The failure of the first section that failed, or null if none did */
+    protected Throwable failure = null;
+
+    /** The first section that failed, or the number of sections if none did */
+    protected int failedSection;
+
+    /** Whether the writing stopped, so that the threads should stop rendering */
+    protected boolean stopped = false;
+
+    /**
+     * Renders one section of the export
+     * @param section The index of the section
+     * @param sink The sink to render the section into
+     * @param context The forked export context of the rendering thread
+     * @throws IOException Thrown if the section could not be rendered
+     */
+    protected abstract void render(int section, OutputSink sink, ExportContext context) throws IOException;
+
+    /**
+     * Renders the sections and writes them out in order. The warnings of
+     * every thread get merged into the export context afterwards
+     * @param writer The sink to write the sections to
+     * @param context The export context, which must be fully set up
+     * @param sections The number of sections
+     * @param threads The number of threads to render with
+     * @throws IOException Thrown if a section could not be rendered or written
+     */
+    public void write(final OutputSink writer, ExportContext context, final int sections, int threads) throws IOException
+    {
+        if (context.conversion.positionalWrites && writer instanceof FileSink && writer.isPreEncodable() &&
+            writePositioned((FileSink) writer, context, sections, threads))
+            return;
+        rendered = new MemorySink[sections];
+        failedSection = sections;
+        final int ahead = threads * SECTIONS_AHEAD;
+        final AtomicInteger next = new AtomicInteger();
+        final ExportContext forks[] = new ExportContext[Math.min(threads, sections)];
+        Thread workers[] = new Thread[forks.length];
+        for (int i = 0; i < workers.length; i++) {
+            final ExportContext fork = forks[i] = context.fork();
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    int section;
+                    MemorySink sink;
+                    while ((section = next.getAndIncrement()) < sections && waitForRoom(section, ahead)) {
+                        sink = MemorySink.forOutput(writer);
+                        try {
+                            render(section, sink, fork);
+                        } catch (Throwable e) {
+                            failed(section, sink, e);
+                            break;
+                        }
+                        finished(section, sink);
+                    }
+                }
+            }, Thread.currentThread().getName() + "-render-" + (i + 1));
+            workers[i].start();
+        }
+
+        // Write out the sections in order as they come in, up to the first
+        // section that failed
+        try {
+            for (int i = 0; i < sections; i++) {
+                waitForSection(i).copyTo(writer);
+                if (i == failedSection)
+                    break;
+            }
+        } finally {
+            synchronized (this) {
+                stopped = true;
+                notifyAll();
+            }
+            for (int i = 0; i < workers.length; i++) {
+                while (true) {
+                    try {
+                        workers[i].join();
+                        break;
+                    } catch (InterruptedException e) {
+                        // Keep waiting; the thread is rendering into our sinks
+                    }
+                }
+                context.merge(forks[i]);
+            }
+        }
+
+        // Pass on the failure of the first section that failed
+        rethrow(failure);
+    }
+
+    /**
+     * Throws the failure of a rendering thread on the calling thread
+     * @param failure The failure, or null if there was none
+     * @throws IOException The failure if it was an IOException or an
+     * unexpected checked exception
+     */
+    protected static void rethrow(Throwable failure) throws IOException
+    {
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        else if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        else if (failure instanceof Error)
+            throw (Error) failure;
+        else if (failure != null)
+            throw new IOException(failure.toString());
+    }
+
+    /**
+     * Renders the sections twice, first to size them and then to write them
+     * into their reserved space in the file. Only the warnings of the second
+     * pass get merged into the export context. If any section fails while it
+     * is being sized, nothing gets written or merged, so that the sections
+     * can be joined the usual way instead
+     * @param file The file sink to write the sections to
+     * @param context The export context, which must be fully set up
+     * @param sections The number of sections
+     * @param threads The number of threads to render with
+     * @return True if the sections were written or false if sizing failed
+     * @throws IOException Thrown if a section could not be written
+     */
+    protected boolean writePositioned(final FileSink file, ExportContext context, int sections, int threads) throws IOException
+    {
+        // Size the sections with forks that are thrown away afterwards, so
+        // that their warnings and counts are not added twice
+        ExportContext sizingForks[] = new ExportContext[Math.min(threads, sections)];
+        final ExportContext forks[] = new ExportContext[sizingForks.length];
+        for (int i = 0; i < forks.length; i++) {
+            sizingForks[i] = context.fork();
+            forks[i] = context.fork();
+        }
+        final long lengths[] = new long[sections];
+        final long positions[] = new long[sections];
+
+        // Get the exact length of every section
+        Throwable sizingFailure = runPass(sizingForks, sections, new Pass() {
+            public void run(int section, ExportContext fork) throws IOException {
+                CountingSink sink = new CountingSink(file.getCharset());
+                render(section, sink, fork);
+                lengths[section] = sink.length();
+            }
+        });
+        if (sizingFailure != null)
+            return false;
+
+        // Reserve the space of the sections and write them into it
+        long total = 0;
+        for (int i = 0; i < sections; i++) {
+            positions[i] = total;
+            total += lengths[i];
+        }
+        final long start = file.reserve(total);
+        Throwable writingFailure = runPass(forks, sections, new Pass() {
+            public void run(int section, ExportContext fork) throws IOException {
+                FileSink.Region sink = file.region(start + positions[section]);
+                render(section, sink, fork);
+                sink.flush();
+                if (sink.length() != lengths[section])
+                    throw new IOException("Section " + section + " was " + lengths[section] + " bytes long when sized but " + sink.length() + " bytes long when written");
+            }
+        });
+        for (int i = 0; i < forks.length; i++)
+            context.merge(forks[i]);
+        rethrow(writingFailure);
+        return true;
+    }
+
+    /**
+     * One pass over the sections of a positional write
+     */
+    protected static interface Pass
+    {
+        /**
+         * Handles one section
+         * @param section The index of the section
+         * @param fork The forked export context of the thread
+         * @throws IOException Thrown if the section could not be handled
+         */
+        public void run(int section, ExportContext fork) throws IOException;
+    }
+
+    /**
+     * Runs a pass over every section on one thread per fork, stopping at the
+     * first failure
+     * @param forks The forked export contexts, one per thread
+     * @param sections The number of sections
+     * @param pass The pass to run
+     * @return The first failure, or null if every section was handled
+     */
+    protected static Throwable runPass(ExportContext forks[], final int sections, final Pass pass)
+    {
+        final AtomicInteger next = new AtomicInteger();
+        final Throwable failures[] = new Throwable[1];
+        Thread workers[] = new Thread[forks.length];
+        for (int i = 0; i < workers.length; i++) {
+            final ExportContext fork = forks[i];
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    int section;
+                    try {
+                        while ((section = next.getAndIncrement()) < sections) {
+                            synchronized (failures) {
+                                if (failures[0] != null)
+                                    break;
+                            }
+                            pass.run(section, fork);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            if (failures[0] == null)
+                                failures[0] = e;
+                        }
+                    }
+                }
+            }, Thread.currentThread().getName() + "-render-" + (i + 1));
+            workers[i].start();
+        }
+        for (int i = 0; i < workers.length; i++) {
+            while (true) {
+                try {
+                    workers[i].join();
+                    break;
+                } catch (InterruptedException e) {
+                    // Keep waiting; the thread is still using the forks
+                }
+            }
+        }
+        return failures[0];
+    }
+
+    /**
+     * Waits until a section may be rendered without running too far ahead
+     * of the writing
+     * @param section The section to render
+     * @param ahead The number of sections that may be waiting to be written
+     * @return True if the section should be rendered or false if it never
+     * gets written
+     */
+    protected synchronized boolean waitForRoom(int section, int ahead)
+    {
+        while (!stopped && section < failedSection && section >= written + ahead) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Check again
+            }
+        }
+        return !stopped && section < failedSection;
+    }
+
+    /**
+     * Hands a rendered section over to the writing thread
+     * @param section The index of the section
+     * @param sink The rendered section
+     */
+    protected synchronized void finished(int section, MemorySink sink)
+    {
+        rendered[section] = sink;
+        notifyAll();
+    }
+
+    /**
+     * Ends the export at a section that failed, unless an earlier section
+     * failed too. The sections after it are not rendered anymore
+     * @param section The index of the section
+     * @param sink The part of the section that was rendered before the failure
+     * @param e The failure
+     */
+    protected synchronized void failed(int section, MemorySink sink, Throwable e)
+    {
+        if (section < failedSection) {
+            failedSection = section;
+            failure = e;
+            rendered[section] = sink;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits for a section to be rendered and takes it out of the waiting
+     * sections. Every section up to the first one that failed gets rendered
+     * @param section The index of the section
+     * @return The rendered section
+     */
+    protected synchronized MemorySink waitForSection(int section)
+    {
+        while (rendered[section] == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Check again
+            }
+        }
+        MemorySink sink = rendered[section];
+        rendered[section] = null;
+        written = section + 1;
+        notifyAll();
+        return sink;
+    }
+}
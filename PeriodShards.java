@@ -0,0 +1,145 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Splits a book into one book per year, quarter or month of the posting
+ * dates. Each of these books has the transactions of its period and the
+ * accounts that they use, so that it exports with its own account and
+ * category lists
+ */
+class PeriodShards
+{
+    /** No sharding */
+    public static final int NONE = -1;
+
+    /** One shard per year */
+    public static final int YEAR = 0;
+
+    /** One shard per quarter */
+    public static final int QUARTER = 1;
+
+    /** One shard per month */
+    public static final int MONTH = 2;
+
+    /** The period name of transactions without a usable posting date */
+    public static final String UNDATED = "undated";
+
+    /**
+     * No instances; everything is static
+     */
+    private PeriodShards() {
+    }
+
+    /**
+     * Returns the sharding period for a --shard-by value
+     * @param value The period name, which is year, quarter or month
+     * @return The period, or NONE if the name is unknown
+     */
+    public static int getPeriod(String value)
+    {
+        if (value.equalsIgnoreCase("year"))
+            return YEAR;
+        else if (value.equalsIgnoreCase("quarter"))
+            return QUARTER;
+        else if (value.equalsIgnoreCase("month"))
+            return MONTH;
+        else
+            return NONE;
+    }
+
+    /**
+     * Splits a book by period in one pass over the accounts' transactions.
+     * Every account keeps its transactions in their original order
+     * @param conversion The book to split
+     * @param period The period, as specified by the constants above
+     * @return Map of period names, such as 2024, 2024-Q3 or 2024-07, to their
+     * books, sorted by period name
+     */
+    public static SortedMap split(Conversion conversion, int period)
+    {
+        // Sort every account's transactions into its lists for the periods,
+        // working out the period of each transaction only once
+        String periods[] = new String[conversion.transactionCount];
+        SortedMap lists = new TreeMap();
+        Iterator accountIterator = conversion.accounts.values().iterator();
+        Iterator transIterator;
+        Account currentAccount;
+        Transaction currentTransaction;
+        String name;
+        List accountLists[];
+        while (accountIterator.hasNext()) {
+            currentAccount = (Account) accountIterator.next();
+            transIterator = currentAccount.trans.iterator();
+            while (transIterator.hasNext()) {
+                currentTransaction = (Transaction) transIterator.next();
+                if ((name = periods[currentTransaction.index]) == null)
+                    name = periods[currentTransaction.index] = getPeriodName(currentTransaction.datePosted, period);
+                if ((accountLists = (List[]) lists.get(name)) == null) {
+                    accountLists = new List[conversion.accountCount];
+                    lists.put(name, accountLists);
+                }
+                if (accountLists[currentAccount.index] == null)
+                    accountLists[currentAccount.index] = new ArrayList();
+                accountLists[currentAccount.index].add(currentTransaction);
+            }
+        }
+
+        // Make a book out of every period's lists
+        SortedMap shards = new TreeMap();
+        Iterator periodIterator = lists.entrySet().iterator();
+        Map.Entry entry;
+        while (periodIterator.hasNext()) {
+            entry = (Map.Entry) periodIterator.next();
+            shards.put(entry.getKey(), conversion.subset((List[]) entry.getValue()));
+        }
+        return shards;
+    }
+
+    /**
+     * Returns the name of the period that a posting date falls in
+     * @param gnucashDate The GnuCash date, which starts with YYYY-MM-DD
+     * @param period The period, as specified by the constants above
+     * @return The period name, or UNDATED if the date is missing or unusable
+     */
+    protected static String getPeriodName(String gnucashDate, int period)
+    {
+        if (gnucashDate == null || gnucashDate.length() < 7)
+            return UNDATED;
+        for (int i = 0; i < 4; i++)
+            if (gnucashDate.charAt(i) < '0' || gnucashDate.charAt(i) > '9')
+                return UNDATED;
+        String year = gnucashDate.substring(0, 4);
+        if (period == YEAR)
+            return year;
+        int month = DateCache.twoDigits(gnucashDate, 5);
+        if (month < 1 || month > 12)
+            return UNDATED;
+        if (period == QUARTER)
+            return year + "-Q" + ((month + 2) / 3);
+        return gnucashDate.substring(0, 7);
+    }
+
+    /**
+     * Returns the file that a period's shard of an output gets written to,
+     * which has the period name added before the extension
+     * @param file The output file
+     * @param name The period name
+     * @return The shard's file, such as my-2024.qif for my.qif
+     */
+    public static File getShardFile(File file, String name)
+    {
+        String fileName = file.getName();
+        int pos = fileName.lastIndexOf('.');
+        if (pos > 0)
+            return new File(file.getParentFile(), fileName.substring(0, pos) + "-" + name + fileName.substring(pos));
+        else
+            return new File(file.getParentFile(), fileName + "-" + name);
+    }
+}
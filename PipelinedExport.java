@@ -0,0 +1,185 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hands streamed transactions to the exports on threads of their own, so
+ * that the source file is parsed while the transactions read so far are
+ * rendered. The parsing thread copies the transactions into batches and
+ * puts each batch into a short queue of every export; once a queue is
+ * full, parsing waits for that export to catch up. Together with a
+ * QueuedOutputStream under each output, parsing, rendering and writing
+ * all overlap, so a streamed export takes about as long as its slowest
+ * stage rather than all of them added up
+ */
+class PipelinedExport implements GnuCashData.TransactionListener
+{
+    /** The number of transactions in a batch */
+    public static final int BATCH_SIZE = 256;
+
+    /** The number of batches that may wait for each export */
+    public static final int QUEUE_LENGTH = 8;
+
+    /** Queue entry that tells a rendering thread that no more batches come */
+    protected static final Transaction END[] = new Transaction[0];
+
+    /** The exports that render the transactions */
+    protected StreamingExport exports[];
+
+    /** The queued batches of each export */
+    protected BlockingQueue queues[];
+
+    /** The thread that renders each export */
+    protected Thread threads[];
+
+    /** The batch being filled */
+    protected Transaction batch[] = new Transaction[BATCH_SIZE];
+
+    /** The number of transactions in the batch */
+    protected int batchCount = 0;
+
+    /** The first exception or error that a rendering thread ran into, or null */
+    protected volatile Throwable failure = null;
+
+    /** Whether the rendering threads have been told to stop */
+    protected boolean ended = false;
+
+    /**
+     * Creates a new pipeline and starts a rendering thread for every export,
+     * whose start() must have been called
+     * @param exports The exports to hand the transactions to
+     */
+    public PipelinedExport(StreamingExport exports[])
+    {
+        this.exports = exports;
+        queues = new BlockingQueue[exports.length];
+        threads = new Thread[exports.length];
+        for (int i = 0; i < exports.length; i++) {
+            final int index = i;
+            queues[i] = new ArrayBlockingQueue(QUEUE_LENGTH);
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    render(index);
+                }
+            }, "render-" + (i + 1));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Renders the batches of one export until the end of the book. After a
+     * failure, the rest is thrown away so that parsing never waits for a
+     * queue that nobody takes from
+     * @param index The index of the export
+     */
+    protected void render(int index)
+    {
+        Transaction transactions[];
+        while (true) {
+            try {
+                transactions = (Transaction[]) queues[index].take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (transactions == END)
+                return;
+            if (failure != null)
+                continue;
+            try {
+                for (int i = 0; i < transactions.length && transactions[i] != null; i++)
+                    exports[index].transaction(transactions[i]);
+            } catch (Throwable e) {
+                // Errors are kept too, or the queue would stop draining
+                // and parsing would wait for it forever
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Copies a transaction into the batch, handing the batch to the exports
+     * once it is full
+     * @param transaction The transaction, which gets read into again afterwards
+     * @throws IOException Thrown if an export ran into an exception
+     */
+    public void transaction(Transaction transaction) throws IOException
+    {
+        batch[batchCount++] = transaction.copy();
+        if (batchCount == BATCH_SIZE) {
+            checkFailure();
+            putBatch(batch);
+            batch = new Transaction[BATCH_SIZE];
+            batchCount = 0;
+        }
+    }
+
+    /**
+     * Hands the last batch to the exports and waits until they have
+     * rendered every transaction
+     * @throws IOException Thrown if an export ran into an exception
+     */
+    public void finish() throws IOException
+    {
+        if (batchCount > 0)
+            putBatch(batch);
+        batch = null;
+        close();
+        checkFailure();
+    }
+
+    /**
+     * Stops the rendering threads once they have taken what was queued,
+     * which also has to happen when parsing fails
+     */
+    public void close()
+    {
+        if (ended)
+            return;
+        ended = true;
+        putBatch(END);
+        for (int i = 0; i < threads.length; i++) {
+            while (threads[i].isAlive()) {
+                try {
+                    threads[i].join();
+                } catch (InterruptedException e) {
+                    // Keep waiting; the thread finishes the batch that it is rendering
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts a batch into the queue of every export, waiting for room
+     * @param transactions The batch
+     */
+    protected void putBatch(Transaction transactions[])
+    {
+        for (int i = 0; i < queues.length; i++) {
+            while (true) {
+                try {
+                    queues[i].put(transactions);
+                    break;
+                } catch (InterruptedException e) {
+                    // Keep trying; the export would miss the batch otherwise
+                }
+            }
+        }
+    }
+
+    /**
+     * Throws the exception or error that an export ran into, if any
+     * @throws IOException Thrown if an export failed
+     */
+    protected void checkFailure() throws IOException
+    {
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        else if (failure instanceof Error)
+            throw (Error) failure;
+        else if (failure != null)
+            throw new IOException("Could not render the output: " + failure, failure);
+    }
+}
@@ -1,15 +1,16 @@
 package net.sourceforge.gnucashtoqif;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Writer;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.text.NumberFormat;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Locale;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeSet;
 import java.util.regex.Pattern;
 
@@ -20,45 +21,207 @@ import javax.swing.filechooser.FileFilter;
  */
 public class QIF2003OutputFormat implements OutputFormat
 {
-    /** A number formatter for the currency that gets written to the QIF file */
-    protected static final NumberFormat currencyFormat = new DecimalFormat("0.00", new DecimalFormatSymbols(Locale.US));
-
 	/**
 	 * Write out QIF &lt;= 2003 data to the given writer using the input conversion parameters
-	 * @param conversion The accounts and their transaction data
+	 * @param context The export context with the accounts and their transaction data
+	 * @param writer The writer to output the converted data to
+	 */
+	public void export(ExportContext context, OutputSink writer) throws IOException
+	{
+		// Write out everything that comes before the transactions
+		writeLists(writer, context);
+		if (context.conversion.renderThreads > 1) {
+			writeSectionsInParallel(writer, context);
+			return;
+		}
+		
+        // Loop through all the non-double-entry accounts
+        Iterator accountIterator = context.accountSet.iterator();
+        Account currentAccount;
+        while (accountIterator.hasNext()) {
+            currentAccount = (Account) accountIterator.next();
+            if (hasTransactionSection(context, currentAccount))
+            {
+                // Write out this Account's header and transactions
+                writeAccountTransactionHeader(writer, context, currentAccount);
+                writeAccountTransactions(writer, currentAccount, context, isDuplicating());
+            }
+        }
+	}
+	
+	/**
+	 * Renders the transaction sections of the accounts on several threads,
+	 * writing them out in the sorted account order
+	 * @param writer The writer to output the converted data to
+	 * @param context The export context, which has the lists written out
+	 * @throws IOException Thrown if an error comes up while
+	 * writing to the Writer
+	 */
+	protected void writeSectionsInParallel(OutputSink writer, ExportContext context) throws IOException
+	{
+		// Gather the accounts that get a section of transactions
+		final List accounts = new ArrayList();
+		Iterator accountIterator = context.accountSet.iterator();
+		Account currentAccount;
+		while (accountIterator.hasNext()) {
+			currentAccount = (Account) accountIterator.next();
+			if (hasTransactionSection(context, currentAccount))
+				accounts.add(currentAccount);
+		}
+		
+		// Write out each Account's header and transactions on the threads
+		new ParallelExport() {
+			protected void render(int section, OutputSink sink, ExportContext fork) throws IOException {
+				Account account = (Account) accounts.get(section);
+				writeAccountTransactionHeader(sink, fork, account);
+				writeAccountTransactions(sink, account, fork, isDuplicating());
+			}
+		}.write(writer, context, accounts.size(), context.conversion.renderThreads);
+	}
+	
+	/** The name of the manifest that exportAccountFiles() writes */
+	public static final String MANIFEST_NAME = "manifest.txt";
+	
+	/** Matcher of the characters that are left out of account file names */
+	protected static Pattern fileNameCharacters = Pattern.compile("[^A-Za-z0-9._-]+");
+	
+	/**
+	 * Writes out the lists and every account's transactions to files of
+	 * their own in a directory, rendering and writing the accounts on several
+	 * threads. Each file is written to a temporary file that gets renamed
+	 * once it is complete. The manifest, which is written last, lists the
+	 * files in order with their sizes and account names; joining the files
+	 * in that order gives the output of export()
+	 * @param context The export context with the accounts and their transaction data
+	 * @param directory The directory to write the files to, which must exist
+	 * @param charset The charset of the files
+	 * @throws IOException Thrown if an error comes up while
+	 * writing the files
+	 */
+	public void exportAccountFiles(ExportContext context, final File directory, final Charset charset) throws IOException
+	{
+		// Write out the lists to their own file
+		MemorySink sink = new MemorySink(charset);
+		writeLists(sink, context);
+		String listsName = "0000-lists.qif";
+		writeFile(new File(directory, listsName), sink);
+		OutputSink manifest = new MemorySink(charset);
+		manifest.append(listsName).append('\t').appendInt(sink.length()).append("\t\n");
+		
+		// Gather the accounts that get a section of transactions
+		final List accounts = new ArrayList();
+		Iterator accountIterator = context.accountSet.iterator();
+		Account currentAccount;
+		while (accountIterator.hasNext()) {
+			currentAccount = (Account) accountIterator.next();
+			if (hasTransactionSection(context, currentAccount))
+				accounts.add(currentAccount);
+		}
+		
+		// Write out each Account's header and transactions to its own file on
+		// the threads, listing the files in the manifest in order
+		new ParallelExport() {
+			protected void render(int section, OutputSink entry, ExportContext fork) throws IOException {
+				Account account = (Account) accounts.get(section);
+				MemorySink sink = new MemorySink(charset);
+				writeAccountTransactionHeader(sink, fork, account);
+				writeAccountTransactions(sink, account, fork, isDuplicating());
+				String name = getAccountFileName(section + 1, account);
+				writeFile(new File(directory, name), sink);
+				entry.append(name).append('\t').appendInt(sink.length()).append('\t').append(account.name).append('\n');
+			}
+		}.write(manifest, context, accounts.size(), Math.max(context.conversion.renderThreads, 1));
+		
+		// Finish with the manifest
+		writeFile(new File(directory, MANIFEST_NAME), (MemorySink) manifest);
+	}
+	
+	/**
+	 * Returns the name of an account's file, which starts with its position
+	 * so that the names sort in output order and never clash
+	 * @param position The position of the account among the account files,
+	 * starting at 1
+	 * @param account The account
+	 * @return The file name
+	 */
+	protected static String getAccountFileName(int position, Account account)
+	{
+		String name = fileNameCharacters.matcher(account.name).replaceAll("_");
+		if (name.length() > 64)
+			name = name.substring(0, 64);
+		String number = String.valueOf(position);
+		while (number.length() < 4)
+			number = "0" + number;
+		return number + "-" + name + ".qif";
+	}
+	
+	/**
+	 * Writes a rendered file through a channel to a temporary file next to it
+	 * and then renames the temporary file, so that the file only ever shows up
+	 * complete
+	 * @param file The file to write
+	 * @param sink The rendered contents of the file
+	 * @throws IOException Thrown if the file could not be written
+	 */
+	protected static void writeFile(File file, MemorySink sink) throws IOException
+	{
+		File temporary = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(temporary);
+		try {
+			FileChannel channel = stream.getChannel();
+			sink.writeTo(channel);
+		} finally {
+			stream.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(), new StandardCopyOption[] {StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE});
+	}
+	
+	/**
+	 * Sorts the accounts and writes out the account and category lists, which
+	 * also sets the account types in the export context
 	 * @param writer The writer to output the converted data to
+	 * @param context The export context
+	 * @throws IOException Thrown if an error comes up while
+	 * writing to the Writer
 	 */
-	public void export(Conversion conversion, Writer writer) throws IOException
+	protected void writeLists(OutputSink writer, ExportContext context) throws IOException
 	{
 		// Ensure that all accounts have getFullName() called
-		updateFullNames(conversion);
+		updateFullNames(context);
 		
 		// Create a Set of sorted accounts
-	    conversion.accountSet = new TreeSet(new AccountComparator());
-	    conversion.accountSet.addAll(conversion.accounts.values());
+	    context.accountSet = new TreeSet(new AccountComparator(context));
+	    context.accountSet.addAll(context.conversion.accounts.values());
 
         // Write out a blank line (not sure if this is really necessary, though; it's to
         // exactly match Quicken's own QIF export output)
         writer.write("\n");
         
         // Write out the Account list
-        writeAccountList(writer, conversion);
+        writeAccountList(writer, context);
 
         // Write out the Category list
-        writeCategoryList(writer, conversion);
-        
-        // Loop through all the non-double-entry accounts
-        Iterator accountIterator = conversion.accountSet.iterator();
-        Account currentAccount;
-        while (accountIterator.hasNext()) {
-            currentAccount = (Account) accountIterator.next();
-            if (!currentAccount.isDoubleEntry() && currentAccount.trans.size() > 0)
-            {
-                // Write out this Account's header and transactions
-                writeAccountTransactionHeader(writer, currentAccount);
-                writeAccountTransactions(writer, currentAccount, conversion, false);
-            }
-        }
+        writeCategoryList(writer, context);
+	}
+	
+	/**
+	 * Returns whether transactions are listed in every affected account
+	 * rather than only in their primary account
+	 * @return False, since QIF &lt;= 2003 only lists them in the primary account
+	 */
+	protected boolean isDuplicating() {
+		return false;
+	}
+	
+	/**
+	 * Returns whether an account gets its own section of transactions, which
+	 * non-double-entry accounts that have transactions do
+	 * @param context The export context, which has the account types set
+	 * @param account The account to check
+	 * @return True if the account's transactions get written out
+	 */
+	public boolean hasTransactionSection(ExportContext context, Account account) {
+		return !context.isDoubleEntry(account) && account.used;
 	}
 	
 	/** Our cached FileFilter singleton instance */
@@ -91,10 +254,11 @@ public class QIF2003OutputFormat implements OutputFormat
     /**
      * Writes out the account list to the given Writer object as QIF 2003
      * @param writer The Writer to write QIF data to
+     * @param context The export context
      * @throws IOException Thrown if an error comes up while
      * writing to the Writer
      */
-    protected void writeAccountList(Writer writer, Conversion conversion) throws IOException
+    protected void writeAccountList(OutputSink writer, ExportContext context) throws IOException
     {
         // Loop through all the accounts, writing out the names and descriptions
         // of the non-double-entry accounts. All other information came from
@@ -102,7 +266,7 @@ public class QIF2003OutputFormat implements OutputFormat
         // they mean (AutoSwitch, that is)
         writer.write("!Option:AutoSwitch\n");
         writer.write("!Account\n");
-        Iterator iterator = conversion.accountSet.iterator();
+        Iterator iterator = context.accountSet.iterator();
         Account current;
         String name, description;
         while (iterator.hasNext()) {
@@ -111,19 +275,19 @@ public class QIF2003OutputFormat implements OutputFormat
             // If this is not a double-entry account, then write out its information
             // if it has at least one transaction or if we're supposed to write out
             // all accounts
-            if (!current.isDoubleEntry() && (current.trans.size() > 0 || !conversion.pruneUnusedAccounts)) {
+            if (!context.isDoubleEntry(current) && (current.used || !context.conversion.pruneUnusedAccounts)) {
                 name = current.name;
                 description = current.getDescription("");
                 if (name.length() > 33)
-                    conversion.warnings.add("Account \"" + name + "\" might import as \"" + name.substring(0, 33) + "\" in Quicken");
-                writer.write("N" + name + "\n");
+                    context.warnings.add("Account \"" + name + "\" might import as \"" + name.substring(0, 33) + "\" in Quicken");
+                writer.append('N').append(name).append('\n');
                 if (description.length() > 64)
-                    conversion.warnings.add("Description of account \"" + name + "\" is " + description.length() + " characters, which might crash Quicken while importing. Shrink to at most 64 characters");
+                    context.warnings.add("Description of account \"" + name + "\" is " + description.length() + " characters, which might crash Quicken while importing. Shrink to at most 64 characters");
                 if (badAccountNames.matcher(name).find())
-                	conversion.warnings.add("Account \"" + name + "\" might not import properly due to : or / in its name");
-                writer.write("D" + description + "\n");
+                	context.warnings.add("Account \"" + name + "\" might not import properly due to : or / in its name");
+                writer.append('D').append(description).append('\n');
                 writer.write("X\n");
-                writer.write("T" + current.getQIFTypeName() + "\n");
+                writer.append('T').append(context.getQIFTypeName(current)).append('\n');
                 writer.write("^\n");
             }
         }
@@ -133,58 +297,60 @@ public class QIF2003OutputFormat implements OutputFormat
     /**
      * Writes out the header information for an account in the QIF 2003 format
      * @param writer The Writer to write QIF data to
+     * @param context The export context
      * @param account The Account to write to the Writer
      * @throws IOException Thrown if an error comes up while
      * writing to the Writer
      */
-    protected void writeAccountTransactionHeader(Writer writer, Account account) throws IOException
+    protected void writeAccountTransactionHeader(OutputSink writer, ExportContext context, Account account) throws IOException
     {
         // Write out the account type header in the QIF 2003 format
-        String type = account.getQIFTypeName();
+        String type = context.getQIFTypeName(account);
         writer.write("!Account\n");
-        writer.write("N" + account.name + "\n");
+        writer.append('N').append(account.name).append('\n');
         writer.write("D\n");
         writer.write("X\n");
-        writer.write("T" + type + "\n");
+        writer.append('T').append(type).append('\n');
         writer.write("^\n");
-        writer.write("!Type:" + type + "\n");
+        writer.append("!Type:").append(type).append('\n');
     }
 
     /**
      * Writes out the category list to the given Writer object
      * @param writer The Writer to write QIF data to
+     * @param context The export context
      * @throws IOException Thrown if an error comes up while
      * writing to the Writer
      */
-    protected void writeCategoryList(Writer writer, Conversion conversion) throws IOException
+    protected void writeCategoryList(OutputSink writer, ExportContext context) throws IOException
     {
         // Loop through all the accounts, writing out the names and descriptions
         // of the double-entry accounts
         writer.write("!Type:Cat\n");
-        Iterator iterator = conversion.accountSet.iterator();
+        Iterator iterator = context.accountSet.iterator();
         Account current;
         String name, description;
         while (iterator.hasNext()) {
             current = (Account) iterator.next();
             
-            // Set the account type integer in Account for this Account
-            setAccountType(current, conversion.warnings);
+            // Set the account type integer in the export context for this Account
+            setAccountType(context, current);
 
             // If this is a double-entry account, then write out its information
             // if it has at least one transaction or if we're supposed to write out
             // all accounts
-            if (current.isDoubleEntry() && (current.trans.size() > 0 || !conversion.pruneUnusedAccounts)) {
-                name = getFullName(current, conversion.accounts);
+            if (context.isDoubleEntry(current) && (current.used || !context.conversion.pruneUnusedAccounts)) {
+                name = context.getFullName(current);
                 description = current.getDescription("");
                 if (name.length() > 33)
-                    conversion.warnings.add("Category \"" + name + "\" might import as \"" + name.substring(0, 33) + "\" in Quicken");
-                writer.write("N" + name + "\n");
+                    context.warnings.add("Category \"" + name + "\" might import as \"" + name.substring(0, 33) + "\" in Quicken");
+                writer.append('N').append(name).append('\n');
                 if (description.length() > 64)
-                    conversion.warnings.add("Description of category \"" + name + "\" is " + description.length() + " characters, which might crash Quicken while importing. Shrink to at most 64 characters");
-                writer.write("D" + description + "\n");
-                if (current.type == Account.TYPE_DOUBLEENTRY_INCOME)
+                    context.warnings.add("Description of category \"" + name + "\" is " + description.length() + " characters, which might crash Quicken while importing. Shrink to at most 64 characters");
+                writer.append('D').append(description).append('\n');
+                if (context.getType(current) == Account.TYPE_DOUBLEENTRY_INCOME)
                     writer.write("I\n");
-                else if (current.type == Account.TYPE_DOUBLEENTRY_EXPENSE)
+                else if (context.getType(current) == Account.TYPE_DOUBLEENTRY_EXPENSE)
                     writer.write("E\n");
                 writer.write("^\n");
             }
@@ -198,227 +364,350 @@ public class QIF2003OutputFormat implements OutputFormat
      * account GUIDs exist in the accounts object.
      * @param writer The Writer to write QIF data to
      * @param account The Account to write to the Writer
+     * @param context The export context
      * @param duplicate When true, transactions are listed in all affected
      * accounts, though in a way that lists the split in only the primary
      * account; when false, transactions are only listed in the primary account
      * @throws IOException Thrown if an error comes up while
      * writing to the Writer
      */
-    protected void writeAccountTransactions(Writer writer, Account account, Conversion conversion, boolean duplicate) throws IOException
+    protected void writeAccountTransactions(OutputSink writer, Account account, ExportContext context, boolean duplicate) throws IOException
     {
+        // Copy the transactions out of the fragment cache if there is one and
+        // its encoded fragments can be joined in this output
+        FragmentCache cache = context.conversion.fragmentCache;
+        if (cache != null && writer.isPreEncodable()) {
+            writeCachedTransactions(writer, account, context, duplicate, cache);
+            return;
+        }
+        
         // Write out every transaction
         Iterator transIterator = account.trans.iterator();
         Object splits[] = new Object[2];
-        int i, acctSplit;
-        String payee, memo, splitMemo, alternativeMemo;
-        StringBuffer category = new StringBuffer();
-        Account lastAccount = null;
-        boolean splitTransaction, firstSplit, primaryAccount;
         Transaction currentTransaction;
         while (transIterator.hasNext()) {
             currentTransaction = (Transaction) transIterator.next();
-            
-            // Discover if this account is the last account listed in the splits
             splits = currentTransaction.splits.toArray(splits);
-            acctSplit = -1;
-            for (i = currentTransaction.splits.size() - 1; acctSplit == -1 && i >= 0; i--) {
-                lastAccount = (Account) conversion.accounts.get(((Split) splits[i]).accountGuid);
-                if (lastAccount != null && !lastAccount.isDoubleEntry())
-                    acctSplit = i;
+            writeTransaction(writer, account, context, currentTransaction, splits, duplicate);
+        }
+    }
+
+    /**
+     * Writes out the transactions of an Account like writeAccountTransactions()
+     * does, copying the output of each transaction from the fragment cache and
+     * only rendering the transactions that are not in it yet
+     * @param writer The Writer to write QIF data to, which must be pre-encodable
+     * @param account The Account to write to the Writer
+     * @param context The export context
+     * @param duplicate When true, transactions are listed in all affected
+     * accounts; when false, transactions are only listed in the primary account
+     * @param cache The fragment cache
+     * @throws IOException Thrown if an error comes up while
+     * writing to the Writer
+     */
+    protected void writeCachedTransactions(OutputSink writer, Account account, ExportContext context, boolean duplicate, FragmentCache cache) throws IOException
+    {
+        Conversion conversion = context.conversion;
+        long accountKeys[] = FragmentCache.getAccountKeys(context);
+        long formatKey = FragmentCache.getFormatKey(getClass().getName(), conversion, writer.getCharset(), duplicate);
+        MemorySink fragmentSink = new MemorySink(writer.getCharset());
+        Iterator transIterator = account.trans.iterator();
+        Object splits[] = new Object[2];
+        Transaction currentTransaction;
+        long content, render;
+        byte fragment[];
+        while (transIterator.hasNext()) {
+            currentTransaction = (Transaction) transIterator.next();
+            content = TransactionState.hash(currentTransaction, conversion.text);
+            render = FragmentCache.getRenderKey(formatKey, accountKeys, conversion, account, currentTransaction);
+            if ((fragment = cache.get(content, render)) == null) {
+                fragmentSink.reset();
+                splits = currentTransaction.splits.toArray(splits);
+                writeTransaction(fragmentSink, account, context, currentTransaction, splits, duplicate);
+                fragment = fragmentSink.toByteArray();
+                cache.put(content, render, fragment);
             }
-            if (acctSplit >= 0 && !lastAccount.guid.equalsIgnoreCase(account.guid))
-                primaryAccount = false;
-            else
-                primaryAccount = true;
-            
-            // If we are not supposed to duplicate transactions, then continue to
-            // the next transaction if this is not the primary account
-            if (!primaryAccount && !duplicate)
-                continue;
-            
-            // Write out the post date and the reference
-            writer.write("D" + gnucashDateToQIFDate(currentTransaction.datePosted) + "\n");
-            if (currentTransaction.ref != null)
-                writer.write("N" + currentTransaction.ref + "\n");
-            
-            // Reset the memo field so that we can attempt to get it from the primary split
-            memo = "";
-            
-            // Also reset the alternative memo, which is a memo attached to a complementary
-            // record in a simple two-account transaction
-            alternativeMemo = null;
+            writer.appendBytes(fragment, 0, fragment.length);
+        }
+    }
 
-            // If this is the transaction's primary account, then write out the full detail
-            category.setLength(0);
-            if (primaryAccount)
+    /**
+     * Writes out one transaction as it appears in the given Account
+     * @param writer The Writer to write QIF data to
+     * @param account The Account that the transaction is listed in
+     * @param context The export context
+     * @param currentTransaction The transaction to write
+     * @param splits The splits of the transaction, followed by null if the
+     * array is larger than needed
+     * @param duplicate When true, transactions are listed in all affected
+     * accounts, though in a way that lists the split in only the primary
+     * account; when false, transactions are only listed in the primary account
+     * @throws IOException Thrown if an error comes up while
+     * writing to the Writer
+     */
+    protected void writeTransaction(OutputSink writer, Account account, ExportContext context, Transaction currentTransaction, Object splits[], boolean duplicate) throws IOException
+    {
+        int i, acctSplit;
+        Conversion conversion = context.conversion;
+        TextArena text = conversion.text;
+        String payee, memo, splitMemo, alternativeMemo, description;
+        Account lastAccount = null;
+        boolean splitTransaction, primaryAccount;
+        
+        // Discover if this account is the last account listed in the splits
+        acctSplit = -1;
+        for (i = currentTransaction.splits.size() - 1; acctSplit == -1 && i >= 0; i--) {
+            lastAccount = (Account) conversion.accounts.get(((Split) splits[i]).accountGuid);
+            if (lastAccount != null && !context.isDoubleEntry(lastAccount))
+                acctSplit = i;
+        }
+        if (acctSplit >= 0 && !lastAccount.guid.equalsIgnoreCase(account.guid))
+            primaryAccount = false;
+        else
+            primaryAccount = true;
+        
+        // If we are not supposed to duplicate transactions, then skip this
+        // transaction if this is not the primary account
+        if (!primaryAccount && !duplicate)
+            return;
+        
+        // Write out the post date and the reference
+        writer.write('D');
+        DateCache.MONTH_DAY_YEAR.append(writer, currentTransaction.datePosted);
+        writer.write('\n');
+        if (currentTransaction.hasRef(text))
+            writer.append('N').appendText(currentTransaction.ref, text, currentTransaction.refText).append('\n');
+        
+        // Reset the memo field so that we can attempt to get it from the primary split
+        memo = "";
+        
+        // Also reset the alternative memo, which is a memo attached to a complementary
+        // record in a simple two-account transaction
+        alternativeMemo = null;
+
+        // If this is the transaction's primary account, then gather the memos
+        // from the splits; the categories are written out further below
+        splitTransaction = false;
+        if (primaryAccount)
+        {
+            // Find out what the target account is through the splits
+            if (currentTransaction.splits.size() > 2)
+                splitTransaction = true;
+            else
+                splitTransaction = false;
+            for (i = 0; i < splits.length && splits[i] != null; i++)
             {
-                // Find out what the target account is through the splits
-                if (currentTransaction.splits.size() > 2)
-                    splitTransaction = true;
-                else
-                    splitTransaction = false;
-                firstSplit = true;
-                for (i = 0; i < splits.length && splits[i] != null; i++)
-                {
-                    // Get the split memo
-                    splitMemo = ((Split) splits[i]).memo;
-                    
-                    // If this is split is the current account's split, then use
-                    // its data for the overall transaction details
-                    if (((Split) splits[i]).accountGuid.equalsIgnoreCase(account.guid)) {
-                        acctSplit = i;
+                // If this is split is the current account's split, then use
+                // its data for the overall transaction details
+                if (((Split) splits[i]).accountGuid.equalsIgnoreCase(account.guid)) {
+                    acctSplit = i;
 
-                        // Use this split's memo as the main memo if one exists
-                        if (splitMemo != null && splitMemo.length() > 0)
-                            memo = splitMemo;
-                    } else
-                    {
-                        // If this is a split transaction, then write out split detail;
-                        // otherwise, write out the non-split detail
-                        if (splitTransaction) {
-                            Account target = (Account) conversion.accounts.get(((Split) splits[i]).accountGuid);
-                            if (target != null) {
-                                if (target.isDoubleEntry()) {
-                                    if (firstSplit)
-                                        category.append("L" + getFullName(target, conversion.accounts) + "\n");
-                                    category.append("S" + getFullName(target, conversion.accounts) + "\n");
-                                } else {
-                                    if (firstSplit)
-                                        category.append("L[" + target.name + "]\n");
-                                    category.append("S[" + target.name + "]\n");
-                                }
-                            } else {
-                                if (firstSplit)
-                                    category.append("LUnknown\n");
-                                category.append("SUnknown\n");
-                            }
-                            
-                            // Include a memo if one exists
-                            if (splitMemo != null && splitMemo.length() > 0)
-                                category.append("E" + splitMemo + "\n");
+                    // Use this split's memo as the main memo if one exists
+                    splitMemo = ((Split) splits[i]).getMemo(text);
+                    if (splitMemo != null && splitMemo.length() > 0)
+                        memo = splitMemo;
+                }
+                
+                // Use the memo of the other split in a non-split transaction as
+                // the alternative memo
+                else if (!splitTransaction) {
+                    splitMemo = ((Split) splits[i]).getMemo(text);
+                    if (splitMemo != null && splitMemo.length() > 0)
+                        alternativeMemo = splitMemo;
+                }
+            }
+        }
+        
+        // Otherwise, the transaction gets linked to the master transaction
+        // in the primary account
+        else
+        {
+            // Look up which split specifies this account so that the proper amount gets written
+            acctSplit = -1;
+            for (i = 0; i < splits.length && splits[i] != null; i++) {
+                if (((Split) splits[i]).accountGuid.equalsIgnoreCase(account.guid)) {
+                    acctSplit = i;
 
-                            category.append("$" + currencyFormat.format(0 - ((Split) splits[i]).amount) + "\n");
-                            firstSplit = false;
-                        } else {
-                            Account target = (Account) conversion.accounts.get(((Split) splits[i]).accountGuid);
-                            if (target != null) {
-                                if (target.isDoubleEntry())
-                                    category.append("L" + getFullName(target, conversion.accounts) + "\n");
-                                else
-                                    category.append("L[" + target.name + "]\n");
-                            } else
-                                category.append("LUnknown\n");
+                    // Get the split memo
+                    splitMemo = ((Split) splits[i]).getMemo(text);
 
-                            // Use this split's memo as the alternative memo
-                            if (splitMemo != null && splitMemo.length() > 0)
-                                alternativeMemo = splitMemo;
-                        }
-                    }
+                    // Use this split's memo as the main memo if one exists
+                    if (splitMemo != null && splitMemo.length() > 0)
+                        memo = splitMemo;
                 }
             }
-            
-            // Otherwise, write out the linked detail to the master transaction
-            else
-            {
-                // Set the link
-                category.append("L[" + lastAccount.name + "]\n");
+        }
+        
+        // If we don't have a memo but an alternative memo exists, then use the alternative memo
+        if (alternativeMemo != null && memo.length() == 0)
+            memo = alternativeMemo;
 
-                // Look up which split specifies this account so that the proper amount gets written
-                acctSplit = -1;
-                for (i = 0; i < splits.length && splits[i] != null; i++) {
-                    if (((Split) splits[i]).accountGuid.equalsIgnoreCase(account.guid)) {
-                        acctSplit = i;
+        // If memo extraction from GnuCash descriptions is enabled and no memo exists yet,
+        // then proceed with that. Otherwise, simply leave the description alone
+        description = currentTransaction.getDescription(text);
+        if (conversion.splitMemoFromDescription && memo.length() == 0)
+        {
+            // The following code converted "my" way of using GnuCash into QIF.
+            // YMMV, so please feel free to modify this code to suit your data
+            // conversion needs :-)
 
-                        // Get the split memo
-                        splitMemo = ((Split) splits[i]).memo;
+            // Payee = text after "at" or "from", or desc if not exist
+            // Memo = header of Payee if split as per above
+            // Category = acct name
 
-                        // Use this split's memo as the main memo if one exists
-                        if (splitMemo != null && splitMemo.length() > 0)
-                            memo = splitMemo;
-                    }
-                }
+            // Split out the "at" or "from", if it's there
+            int split = description.indexOf(" at ");
+            int descLength = description.length();
+            if (split > 0 && descLength > split + 4) {
+                payee = GnuCashToQIF.capitalizeFirstLetter(description.substring(split + 4));
+                memo = description.substring(0, split);
+            } else if ((split = description.indexOf(" from ")) > 0 && descLength > split + 6) {
+                payee = GnuCashToQIF.capitalizeFirstLetter(description.substring(split + 6));
+                memo = description.substring(0, split);
+            } else if ((split = description.indexOf(" via ")) > 0 && descLength > split + 5) {
+                payee = GnuCashToQIF.capitalizeFirstLetter(description.substring(split + 5));
+                memo = description.substring(0, split);
+            } else {
+                payee = description;
             }
-            
-            // If we don't have a memo but an alternative memo exists, then use the alternative memo
-            if (alternativeMemo != null && memo.length() == 0)
-                memo = alternativeMemo;
+        } else
+            payee = description;
 
-            // If memo extraction from GnuCash descriptions is enabled and no memo exists yet,
-            // then proceed with that. Otherwise, simply leave the description alone
-            if (conversion.splitMemoFromDescription && memo.length() == 0)
-            {
-                // The following code converted "my" way of using GnuCash into QIF.
-                // YMMV, so please feel free to modify this code to suit your data
-                // conversion needs :-)
-
-                // Payee = text after "at" or "from", or desc if not exist
-                // Memo = header of Payee if split as per above
-                // Category = acct name
+        // Write out the amount, our cleared status, and the categories/splits
+        writer.append('U').appendAmount(((Split) splits[acctSplit]).amount).append('\n');
+        writer.append('T').appendAmount(((Split) splits[acctSplit]).amount).append('\n');
+        writer.append('P').append(payee).append('\n');
+        if (memo.length() > 0)
+            writer.append('M').append(memo).append('\n');
+        if (((Split) splits[acctSplit]).reconciliationStatus == 'c' || ((Split) splits[acctSplit]).reconciliationStatus == 'y')
+            writer.write("C*\n");
+        if (primaryAccount)
+            writeCategories(writer, context, account, splits, splitTransaction);
+        else
+            writeAccountLine(writer, context, lastAccount, ExportContext.LINE_CATEGORY);
 
-                // Split out the "at" or "from", if it's there
-                int split = currentTransaction.description.indexOf(" at ");
-                int descLength = currentTransaction.description.length();
-                if (split > 0 && descLength > split + 4) {
-                    payee = GnuCashToQIF.capitalizeFirstLetter(currentTransaction.description.substring(split + 4));
-                    memo = currentTransaction.description.substring(0, split);
-                } else if ((split = currentTransaction.description.indexOf(" from ")) > 0 && descLength > split + 6) {
-                    payee = GnuCashToQIF.capitalizeFirstLetter(currentTransaction.description.substring(split + 6));
-                    memo = currentTransaction.description.substring(0, split);
-                } else if ((split = currentTransaction.description.indexOf(" via ")) > 0 && descLength > split + 5) {
-                    payee = GnuCashToQIF.capitalizeFirstLetter(currentTransaction.description.substring(split + 5));
-                    memo = currentTransaction.description.substring(0, split);
+        // Write out the end of this transaction record
+        writer.write("^\n");
+    }
+    
+    /**
+     * Writes out the categories and splits of a transaction in its primary
+     * account, which is every split that does not belong to the account
+     * @param writer The Writer to write QIF data to
+     * @param context The export context
+     * @param account The primary account of the transaction
+     * @param splits The splits of the transaction, followed by null if the
+     * array is larger than needed
+     * @param splitTransaction Whether to write the splits as a split transaction
+     * @throws IOException Thrown if an error comes up while
+     * writing to the Writer
+     */
+    protected static void writeCategories(OutputSink writer, ExportContext context, Account account, Object splits[], boolean splitTransaction) throws IOException
+    {
+        Conversion conversion = context.conversion;
+        TextArena text = conversion.text;
+        boolean firstSplit = true;
+        String splitMemo;
+        Split split;
+        Account target;
+        for (int i = 0; i < splits.length && splits[i] != null; i++)
+        {
+            split = (Split) splits[i];
+            if (split.accountGuid.equalsIgnoreCase(account.guid))
+                continue;
+            target = (Account) conversion.accounts.get(split.accountGuid);
+            
+            // If this is a split transaction, then write out split detail;
+            // otherwise, write out the non-split detail
+            if (splitTransaction) {
+                if (target != null) {
+                    if (firstSplit)
+                        writeAccountLine(writer, context, target, ExportContext.LINE_CATEGORY);
+                    writeAccountLine(writer, context, target, ExportContext.LINE_SPLIT);
                 } else {
-                    payee = currentTransaction.description;
+                    if (firstSplit)
+                        writer.write("LUnknown\n");
+                    writer.write("SUnknown\n");
                 }
-            } else
-                payee = currentTransaction.description;
+                
+                // Include a memo if one exists
+                splitMemo = split.getMemo(text);
+                if (splitMemo != null && splitMemo.length() > 0)
+                    writer.append('E').append(splitMemo).append('\n');
 
-            // Write out the amount, our cleared status, and the categories/splits
-            writer.write("U" + currencyFormat.format(((Split) splits[acctSplit]).amount) + "\n");
-            writer.write("T" + currencyFormat.format(((Split) splits[acctSplit]).amount) + "\n");
-            writer.write("P" + payee + "\n");
-            if (memo.length() > 0)
-                writer.write("M" + memo + "\n");
-            if (((Split) splits[acctSplit]).reconciliationStatus == 'c' || ((Split) splits[acctSplit]).reconciliationStatus == 'y')
-                writer.write("C*\n");
-            writer.write(category.toString());
+                writer.append('$').appendAmount(0 - split.amount).append('\n');
+                firstSplit = false;
+            } else {
+                if (target != null)
+                    writeAccountLine(writer, context, target, ExportContext.LINE_CATEGORY);
+                else
+                    writer.write("LUnknown\n");
+            }
+        }
+    }
 
-            // Write out the end of this transaction record
-            writer.write("^\n");
+    /**
+     * Writes out the category or split line that names an account. Each line
+     * is encoded once per export and copied into the output after that
+     * @param writer The Writer to write QIF data to
+     * @param context The export context, which keeps the encoded lines
+     * @param account The account to name
+     * @param kind ExportContext.LINE_CATEGORY for the L line or
+     * ExportContext.LINE_SPLIT for the S line
+     * @throws IOException Thrown if an error comes up while
+     * writing to the Writer
+     */
+    protected static void writeAccountLine(OutputSink writer, ExportContext context, Account account, int kind) throws IOException
+    {
+        byte line[] = context.getAccountLine(account, kind, writer.getCharset());
+        if (line == null) {
+            // Double-entry accounts are categories and the others are transfers
+            char prefix = (kind == ExportContext.LINE_SPLIT)? 'S': 'L';
+            String value;
+            if (context.isDoubleEntry(account))
+                value = prefix + context.getFullName(account) + "\n";
+            else
+                value = prefix + "[" + account.name + "]\n";
+            if ((line = writer.encode(value)) == null) {
+                writer.write(value);
+                return;
+            }
+            context.setAccountLine(account, kind, writer.getCharset(), line);
         }
+        writer.appendBytes(line, 0, line.length);
     }
     
     /**
      * Sets the account type by its type name
-     * @param typeName The name of the type to set this account to
-     * @param warnings Set of that warnings encountered while setting the
-     * account type will get placed into
+     * @param context The export context to set the account type in, which
+     * also receives the warnings encountered while setting the account type
+     * @param account The account to set the type of
      */
-    protected static void setAccountType(Account account, Set warnings)
+    protected static void setAccountType(ExportContext context, Account account)
     {
         // Handle our known types and assume that all others are
         // double-entry accounts
         if (account.typeName.equals("bank")) {
-        	account.type = Account.TYPE_BANK;
+        	context.setType(account, Account.TYPE_BANK);
         } else if (account.typeName.equals("credit")) {
-        	account.type = Account.TYPE_CREDIT;
+        	context.setType(account, Account.TYPE_CREDIT);
         } else if (account.typeName.equals("cash") || account.typeName.equals("currency")) {
-        	account.type = Account.TYPE_CASH;
+        	context.setType(account, Account.TYPE_CASH);
         } else if (account.typeName.equals("asset")) {
-        	account.type = Account.TYPE_ASSET;
+        	context.setType(account, Account.TYPE_ASSET);
         } else if (account.typeName.equals("mutual") || account.typeName.equals("stock") ||
         		account.typeName.equals("liability") || account.typeName.equals("receivable")) {
-        	account.type = Account.TYPE_BANK;
-            warnings.add(GnuCashToQIF.capitalizeFirstLetter(account.typeName) + " accounts are currently imported as regular bank accounts");
+        	context.setType(account, Account.TYPE_BANK);
+            context.warnings.add(GnuCashToQIF.capitalizeFirstLetter(account.typeName) + " accounts are currently imported as regular bank accounts");
         } else if (account.typeName.equals("payable")) {
-        	account.type = Account.TYPE_CREDIT;
-        	warnings.add(GnuCashToQIF.capitalizeFirstLetter(account.typeName) + " accounts are currently imported as credit card accounts");
+        	context.setType(account, Account.TYPE_CREDIT);
+        	context.warnings.add(GnuCashToQIF.capitalizeFirstLetter(account.typeName) + " accounts are currently imported as credit card accounts");
         } else if (account.typeName.equals("income")) {
-        	account.type = Account.TYPE_DOUBLEENTRY_INCOME;
+        	context.setType(account, Account.TYPE_DOUBLEENTRY_INCOME);
         } else if (account.typeName.equals("expense")) {
-        	account.type = Account.TYPE_DOUBLEENTRY_EXPENSE;
+        	context.setType(account, Account.TYPE_DOUBLEENTRY_EXPENSE);
         } else {
-        	account.type = Account.TYPE_DOUBLEENTRY;
+        	context.setType(account, Account.TYPE_DOUBLEENTRY);
         }
     }
     
@@ -431,14 +720,10 @@ public class QIF2003OutputFormat implements OutputFormat
      */
     protected static String getFullName(Account account, Map accounts)
     {
-        // If we know the full name, then return it; otherwise, construct it
-        if (account.fullName != null)
-            return account.fullName;
-
         // Follow chain of parents, pre-pending their names,
         // so we get "Grandparent:Parent:Name"
         String p = account.parentGuid;
-        account.fullName = account.name;
+        String fullName = account.name;
         while (null != p) {
             Account parent = (Account) accounts.get(p);
             
@@ -447,35 +732,34 @@ public class QIF2003OutputFormat implements OutputFormat
             if (null == parent.parentGuid) {
                 break;
             }
-            account.fullName = parent.name + ":" + account.fullName;
+            fullName = parent.name + ":" + fullName;
             p = parent.parentGuid;
         }
-        return account.fullName;
+        return fullName;
     }
     
     /**
-     * Updates the full names of the accounts in the given conversion
-     * @param conversion The conversion to update the full names in
+     * Sets the full names of the accounts in the given export context whose
+     * full names are not known yet
+     * @param context The export context to set the full names in
      */
-    protected static void updateFullNames(Conversion conversion)
+    protected static void updateFullNames(ExportContext context)
     {
 		// Ensure that all accounts have getFullName() called
-		Iterator accountIterator = conversion.accounts.values().iterator();
+		Iterator accountIterator = context.conversion.accounts.values().iterator();
         Account currentAccount;
         while (accountIterator.hasNext()) {
         	currentAccount = (Account) accountIterator.next();
-        	currentAccount.fullName = getFullName(currentAccount, conversion.accounts);
+        	if (context.getFullName(currentAccount) == null)
+        	    context.setFullName(currentAccount, getFullName(currentAccount, context.conversion.accounts));
         }
     }
-    
+
     /**
-     * Converts a GnuCash date into a QIF date
-     * @param gnucashDate The GnuCash date to convert
-     * @return The QIF-friendly date (4-digit year)
+     * Works out the full account names that this format uses
+     * @param context The export context to keep the full names in
      */
-    protected static String gnucashDateToQIFDate(String gnucashDate) {
-        if (gnucashDate == null || gnucashDate.length() < 10)
-            return "";
-        return gnucashDate.substring(5, 7) + "/" + gnucashDate.substring(8, 10) + "/" + gnucashDate.substring(0, 4);
+    public void resolveAccountNames(ExportContext context) {
+        updateFullNames(context);
     }
 }
@@ -0,0 +1,149 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads a QIF file one header or record at a time, keeping only the current
+ * record, so that files of any size can be read back in constant memory
+ */
+class QIFReader
+{
+    /** next() result: the end of the file */
+    public static final int END = 0;
+
+    /** next() result: a header line, such as !Type:Bank or !Account */
+    public static final int HEADER = 1;
+
+    /** next() result: a record that ended with ^ */
+    public static final int RECORD = 2;
+
+    /** next() result: a record that a header or the end of the file cut off before its ^ */
+    public static final int INCOMPLETE = 3;
+
+    /** The QIF file */
+    protected BufferedReader reader;
+
+    /** A header line that cut off the last record, which next() returns next */
+    protected String pendingHeader = null;
+
+    /** The current header without its !, or null before the first one */
+    protected String header = null;
+
+    /** The first value of each field code in the current record, indexed by the code */
+    protected String fields[] = new String[128];
+
+    /** The field codes that the current record has values for */
+    protected char codes[] = new char[16];
+
+    /** The number of field codes in codes */
+    protected int codeCount = 0;
+
+    /** The number of S lines in the current record */
+    protected int splitCount = 0;
+
+    /** The number of lines read */
+    protected int lineNumber = 0;
+
+    /**
+     * Creates a new QIF reader
+     * @param reader The QIF file, which gets buffered
+     */
+    public QIFReader(Reader reader) {
+        this.reader = new BufferedReader(reader, 64 * 1024);
+    }
+
+    /**
+     * Reads the next header or record
+     * @return HEADER, RECORD, INCOMPLETE or END
+     * @throws IOException Thrown if the file could not be read
+     */
+    public int next() throws IOException
+    {
+        // Forget the last record
+        for (int i = 0; i < codeCount; i++)
+            fields[codes[i]] = null;
+        codeCount = 0;
+        splitCount = 0;
+        if (pendingHeader != null) {
+            header = pendingHeader;
+            pendingHeader = null;
+            return HEADER;
+        }
+
+        String line;
+        char code;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.length() == 0)
+                continue;
+            code = line.charAt(0);
+            if (code == '!') {
+                if (codeCount > 0) {
+                    pendingHeader = line.substring(1);
+                    return INCOMPLETE;
+                }
+                header = line.substring(1);
+                return HEADER;
+            } else if (code == '^')
+                return RECORD;
+
+            // Keep the first value of each field
+            if (code == 'S')
+                splitCount++;
+            if (code < fields.length && fields[code] == null) {
+                if (codeCount == codes.length) {
+                    char larger[] = new char[codes.length * 2];
+                    System.arraycopy(codes, 0, larger, 0, codeCount);
+                    codes = larger;
+                }
+                codes[codeCount++] = code;
+                fields[code] = line.substring(1);
+            }
+        }
+        return (codeCount > 0)? INCOMPLETE: END;
+    }
+
+    /**
+     * Returns the current header, which the current record comes under
+     * @return The header without its !, such as Type:Bank, or null before
+     * the first header
+     */
+    public String getHeader() {
+        return header;
+    }
+
+    /**
+     * Returns the first value of a field in the current record
+     * @param code The field code, such as T for the amount
+     * @return The value without its code, or null if the record has no such field
+     */
+    public String get(char code) {
+        return (code < fields.length)? fields[code]: null;
+    }
+
+    /**
+     * Returns the number of split lines in the current record
+     * @return The number of S lines
+     */
+    public int getSplitCount() {
+        return splitCount;
+    }
+
+    /**
+     * Returns the number of the last line read, starting at 1
+     * @return The line number
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Closes the QIF file
+     * @throws IOException Thrown if the file could not be closed
+     */
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,195 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Output stream that hands what is written to a thread of its own, which
+ * writes it to the underlying stream. The thread that renders the output
+ * then only copies its buffers into a short queue and carries on while the
+ * last ones are written; once the queue is full, it waits for the writes to
+ * catch up
+ */
+class QueuedOutputStream extends OutputStream
+{
+    /** The number of writes that may wait in the queue */
+    public static final int QUEUE_LENGTH = 4;
+
+    /** Queue entry that tells the thread to stop */
+    protected static final byte END[] = new byte[0];
+
+    /** The stream that the thread writes to */
+    protected OutputStream out;
+
+    /** The copies of the writes that the thread has not written yet */
+    protected BlockingQueue queue = new ArrayBlockingQueue(QUEUE_LENGTH);
+
+    /** The thread that writes to the underlying stream */
+    protected Thread thread;
+
+    /** The number of writes that have been queued */
+    protected long queued = 0;
+
+    /** The number of writes that the thread has finished, guarded by this */
+    protected long written = 0;
+
+    /** The first exception that the thread ran into, or null */
+    protected volatile IOException failure = null;
+
+    /** Whether the stream has been closed */
+    protected boolean closed = false;
+
+    /**
+     * Creates a new queued stream and starts its thread
+     * @param out The stream to write to
+     * @param name The name of the thread
+     */
+    public QueuedOutputStream(OutputStream out, String name)
+    {
+        this.out = out;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                writeQueue();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Writes the queued bytes until the stream gets closed. After a failure,
+     * the rest is thrown away so that the rendering thread never waits for
+     * a write that will not come
+     */
+    protected void writeQueue()
+    {
+        byte bytes[];
+        while (true) {
+            try {
+                bytes = (byte[]) queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (bytes == END)
+                return;
+            if (failure == null) {
+                try {
+                    out.write(bytes);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            synchronized (this) {
+                written++;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Queues a single byte
+     * @param b The byte
+     * @throws IOException Thrown if an earlier write failed
+     */
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    /**
+     * Queues a copy of some bytes, waiting while the queue is full
+     * @param bytes The bytes
+     * @param off The index of the first byte
+     * @param len The number of bytes
+     * @throws IOException Thrown if an earlier write failed
+     */
+    public void write(byte bytes[], int off, int len) throws IOException
+    {
+        checkFailure();
+        if (len == 0)
+            return;
+        byte copy[] = new byte[len];
+        System.arraycopy(bytes, off, copy, 0, len);
+        put(copy);
+        queued++;
+    }
+
+    /**
+     * Waits until every queued write has been written and flushes the
+     * underlying stream
+     * @throws IOException Thrown if a write or the flush failed
+     */
+    public void flush() throws IOException
+    {
+        awaitWrites();
+        out.flush();
+    }
+
+    /**
+     * Writes out everything that was queued, stops the thread and closes
+     * the underlying stream
+     * @throws IOException Thrown if a write or the close failed
+     */
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            awaitWrites();
+        } finally {
+            put(END);
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    // Keep waiting; the thread has nothing left to block on
+                }
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Waits until the thread has written every queued write
+     * @throws IOException Thrown if a write failed
+     */
+    protected synchronized void awaitWrites() throws IOException
+    {
+        while (written < queued) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Keep waiting; the writes have to finish before the output is complete
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Puts an entry into the queue, waiting for room
+     * @param bytes The entry
+     */
+    protected void put(byte bytes[])
+    {
+        while (true) {
+            try {
+                queue.put(bytes);
+                return;
+            } catch (InterruptedException e) {
+                // Keep trying; dropping the bytes would corrupt the output
+            }
+        }
+    }
+
+    /**
+     * Throws the exception that a write ran into, if any
+     * @throws IOException Thrown if a write failed
+     */
+    protected void checkFailure() throws IOException
+    {
+        if (failure != null)
+            throw new IOException("Could not write the output: " + failure.getMessage(), failure);
+    }
+}
@@ -0,0 +1,76 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Temporary file that spill sinks append their full buffers to. The file
+ * only ever grows, and it is deleted when it gets closed
+ */
+class SpillFile
+{
+    /** The temporary file */
+    protected File file;
+
+    /** The open temporary file */
+    protected RandomAccessFile data;
+
+    /** The number of bytes written so far */
+    protected long length = 0;
+
+    /**
+     * Creates a new, empty temporary file
+     * @throws IOException Thrown if the file could not be created
+     */
+    public SpillFile() throws IOException
+    {
+        file = File.createTempFile("gnucashtoqif", ".spill");
+        file.deleteOnExit();
+        data = new RandomAccessFile(file, "rw");
+    }
+
+    /**
+     * Appends bytes to the end of the file
+     * @param bytes The bytes to append
+     * @param off The index of the first byte
+     * @param len The number of bytes
+     * @return The position in the file that the bytes were written to
+     * @throws IOException Thrown if the file could not be written to
+     */
+    public long append(byte bytes[], int off, int len) throws IOException
+    {
+        long position = length;
+        data.seek(position);
+        data.write(bytes, off, len);
+        length += len;
+        return position;
+    }
+
+    /**
+     * Reads bytes that were appended earlier
+     * @param position The position of the bytes in the file
+     * @param bytes The array to read into
+     * @param off The index to read the first byte into
+     * @param len The number of bytes to read
+     * @throws IOException Thrown if the file could not be read
+     */
+    public void read(long position, byte bytes[], int off, int len) throws IOException
+    {
+        data.seek(position);
+        data.readFully(bytes, off, len);
+    }
+
+    /**
+     * Closes and deletes the file
+     * @throws IOException Thrown if the file could not be closed
+     */
+    public void close() throws IOException
+    {
+        try {
+            data.close();
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Output sink that keeps its output in a small buffer and appends it to a
+ * shared spill file in chunks whenever the buffer fills up. The chunks get
+ * copied out in order by copyTo(), so many sinks can collect their output
+ * side by side while only their buffers stay in memory
+ */
+class SpillSink extends OutputSink
+{
+    /** The default buffer size of spill sinks */
+    public static final int DEFAULT_SPILL_BUFFER_SIZE = 8 * 1024;
+
+    /** The file that full buffers are appended to */
+    protected SpillFile spill;
+
+    /** The positions of the chunks in the spill file */
+    protected long positions[] = new long[4];
+
+    /** The lengths of the chunks */
+    protected int lengths[] = new int[4];
+
+    /** The number of chunks in the spill file */
+    protected int chunks = 0;
+
+    /** The length of the longest chunk */
+    protected int longestChunk = 0;
+
+    /**
+     * Creates a new spill sink
+     * @param spill The file that full buffers are appended to
+     * @param charset The charset of the output
+     */
+    public SpillSink(SpillFile spill, Charset charset)
+    {
+        super(null, charset, DEFAULT_SPILL_BUFFER_SIZE);
+        this.spill = spill;
+    }
+
+    /**
+     * Appends encoded bytes to the spill file as a new chunk
+     * @param bytes The encoded bytes
+     * @param off The index of the first byte
+     * @param len The number of bytes
+     */
+    protected void drain(byte bytes[], int off, int len) throws IOException
+    {
+        if (chunks == positions.length) {
+            long newPositions[] = new long[chunks * 2];
+            int newLengths[] = new int[chunks * 2];
+            System.arraycopy(positions, 0, newPositions, 0, chunks);
+            System.arraycopy(lengths, 0, newLengths, 0, chunks);
+            positions = newPositions;
+            lengths = newLengths;
+        }
+        positions[chunks] = spill.append(bytes, off, len);
+        lengths[chunks++] = len;
+        longestChunk = Math.max(longestChunk, len);
+    }
+
+    /**
+     * Copies everything written to this sink into another sink. The bytes are
+     * copied as they are if both sinks use the same charset; otherwise they
+     * are decoded and written as characters
+     * @param out The sink to copy into
+     * @throws IOException Thrown if the spill file could not be read or the
+     * other sink could not be written to
+     */
+    public void copyTo(OutputSink out) throws IOException
+    {
+        if (!out.getCharset().equals(charset)) {
+            transcodeTo(out);
+            return;
+        }
+        byte chunk[] = new byte[longestChunk];
+        for (int i = 0; i < chunks; i++) {
+            spill.read(positions[i], chunk, 0, lengths[i]);
+            out.appendBytes(chunk, 0, lengths[i]);
+        }
+        out.appendBytes(buffer, 0, count);
+    }
+
+    /**
+     * Decodes everything written to this sink and writes it into another
+     * sink that uses a different charset
+     * @param out The sink to write into
+     * @throws IOException Thrown if the spill file could not be read or the
+     * other sink could not be written to
+     */
+    protected void transcodeTo(OutputSink out) throws IOException
+    {
+        drainBuffer();
+        CharsetDecoder decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        // Multi-byte sequences can span chunks, so the input keeps what the
+        // decoder leaves over for the next chunk
+        ByteBuffer input = ByteBuffer.allocate(longestChunk + 16);
+        CharBuffer output = CharBuffer.allocate(longestChunk + 16);
+        for (int i = 0; i < chunks; i++) {
+            spill.read(positions[i], input.array(), input.position(), lengths[i]);
+            input.position(input.position() + lengths[i]);
+            input.flip();
+            decoder.decode(input, output, false);
+            out.write(output.array(), 0, output.position());
+            output.clear();
+            input.compact();
+        }
+        input.flip();
+        decoder.decode(input, output, true);
+        decoder.flush(output);
+        out.write(output.array(), 0, output.position());
+    }
+}
@@ -3,7 +3,7 @@
  */
 package net.sourceforge.gnucashtoqif;
 
-class Split
+class Split implements Cloneable
 {
     /** The amount of the split */
     public double amount;
@@ -25,4 +25,61 @@ class Split
     
     /** The action of this split */
     public String action;
+
+    /** The memo in the conversion's text arena, if it is used */
+    public long memoText = TextArena.NONE;
+
+    /** The action in the conversion's text arena, if it is used */
+    public long actionText = TextArena.NONE;
+
+    /**
+     * Returns the memo of this split
+     * @param text The conversion's text arena, or null if it is not used
+     * @return The memo of this split, or null if none exists
+     */
+    public String getMemo(TextArena text) {
+        if (memo != null || text == null)
+            return memo;
+        return text.get(memoText);
+    }
+
+    /**
+     * Returns the action of this split
+     * @param text The conversion's text arena, or null if it is not used
+     * @return The action of this split, or null if none exists
+     */
+    public String getAction(TextArena text) {
+        if (action != null || text == null)
+            return action;
+        return text.get(actionText);
+    }
+
+    /**
+     * Empties this split so that it can be read into again
+     */
+    public void clear()
+    {
+        amount = 0;
+        reconciliationStatus = 0;
+        accountGuid = null;
+        account = null;
+        memo = null;
+        lotGuid = null;
+        action = null;
+        memoText = TextArena.NONE;
+        actionText = TextArena.NONE;
+    }
+
+    /**
+     * Returns a copy of this split that can be changed without changing
+     * the imported book
+     * @return A copy of this split
+     */
+    public Split copy() {
+        try {
+            return (Split) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
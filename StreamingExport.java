@@ -0,0 +1,29 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.IOException;
+
+/**
+ * Export that takes its transactions one at a time from a second pass over
+ * the GnuCash file instead of from an imported book
+ */
+interface StreamingExport extends GnuCashData.TransactionListener
+{
+    /**
+     * Writes out everything that comes before the transactions and gets
+     * ready to take them
+     * @throws IOException Thrown if an error comes up while writing
+     */
+    public void start() throws IOException;
+
+    /**
+     * Writes out everything that comes after the transactions
+     * @throws IOException Thrown if an error comes up while writing
+     */
+    public void finish() throws IOException;
+
+    /**
+     * Lets go of everything that the export used besides its output
+     * @throws IOException Thrown if something could not be closed
+     */
+    public void close() throws IOException;
+}
@@ -0,0 +1,61 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.IOException;
+
+/**
+ * Journal export that writes each transaction's rows as soon as the
+ * transaction is read, so it keeps nothing besides the accounts
+ */
+class StreamingJournalExport implements StreamingExport
+{
+    /** The journal format being written */
+    protected JournalOutputFormat format;
+
+    /** The export context, whose conversion holds the accounts but no transactions */
+    protected ExportContext context;
+
+    /** The output sink */
+    protected OutputSink writer;
+
+    /**
+     * Creates a new streamed journal export
+     * @param format The journal format to write
+     * @param context The export context
+     * @param writer The output sink
+     */
+    public StreamingJournalExport(JournalOutputFormat format, ExportContext context, OutputSink writer)
+    {
+        this.format = format;
+        this.context = context;
+        this.writer = writer;
+    }
+
+    /**
+     * Writes out the header row, if any
+     * @throws IOException Thrown if an error comes up while writing
+     */
+    public void start() throws IOException {
+        format.writeHeader(writer);
+    }
+
+    /**
+     * Writes out the rows of a transaction's splits
+     * @param transaction The transaction that has been read
+     * @throws IOException Thrown if an error comes up while writing
+     */
+    public void transaction(Transaction transaction) throws IOException {
+        format.writeTransaction(writer, context, transaction);
+    }
+
+    /**
+     * Does nothing, since the journal ends with its last row
+     */
+    public void finish() {
+    }
+
+    /**
+     * Does nothing, since the export keeps nothing open
+     */
+    public void close() {
+    }
+}
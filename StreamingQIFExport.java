@@ -0,0 +1,132 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+/**
+ * QIF export that takes its transactions one at a time from a second pass
+ * over the GnuCash file instead of from an imported book. Each account's
+ * transactions are written to a spill sink as they come in, and the sinks
+ * are copied into the output in account order at the end, so memory use
+ * grows with the number of accounts rather than transactions
+ */
+class StreamingQIFExport implements StreamingExport
+{
+    /** The QIF format being written */
+    protected QIF2003OutputFormat format;
+
+    /** The export context, whose conversion holds the accounts but no transactions */
+    protected ExportContext context;
+
+    /** The output sink */
+    protected OutputSink writer;
+
+    /** Whether transactions get listed in every affected account */
+    protected boolean duplicate;
+
+    /** Whether each account gets a section of transactions, indexed by Account.index */
+    protected boolean sections[];
+
+    /** The spill sinks of the accounts' transactions, indexed by Account.index */
+    protected SpillSink sinks[];
+
+    /** The file that the spill sinks write to, or null until the export starts */
+    protected SpillFile spill = null;
+
+    /** The charset that the spill sinks encode in */
+    protected Charset spillCharset;
+
+    /** The splits of the current transaction */
+    protected Object splits[] = new Object[2];
+
+    /**
+     * Creates a new streamed QIF export
+     * @param format The QIF format to write
+     * @param context The export context
+     * @param writer The output sink
+     */
+    public StreamingQIFExport(QIF2003OutputFormat format, ExportContext context, OutputSink writer)
+    {
+        this.format = format;
+        this.context = context;
+        this.writer = writer;
+    }
+
+    /**
+     * Writes out everything that comes before the transactions and gets
+     * ready to take them
+     * @throws IOException Thrown if an error comes up while writing or
+     * while creating the spill file
+     */
+    public void start() throws IOException
+    {
+        format.writeLists(writer, context);
+        duplicate = format.isDuplicating();
+
+        // Find the accounts that get a section of transactions
+        int accountCount = context.conversion.accountCount;
+        sections = new boolean[accountCount];
+        sinks = new SpillSink[accountCount];
+        Iterator accountIterator = context.accountSet.iterator();
+        Account currentAccount;
+        while (accountIterator.hasNext()) {
+            currentAccount = (Account) accountIterator.next();
+            sections[currentAccount.index] = format.hasTransactionSection(context, currentAccount);
+        }
+
+        // Spill in the output's charset if separately encoded pieces of it can
+        // be joined; otherwise spill in UTF-8 and re-encode while copying
+        spillCharset = writer.isPreEncodable()? writer.getCharset(): Charset.forName("UTF-8");
+        spill = new SpillFile();
+    }
+
+    /**
+     * Writes a transaction into the spill sink of every account that lists it
+     * @param transaction The transaction that has been read
+     * @throws IOException Thrown if an error comes up while writing
+     */
+    public void transaction(Transaction transaction) throws IOException
+    {
+        splits = transaction.splits.toArray(splits);
+        int splitCount = transaction.splits.size();
+        Account account;
+        for (int i = 0; i < splitCount; i++) {
+            account = ((Split) splits[i]).account;
+            if (account != null && sections[account.index]) {
+                if (sinks[account.index] == null)
+                    sinks[account.index] = new SpillSink(spill, spillCharset);
+                format.writeTransaction(sinks[account.index], account, context, transaction, splits, duplicate);
+            }
+        }
+    }
+
+    /**
+     * Writes out each account's section of transactions in account order
+     * @throws IOException Thrown if an error comes up while writing
+     */
+    public void finish() throws IOException
+    {
+        Iterator accountIterator = context.accountSet.iterator();
+        Account currentAccount;
+        while (accountIterator.hasNext()) {
+            currentAccount = (Account) accountIterator.next();
+            if (sections[currentAccount.index]) {
+                format.writeAccountTransactionHeader(writer, context, currentAccount);
+                if (sinks[currentAccount.index] != null)
+                    sinks[currentAccount.index].copyTo(writer);
+            }
+        }
+    }
+
+    /**
+     * Deletes the spill file
+     * @throws IOException Thrown if the spill file could not be closed
+     */
+    public void close() throws IOException
+    {
+        if (spill != null)
+            spill.close();
+        spill = null;
+    }
+}
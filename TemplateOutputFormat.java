@@ -0,0 +1,699 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import javax.swing.filechooser.FileFilter;
+
+/**
+ * Output format that is described by a template file instead of code. The
+ * file is a UTF-8 Java properties file whose values are written out with ${field}
+ * replaced by the field's value and $$ by a dollar sign; \t, \n, \r\n and
+ * other escapes work as in any properties file. These keys are used, and
+ * each may be left out:
+ * <ul>
+ * <li>header: written once at the start</li>
+ * <li>account: written before the transactions of each account</li>
+ * <li>transaction: written for each transaction of the account</li>
+ * <li>split: written for each split after its transaction</li>
+ * <li>transactionEnd: written after the splits of a transaction</li>
+ * <li>accountEnd: written after the transactions of each account</li>
+ * <li>footer: written once at the end</li>
+ * </ul>
+ * Accounts come in the order of their full names, and only accounts with
+ * transactions are written unless unused accounts are kept. These settings
+ * change what gets written:
+ * <ul>
+ * <li>transactions=all lists each transaction in every account that it
+ * affects; transactions=once only lists it in the account of its first split</li>
+ * <li>splits=all writes every split; splits=others leaves out the split of
+ * the account that the transaction is listed in</li>
+ * <li>names=qif or names=iif names accounts the way that QIF or IIF does</li>
+ * <li>description and extension describe the files in the file chooser</li>
+ * </ul>
+ * Every template is compiled into a list of operations when the file is
+ * loaded, each of which appends a piece of text or one field straight to
+ * the output, so nothing gets parsed or looked up while records are written.
+ * The fields are account.name, account.fullName, account.type, account.code,
+ * account.description, account.notes and account.guid; date, isoDate,
+ * dueDate, guid, description, ref, type, amount, negatedAmount, memo and
+ * status of the transaction in the listed account; and split.account.name,
+ * split.account.fullName, split.account.guid, split.amount,
+ * split.negatedAmount, split.memo, split.action, split.status and
+ * split.number. Dates are MM/DD/YYYY except for isoDate
+ */
+public class TemplateOutputFormat implements OutputFormat
+{
+    /** What --output-format values that name a template file start with */
+    public static final String PREFIX = "template:";
+
+    /** The level of templates that are written once per output */
+    protected static final int LEVEL_OUTPUT = 0;
+
+    /** The level of templates that are written once per account */
+    protected static final int LEVEL_ACCOUNT = 1;
+
+    /** The level of templates that are written once per transaction */
+    protected static final int LEVEL_TRANSACTION = 2;
+
+    /** The level of templates that are written once per split */
+    protected static final int LEVEL_SPLIT = 3;
+
+    /** The template keys and their levels */
+    protected static final Map templateLevels = new HashMap();
+
+    /** The settings that template files may have besides the templates */
+    protected static final String settings[] = {"transactions", "splits", "names", "description", "extension"};
+
+    /** The fields by name */
+    protected static final Map fields = new HashMap();
+
+    /** The header template */
+    protected Operation header[];
+
+    /** The account template */
+    protected Operation account[];
+
+    /** The transaction template */
+    protected Operation transaction[];
+
+    /** The split template */
+    protected Operation split[];
+
+    /** The template that ends a transaction */
+    protected Operation transactionEnd[];
+
+    /** The template that ends an account */
+    protected Operation accountEnd[];
+
+    /** The footer template */
+    protected Operation footer[];
+
+    /** Whether each transaction is only listed in the account of its first split */
+    protected boolean once = false;
+
+    /** Whether the split of the listed account is left out */
+    protected boolean otherSplits = false;
+
+    /** Whether accounts are named the way that IIF names them */
+    protected boolean iifNames = false;
+
+    /** The description of the output files */
+    protected String description;
+
+    /** The extension of the output files, without the dot */
+    protected String extension;
+
+    /** Our cached FileFilter instance */
+    protected FileFilter fileFilter = null;
+
+    /**
+     * Loads and compiles a template file
+     * @param file The template file
+     * @return The output format
+     * @throws IOException Thrown if the file could not be read or has a
+     * mistake in it, which the message describes
+     */
+    public static TemplateOutputFormat load(File file) throws IOException
+    {
+        Properties properties = new Properties();
+        Reader input = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            properties.load(input);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file.getPath() + ": " + e.getMessage());
+        } finally {
+            input.close();
+        }
+
+        // Every key has to be a template or a setting
+        Iterator keyIterator = properties.keySet().iterator();
+        String key;
+        while (keyIterator.hasNext()) {
+            key = (String) keyIterator.next();
+            if (!templateLevels.containsKey(key) && !isSetting(key))
+                throw new IOException(file.getPath() + ": unknown key " + key);
+        }
+
+        // Compile the templates and read the settings
+        TemplateOutputFormat format = new TemplateOutputFormat();
+        format.header = compile(file, properties, "header");
+        format.account = compile(file, properties, "account");
+        format.transaction = compile(file, properties, "transaction");
+        format.split = compile(file, properties, "split");
+        format.transactionEnd = compile(file, properties, "transactionEnd");
+        format.accountEnd = compile(file, properties, "accountEnd");
+        format.footer = compile(file, properties, "footer");
+        format.once = getSetting(file, properties, "transactions", "all", "once");
+        format.otherSplits = getSetting(file, properties, "splits", "all", "others");
+        format.iifNames = getSetting(file, properties, "names", "qif", "iif");
+        format.description = properties.getProperty("description", file.getName());
+        format.extension = properties.getProperty("extension", "txt");
+        return format;
+    }
+
+    /**
+     * Returns whether a key is one of the settings
+     * @param key The key
+     * @return True if the key is a setting
+     */
+    protected static boolean isSetting(String key)
+    {
+        for (int i = 0; i < settings.length; i++)
+            if (settings[i].equals(key))
+                return true;
+        return false;
+    }
+
+    /**
+     * Reads a setting that has two values
+     * @param file The template file, for the error message
+     * @param properties The template file's properties
+     * @param key The setting
+     * @param off The default value
+     * @param on The other value
+     * @return True if the setting has the other value
+     * @throws IOException Thrown if the setting has neither value
+     */
+    protected static boolean getSetting(File file, Properties properties, String key, String off, String on) throws IOException
+    {
+        String value = properties.getProperty(key, off).trim();
+        if (value.equalsIgnoreCase(on))
+            return true;
+        else if (value.equalsIgnoreCase(off))
+            return false;
+        throw new IOException(file.getPath() + ": " + key + " has to be " + off + " or " + on);
+    }
+
+    /**
+     * Compiles one template into the operations that write it
+     * @param file The template file, for error messages
+     * @param properties The template file's properties
+     * @param key The template's key
+     * @return The operations, which are none if the template is left out
+     * @throws IOException Thrown if the template has an unknown field, a
+     * field of a level below the template's, or an unclosed ${
+     */
+    protected static Operation[] compile(File file, Properties properties, String key) throws IOException
+    {
+        String template = properties.getProperty(key, "");
+        int level = ((Integer) templateLevels.get(key)).intValue();
+        List operations = new ArrayList();
+        StringBuffer text = new StringBuffer();
+        int pos = 0, start, end;
+        Field field;
+        while (pos < template.length()) {
+            start = template.indexOf('$', pos);
+            if (start < 0 || start + 1 >= template.length()) {
+                text.append(template.substring(pos));
+                break;
+            }
+            text.append(template.substring(pos, start));
+            if (template.charAt(start + 1) == '$') {
+                // $$ is a dollar sign
+                text.append('$');
+                pos = start + 2;
+            } else if (template.charAt(start + 1) == '{') {
+                end = template.indexOf('}', start);
+                if (end < 0)
+                    throw new IOException(file.getPath() + ": " + key + " has a ${ without a }");
+                field = (Field) fields.get(template.substring(start + 2, end).trim());
+                if (field == null)
+                    throw new IOException(file.getPath() + ": " + key + " has the unknown field " + template.substring(start, end + 1));
+                if (field.level > level)
+                    throw new IOException(file.getPath() + ": " + key + " cannot use " + template.substring(start, end + 1));
+                if (text.length() > 0) {
+                    operations.add(new Text(text.toString()));
+                    text.setLength(0);
+                }
+                operations.add(field.operation);
+                pos = end + 1;
+            } else {
+                text.append('$');
+                pos = start + 1;
+            }
+        }
+        if (text.length() > 0)
+            operations.add(new Text(text.toString()));
+        return (Operation[]) operations.toArray(new Operation[operations.size()]);
+    }
+
+    /**
+     * Writes out the accounts and their transactions as the templates say
+     * @param context The export context with the accounts and their transaction data
+     * @param writer The sink to output the converted data to
+     */
+    public void export(ExportContext context, OutputSink writer) throws IOException
+    {
+        // Sort the accounts that get written
+        context.accountSet = new TreeSet(new AccountComparator(context));
+        context.accountSet.addAll(context.conversion.accounts.values());
+        final List accounts = new ArrayList();
+        Iterator accountIterator = context.accountSet.iterator();
+        Account currentAccount;
+        while (accountIterator.hasNext()) {
+            currentAccount = (Account) accountIterator.next();
+            if (!currentAccount.trans.isEmpty() || !context.conversion.pruneUnusedAccounts)
+                accounts.add(currentAccount);
+        }
+
+        // Write the header, the accounts, on several threads if asked to,
+        // and the footer
+        Record record = new Record(context);
+        write(header, writer, record);
+        if (context.conversion.renderThreads > 1) {
+            new ParallelExport() {
+                protected void render(int section, OutputSink sink, ExportContext fork) throws IOException {
+                    writeAccount(sink, new Record(fork), (Account) accounts.get(section));
+                }
+            }.write(writer, context, accounts.size(), context.conversion.renderThreads);
+        } else {
+            for (int i = 0; i < accounts.size(); i++)
+                writeAccount(writer, record, (Account) accounts.get(i));
+        }
+        write(footer, writer, record);
+    }
+
+    /**
+     * Writes out one account with its transactions and their splits
+     * @param writer The sink to write to
+     * @param record The record to keep the current account, transaction and split in
+     * @param currentAccount The account
+     * @throws IOException Thrown if the sink could not be written to
+     */
+    protected void writeAccount(OutputSink writer, Record record, Account currentAccount) throws IOException
+    {
+        record.account = currentAccount;
+        write(account, writer, record);
+        Iterator transIterator = currentAccount.trans.iterator();
+        Iterator splitIterator;
+        Transaction currentTransaction;
+        Split currentSplit;
+        int number;
+        while (transIterator.hasNext()) {
+            currentTransaction = (Transaction) transIterator.next();
+            if (once && !isFirstAccount(record.context.conversion, currentTransaction, currentAccount))
+                continue;
+            record.transaction = currentTransaction;
+            record.listed = getSplit(currentTransaction, currentAccount);
+            write(transaction, writer, record);
+            if (split.length > 0) {
+                splitIterator = currentTransaction.splits.iterator();
+                number = 0;
+                while (splitIterator.hasNext()) {
+                    currentSplit = (Split) splitIterator.next();
+                    number++;
+                    if (otherSplits && currentSplit == record.listed)
+                        continue;
+                    record.split = currentSplit;
+                    record.number = number;
+                    write(split, writer, record);
+                }
+                record.split = null;
+            }
+            write(transactionEnd, writer, record);
+        }
+        write(accountEnd, writer, record);
+    }
+
+    /**
+     * Runs the operations of a template
+     * @param operations The compiled template
+     * @param writer The sink to write to
+     * @param record The current account, transaction and split
+     * @throws IOException Thrown if the sink could not be written to
+     */
+    protected static void write(Operation operations[], OutputSink writer, Record record) throws IOException
+    {
+        for (int i = 0; i < operations.length; i++)
+            operations[i].append(writer, record);
+    }
+
+    /**
+     * Returns whether an account is the first known account in the splits
+     * of a transaction
+     * @param conversion The book
+     * @param transaction The transaction
+     * @param account The account
+     * @return True if the transaction gets listed in the account with transactions=once
+     */
+    protected static boolean isFirstAccount(Conversion conversion, Transaction transaction, Account account)
+    {
+        Iterator splitIterator = transaction.splits.iterator();
+        Account target;
+        while (splitIterator.hasNext()) {
+            target = (Account) conversion.accounts.get(((Split) splitIterator.next()).accountGuid);
+            if (target != null)
+                return target.guid.equalsIgnoreCase(account.guid);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the first split of a transaction that belongs to an account
+     * @param transaction The transaction
+     * @param account The account
+     * @return The split, or null if none belongs to the account
+     */
+    protected static Split getSplit(Transaction transaction, Account account)
+    {
+        Iterator splitIterator = transaction.splits.iterator();
+        Split currentSplit;
+        while (splitIterator.hasNext()) {
+            currentSplit = (Split) splitIterator.next();
+            if (currentSplit.accountGuid.equalsIgnoreCase(account.guid))
+                return currentSplit;
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether accounts are named the way that IIF names them, rather
+     * than the way that QIF does
+     * @return True if the template uses IIF names
+     */
+    public boolean usesIIFNames() {
+        return iifNames;
+    }
+
+    /**
+     * Works out the full account names that this format uses
+     * @param context The export context to keep the full names in
+     */
+    public void resolveAccountNames(ExportContext context)
+    {
+        if (iifNames)
+            IIFOutputFormat.updateFullNames(context);
+        else
+            QIF2003OutputFormat.updateFullNames(context);
+    }
+
+    /**
+     * Returns the FileFilter of the template's files
+     * @return The FileFilter
+     */
+    public FileFilter getFileFilter() {
+        if (fileFilter == null)
+            return fileFilter = new FileFilter() {
+                public boolean accept(File f) {
+                    if (f.isDirectory() || f.getName().endsWith("." + extension))
+                        return true;
+                    else
+                        return false;
+                }
+                public String getDescription() {
+                    return description;
+                }
+            };
+        else
+            return fileFilter;
+    }
+
+    /**
+     * The account, transaction and split that the templates are being
+     * written for
+     */
+    protected static class Record
+    {
+        /** The export context */
+        protected final ExportContext context;
+
+        /** The text arena of the book, or null if none is used */
+        protected final TextArena text;
+
+        /** The current account */
+        protected Account account;
+
+        /** The current transaction */
+        protected Transaction transaction;
+
+        /** The split of the current transaction that belongs to the current account */
+        protected Split listed;
+
+        /** The current split */
+        protected Split split;
+
+        /** The position of the current split in its transaction, starting at 1 */
+        protected int number;
+
+        /**
+         * Creates a new record
+         * @param context The export context
+         */
+        protected Record(ExportContext context)
+        {
+            this.context = context;
+            text = context.conversion.text;
+        }
+    }
+
+    /**
+     * One step of a compiled template
+     */
+    protected static abstract class Operation
+    {
+        /**
+         * Appends this step's output
+         * @param writer The sink to write to
+         * @param record The current account, transaction and split
+         * @throws IOException Thrown if the sink could not be written to
+         */
+        public abstract void append(OutputSink writer, Record record) throws IOException;
+    }
+
+    /**
+     * Step that writes a piece of the template as it is
+     */
+    protected static class Text extends Operation
+    {
+        /** The text */
+        protected final String text;
+
+        /**
+         * Creates a new text step
+         * @param text The text
+         */
+        protected Text(String text) {
+            this.text = text;
+        }
+
+        public void append(OutputSink writer, Record record) throws IOException {
+            writer.write(text);
+        }
+    }
+
+    /**
+     * A field with the step that writes it and the level that it needs
+     */
+    protected static class Field
+    {
+        /** The lowest level of the templates that can use this field */
+        protected final int level;
+
+        /** The step that writes the field */
+        protected final Operation operation;
+
+        /**
+         * Creates a new field
+         * @param level The lowest level of the templates that can use this field
+         * @param operation The step that writes the field
+         */
+        protected Field(int level, Operation operation)
+        {
+            this.level = level;
+            this.operation = operation;
+        }
+    }
+
+    /**
+     * Adds a field
+     * @param name The field's name
+     * @param level The lowest level of the templates that can use the field
+     * @param operation The step that writes the field
+     */
+    protected static void addField(String name, int level, Operation operation) {
+        fields.put(name, new Field(level, operation));
+    }
+
+    /**
+     * Writes a String that may be null
+     * @param writer The sink to write to
+     * @param value The String, or null to write nothing
+     * @throws IOException Thrown if the sink could not be written to
+     */
+    protected static void writeValue(OutputSink writer, String value) throws IOException
+    {
+        if (value != null)
+            writer.write(value);
+    }
+
+    static {
+        templateLevels.put("header", Integer.valueOf(LEVEL_OUTPUT));
+        templateLevels.put("account", Integer.valueOf(LEVEL_ACCOUNT));
+        templateLevels.put("transaction", Integer.valueOf(LEVEL_TRANSACTION));
+        templateLevels.put("split", Integer.valueOf(LEVEL_SPLIT));
+        templateLevels.put("transactionEnd", Integer.valueOf(LEVEL_TRANSACTION));
+        templateLevels.put("accountEnd", Integer.valueOf(LEVEL_ACCOUNT));
+        templateLevels.put("footer", Integer.valueOf(LEVEL_OUTPUT));
+
+        // The fields of the current account
+        addField("account.name", LEVEL_ACCOUNT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writeValue(writer, record.account.name);
+            }
+        });
+        addField("account.fullName", LEVEL_ACCOUNT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writeValue(writer, record.context.getFullName(record.account));
+            }
+        });
+        addField("account.type", LEVEL_ACCOUNT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writeValue(writer, record.account.typeName);
+            }
+        });
+        addField("account.code", LEVEL_ACCOUNT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writeValue(writer, record.account.code);
+            }
+        });
+        addField("account.description", LEVEL_ACCOUNT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writeValue(writer, record.account.description);
+            }
+        });
+        addField("account.notes", LEVEL_ACCOUNT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writeValue(writer, record.account.notes);
+            }
+        });
+        addField("account.guid", LEVEL_ACCOUNT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writeValue(writer, record.account.guid);
+            }
+        });
+
+        // The fields of the current transaction, as it appears in the account
+        addField("date", LEVEL_TRANSACTION, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                DateCache.MONTH_DAY_YEAR.append(writer, record.transaction.datePosted);
+            }
+        });
+        addField("isoDate", LEVEL_TRANSACTION, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writeValue(writer, record.transaction.datePosted);
+            }
+        });
+        addField("dueDate", LEVEL_TRANSACTION, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                DateCache.MONTH_DAY_YEAR.append(writer, record.transaction.dateDue);
+            }
+        });
+        addField("guid", LEVEL_TRANSACTION, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writeValue(writer, record.transaction.guid);
+            }
+        });
+        addField("description", LEVEL_TRANSACTION, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writer.appendText(record.transaction.description, record.text, record.transaction.descriptionText);
+            }
+        });
+        addField("ref", LEVEL_TRANSACTION, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writer.appendText(record.transaction.ref, record.text, record.transaction.refText);
+            }
+        });
+        addField("type", LEVEL_TRANSACTION, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writeValue(writer, record.transaction.transactionType);
+            }
+        });
+        addField("amount", LEVEL_TRANSACTION, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                if (record.listed != null)
+                    writer.appendAmount(record.listed.amount);
+            }
+        });
+        addField("negatedAmount", LEVEL_TRANSACTION, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                if (record.listed != null)
+                    writer.appendAmount(0 - record.listed.amount);
+            }
+        });
+        addField("memo", LEVEL_TRANSACTION, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                if (record.listed != null)
+                    writer.appendText(record.listed.memo, record.text, record.listed.memoText);
+            }
+        });
+        addField("status", LEVEL_TRANSACTION, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                if (record.listed != null && record.listed.reconciliationStatus != 0)
+                    writer.write(record.listed.reconciliationStatus);
+            }
+        });
+
+        // The fields of the current split
+        addField("split.account.name", LEVEL_SPLIT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                Account target = (Account) record.context.conversion.accounts.get(record.split.accountGuid);
+                if (target != null)
+                    writeValue(writer, target.name);
+            }
+        });
+        addField("split.account.fullName", LEVEL_SPLIT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                Account target = (Account) record.context.conversion.accounts.get(record.split.accountGuid);
+                if (target != null)
+                    writeValue(writer, record.context.getFullName(target));
+            }
+        });
+        addField("split.account.guid", LEVEL_SPLIT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writeValue(writer, record.split.accountGuid);
+            }
+        });
+        addField("split.amount", LEVEL_SPLIT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writer.appendAmount(record.split.amount);
+            }
+        });
+        addField("split.negatedAmount", LEVEL_SPLIT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writer.appendAmount(0 - record.split.amount);
+            }
+        });
+        addField("split.memo", LEVEL_SPLIT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writer.appendText(record.split.memo, record.text, record.split.memoText);
+            }
+        });
+        addField("split.action", LEVEL_SPLIT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writer.appendText(record.split.action, record.text, record.split.actionText);
+            }
+        });
+        addField("split.status", LEVEL_SPLIT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                if (record.split.reconciliationStatus != 0)
+                    writer.write(record.split.reconciliationStatus);
+            }
+        });
+        addField("split.number", LEVEL_SPLIT, new Operation() {
+            public void append(OutputSink writer, Record record) throws IOException {
+                writer.appendInt(record.number);
+            }
+        });
+    }
+}
@@ -0,0 +1,224 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Append-only store of UTF-8 encoded text. Records that keep their text
+ * here hold a single long reference (offset and length) instead of a String
+ * object, and the bytes stay encoded for output. When the arena is backed by
+ * a mapped GnuCash file, references can also point straight into that file
+ */
+class TextArena
+{
+    /** Reference that stands for a missing (null) value */
+    public static final long NONE = -1;
+
+    /** Flag bit of references into the mapped book rather than the arena's own data */
+    protected static final long MAPPED = 0x8000000000000000L;
+
+    /** The number of bits that hold the length of a mapped reference */
+    protected static final int MAPPED_LENGTH_BITS = 24;
+
+    /** The mapped GnuCash file that mapped references point into, or null */
+    protected MappedBook book;
+
+    /** The initial capacity of the arena */
+    protected static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /** The encoded text */
+    protected byte data[] = new byte[INITIAL_CAPACITY];
+
+    /** The number of bytes in use */
+    protected int size = 0;
+
+    /**
+     * Creates a new, empty text arena
+     */
+    public TextArena() {
+        this(null);
+    }
+
+    /**
+     * Creates a new, empty text arena that can also refer to text in a mapped file
+     * @param book The mapped GnuCash file, or null if none is used
+     */
+    public TextArena(MappedBook book) {
+        this.book = book;
+    }
+
+    /**
+     * Appends the given String to the arena
+     * @param value The String to append, which may be null
+     * @return The reference to the appended text, or NONE if value is null
+     */
+    public long add(String value) {
+        if (value == null)
+            return NONE;
+        return add(value, 0, value.length());
+    }
+
+    /**
+     * Appends a range of characters to the arena
+     * @param value The characters to append
+     * @param start The index of the first character
+     * @param end The index after the last character
+     * @return The reference to the appended text
+     */
+    public long add(CharSequence value, int start, int end)
+    {
+        // Reserve the worst case of three bytes per UTF-16 unit
+        ensureCapacity((end - start) * 3);
+        int offset = size, pos = size;
+        char c;
+        for (int i = start; i < end; i++) {
+            c = value.charAt(i);
+            if (c < 0x80)
+                data[pos++] = (byte) c;
+            else if (c < 0x800) {
+                data[pos++] = (byte) (0xc0 | (c >> 6));
+                data[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                data[pos++] = (byte) (0xf0 | (codePoint >> 18));
+                data[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                data[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                data[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c))
+                data[pos++] = (byte) '?';
+            else {
+                data[pos++] = (byte) (0xe0 | (c >> 12));
+                data[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                data[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        size = pos;
+        return reference(offset, pos - offset);
+    }
+
+    /**
+     * Refers to a range of UTF-8 text in the mapped book without copying it
+     * @param position The position of the text in the mapped book
+     * @param length The length of the text in bytes
+     * @return The reference to the text
+     */
+    public long addMapped(long position, int length)
+    {
+        // Ranges that are too long for a mapped reference get copied
+        if (length >= MappedBook.MAX_RANGE) {
+            ensureCapacity(length);
+            for (int i = 0; i < length; i++)
+                data[size + i] = book.get(position + i);
+            size += length;
+            return reference(size - length, length);
+        }
+        return MAPPED | (position << MAPPED_LENGTH_BITS) | length;
+    }
+
+    /**
+     * Decodes the referenced text into a String
+     * @param ref The reference returned by add() or addMapped()
+     * @return The decoded String, or null if ref is NONE
+     */
+    public String get(long ref) {
+        if (ref == NONE)
+            return null;
+        if (isMapped(ref))
+            return book.decode(mappedPosition(ref), length(ref));
+        try {
+            return new String(data, offset(ref), length(ref), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the mapped book that mapped references point into
+     * @return The mapped book, or null if none is used
+     */
+    public MappedBook getBook() {
+        return book;
+    }
+
+    /**
+     * Returns the backing byte array. References that are not mapped index
+     * into this array, which is replaced whenever the arena grows
+     * @return The backing byte array
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Returns the number of bytes stored in this arena
+     * @return The number of bytes stored in this arena
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns whether the reference points into the mapped book
+     * @param ref The text reference, which must not be NONE
+     * @return True if the text is in the mapped book or false if it is
+     * in the arena's own data
+     */
+    public static boolean isMapped(long ref) {
+        return (ref & MAPPED) != 0;
+    }
+
+    /**
+     * Returns the offset of the referenced text in the arena's data
+     * @param ref The text reference, which must not be mapped
+     * @return The byte offset of the referenced text
+     */
+    public static int offset(long ref) {
+        return (int) (ref >>> 32);
+    }
+
+    /**
+     * Returns the position of the referenced text in the mapped book
+     * @param ref The mapped text reference
+     * @return The position of the referenced text in the mapped book
+     */
+    public static long mappedPosition(long ref) {
+        return (ref & ~MAPPED) >>> MAPPED_LENGTH_BITS;
+    }
+
+    /**
+     * Returns the encoded length of the referenced text
+     * @param ref The text reference
+     * @return The length of the referenced text in bytes
+     */
+    public static int length(long ref) {
+        if (isMapped(ref))
+            return (int) (ref & ((1 << MAPPED_LENGTH_BITS) - 1));
+        return (int) ref;
+    }
+
+    /**
+     * Builds a reference from an offset and a length
+     * @param offset The byte offset
+     * @param length The length in bytes
+     * @return The reference
+     */
+    protected static long reference(int offset, int length) {
+        return ((long) offset << 32) | (length & 0xffffffffL);
+    }
+
+    /**
+     * Ensures that the given number of bytes can be appended
+     * @param extra The number of bytes that are about to be appended
+     */
+    protected void ensureCapacity(int extra)
+    {
+        long required = (long) size + extra;
+        if (required <= data.length)
+            return;
+        if (required > Integer.MAX_VALUE - 8)
+            throw new RuntimeException("Text arena is full (" + size + " bytes)");
+        long capacity = Math.max(required, Math.min((long) data.length * 2, Integer.MAX_VALUE - 8));
+        byte grown[] = new byte[(int) capacity];
+        System.arraycopy(data, 0, grown, 0, size);
+        data = grown;
+    }
+}
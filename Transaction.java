@@ -20,6 +20,12 @@ class Transaction
     /** The reference number, if any */
     public String ref;
 
+    /** The description in the conversion's text arena, if it is used */
+    public long descriptionText = TextArena.NONE;
+
+    /** The reference number in the conversion's text arena, if it is used */
+    public long refText = TextArena.NONE;
+
     /** The splits in this transaction (usually two) */
     public List splits = new ArrayList(2);
     
@@ -29,14 +35,94 @@ class Transaction
     /** The transaction type */
     public String transactionType;
     
-    /** Export transaction type (used by IIF; not from GnuCash) */
-    public String exportTransactionType;
+    /** The position of this transaction in the order that it was read */
+    public int index;
+
+    /**
+     * Returns the description of this transaction
+     * @param text The conversion's text arena, or null if it is not used
+     * @return The description of this transaction
+     */
+    public String getDescription(TextArena text) {
+        if (description != null || text == null)
+            return description;
+        return text.get(descriptionText);
+    }
+
+    /**
+     * Returns the reference number of this transaction
+     * @param text The conversion's text arena, or null if it is not used
+     * @return The reference number of this transaction, or null if none exists
+     */
+    public String getRef(TextArena text) {
+        if (ref != null || text == null)
+            return ref;
+        return text.get(refText);
+    }
+
+    /**
+     * Returns whether this transaction has a reference number
+     * @param text The conversion's text arena, or null if it is not used
+     * @return True if a reference number exists
+     */
+    public boolean hasRef(TextArena text) {
+        return ref != null || (text != null && refText != TextArena.NONE);
+    }
+
+    /**
+     * Empties this transaction so that it can be read into again
+     */
+    public void clear()
+    {
+        datePosted = null;
+        dateDue = null;
+        description = null;
+        ref = null;
+        descriptionText = TextArena.NONE;
+        refText = TextArena.NONE;
+        splits.clear();
+        guid = null;
+        transactionType = null;
+        index = 0;
+    }
+
+    /**
+     * Returns a copy of this transaction with copies of its splits, which
+     * stays the same when this transaction gets cleared and read into again
+     * @return A copy of this transaction
+     */
+    public Transaction copy()
+    {
+        Transaction copy = new Transaction();
+        copy.datePosted = datePosted;
+        copy.dateDue = dateDue;
+        copy.description = description;
+        copy.ref = ref;
+        copy.descriptionText = descriptionText;
+        copy.refText = refText;
+        copy.guid = guid;
+        copy.transactionType = transactionType;
+        copy.index = index;
+        for (int i = 0; i < splits.size(); i++)
+            copy.splits.add(((Split) splits.get(i)).copy());
+        return copy;
+    }
 
     /**
      * Returns a stringified version of this object
      * @return A stringified version of this object
      */
     public String toString() {
-    	return "\"" + description + "\" on " + datePosted + ((ref == null)? "": " with ref \"" + ref + "\"");
+    	return toString(null);
+    }
+
+    /**
+     * Returns a stringified version of this object
+     * @param text The conversion's text arena, or null if it is not used
+     * @return A stringified version of this object
+     */
+    public String toString(TextArena text) {
+        String ref = getRef(text);
+    	return "\"" + getDescription(text) + "\" on " + datePosted + ((ref == null)? "": " with ref \"" + ref + "\"");
     }
 }
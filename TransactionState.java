@@ -0,0 +1,476 @@
+package net.sourceforge.gnucashtoqif;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The exported state of a book: a 64-bit hash of the content of every
+ * transaction, indexed by transaction GUID. The GUIDs are kept as two longs
+ * each and sorted, so that a state takes 24 bytes per transaction and can be
+ * searched without building any objects. Comparing the state of the last
+ * export with the current book gives the transactions that are new,
+ * changed or deleted since then
+ */
+class TransactionState
+{
+    /** The first four bytes of a state file, "GCQS" */
+    protected static final int MAGIC = 0x47435153;
+
+    /** The version of the state file format */
+    protected static final int VERSION = 1;
+
+    /** The FNV-1a offset basis */
+    protected static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    /** The FNV-1a prime */
+    protected static final long FNV_PRIME = 0x100000001b3L;
+
+    /** The high 64 bits of the GUIDs, in sorted order */
+    protected long guidHigh[];
+
+    /** The low 64 bits of the GUIDs */
+    protected long guidLow[];
+
+    /** The content hashes of the transactions */
+    protected long hashes[];
+
+    /** The GUIDs that are not hexadecimal, by index, or null if every GUID is */
+    protected String others[] = null;
+
+    /** The number of transactions */
+    protected int size;
+
+    /**
+     * Creates a new state with room for the given number of transactions
+     * @param capacity The number of transactions
+     */
+    protected TransactionState(int capacity)
+    {
+        guidHigh = new long[capacity];
+        guidLow = new long[capacity];
+        hashes = new long[capacity];
+    }
+
+    /**
+     * Works out the state of every transaction in a book
+     * @param conversion The book
+     * @return The state of the book
+     */
+    public static TransactionState of(Conversion conversion)
+    {
+        TransactionState state = new TransactionState(conversion.transactions.size());
+        Iterator transactionIterator = conversion.transactions.values().iterator();
+        Transaction currentTransaction;
+        while (transactionIterator.hasNext()) {
+            currentTransaction = (Transaction) transactionIterator.next();
+            state.add(currentTransaction.guid, hash(currentTransaction, conversion.text));
+        }
+        state.sort();
+        return state;
+    }
+
+    /**
+     * Reads the state that an earlier export saved
+     * @param file The state file
+     * @return The saved state, or an empty state if the file does not exist
+     * @throws IOException Thrown if the file could not be read or is not a
+     * state file
+     */
+    public static TransactionState read(File file) throws IOException
+    {
+        if (!file.exists())
+            return new TransactionState(0);
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION)
+                throw new IOException(file.getPath() + " is not a GnuCashToQIF state file");
+            int count = input.readInt();
+            TransactionState state = new TransactionState(count);
+            for (int i = 0; i < count; i++) {
+                state.guidHigh[i] = input.readLong();
+                state.guidLow[i] = input.readLong();
+                state.hashes[i] = input.readLong();
+            }
+            state.size = count;
+            int otherCount = input.readInt();
+            if (otherCount > 0)
+                state.others = new String[count];
+            for (int i = 0; i < otherCount; i++)
+                state.others[input.readInt()] = input.readUTF();
+            return state;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Saves this state, writing a temporary file first and renaming it so
+     * that an interrupted save leaves the old state in place
+     * @param file The state file
+     * @throws IOException Thrown if the file could not be written
+     */
+    public void write(File file) throws IOException
+    {
+        File temporary = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                output.writeLong(guidHigh[i]);
+                output.writeLong(guidLow[i]);
+                output.writeLong(hashes[i]);
+            }
+            int otherCount = 0;
+            for (int i = 0; others != null && i < size; i++)
+                if (others[i] != null)
+                    otherCount++;
+            output.writeInt(otherCount);
+            for (int i = 0; others != null && i < size; i++) {
+                if (others[i] != null) {
+                    output.writeInt(i);
+                    output.writeUTF(others[i]);
+                }
+            }
+        } finally {
+            output.close();
+        }
+        Files.move(temporary.toPath(), file.toPath(), new StandardCopyOption[] {StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE});
+    }
+
+    /**
+     * Returns the number of transactions in this state
+     * @return The number of transactions
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the transactions of a book that are new or changed since this
+     * state, as a book of their own that exports like the full book
+     * @param conversion The current book
+     * @return The book of the new and changed transactions
+     */
+    public Conversion newOrChanged(Conversion conversion)
+    {
+        // Find the transactions whose hash is not in this state, checking each
+        // transaction only once
+        byte changed[] = new byte[conversion.transactionCount];
+        List accountTransactions[] = new List[conversion.accountCount];
+        Iterator accountIterator = conversion.accounts.values().iterator();
+        Iterator transIterator;
+        Account currentAccount;
+        Transaction currentTransaction;
+        int index;
+        while (accountIterator.hasNext()) {
+            currentAccount = (Account) accountIterator.next();
+            transIterator = currentAccount.trans.iterator();
+            while (transIterator.hasNext()) {
+                currentTransaction = (Transaction) transIterator.next();
+                if (changed[currentTransaction.index] == 0) {
+                    index = find(currentTransaction.guid);
+                    if (index >= 0 && hashes[index] == hash(currentTransaction, conversion.text))
+                        changed[currentTransaction.index] = 2;
+                    else
+                        changed[currentTransaction.index] = 1;
+                }
+                if (changed[currentTransaction.index] == 1) {
+                    if (accountTransactions[currentAccount.index] == null)
+                        accountTransactions[currentAccount.index] = new ArrayList();
+                    accountTransactions[currentAccount.index].add(currentTransaction);
+                }
+            }
+        }
+        return conversion.subset(accountTransactions);
+    }
+
+    /**
+     * Returns the GUIDs in this state that another state does not have
+     * @param current The other state
+     * @return The missing GUIDs, in sorted order
+     */
+    public List missingFrom(TransactionState current)
+    {
+        List missing = new ArrayList();
+        for (int i = 0; i < size; i++) {
+            if (current.find(guidHigh[i], guidLow[i]) >= 0)
+                continue;
+            if (others != null && others[i] != null)
+                missing.add(others[i]);
+            else
+                missing.add(toHex(guidHigh[i]) + toHex(guidLow[i]));
+        }
+        return missing;
+    }
+
+    /**
+     * Returns the index of a GUID in this state
+     * @param guid The GUID
+     * @return The index, or -1 if the GUID is not in this state
+     */
+    public int find(String guid) {
+        return find(getHigh(guid), getLow(guid));
+    }
+
+    /**
+     * Searches for a GUID in this state
+     * @param high The high 64 bits of the GUID
+     * @param low The low 64 bits of the GUID
+     * @return The index, or -1 if the GUID is not in this state
+     */
+    protected int find(long high, long low)
+    {
+        int first = 0, last = size - 1, middle, order;
+        while (first <= last) {
+            middle = (first + last) >>> 1;
+            order = compare(guidHigh[middle], guidLow[middle], high, low);
+            if (order < 0)
+                first = middle + 1;
+            else if (order > 0)
+                last = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a transaction to the end of this state
+     * @param guid The GUID of the transaction
+     * @param hash The content hash of the transaction
+     */
+    protected void add(String guid, long hash)
+    {
+        if (!isHex(guid)) {
+            if (others == null)
+                others = new String[guidHigh.length];
+            others[size] = guid;
+        }
+        guidHigh[size] = getHigh(guid);
+        guidLow[size] = getLow(guid);
+        hashes[size++] = hash;
+    }
+
+    /**
+     * Sorts the transactions by GUID in place with a heap sort
+     */
+    protected void sort()
+    {
+        for (int i = size / 2 - 1; i >= 0; i--)
+            siftDown(i, size);
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    /**
+     * Moves an entry down the heap until its children are not larger
+     * @param root The index of the entry
+     * @param end The number of entries in the heap
+     */
+    protected void siftDown(int root, int end)
+    {
+        int child;
+        while ((child = 2 * root + 1) < end) {
+            if (child + 1 < end && compare(guidHigh[child], guidLow[child], guidHigh[child + 1], guidLow[child + 1]) < 0)
+                child++;
+            if (compare(guidHigh[root], guidLow[root], guidHigh[child], guidLow[child]) >= 0)
+                return;
+            swap(root, child);
+            root = child;
+        }
+    }
+
+    /**
+     * Swaps two entries
+     * @param i The index of the first entry
+     * @param j The index of the second entry
+     */
+    protected void swap(int i, int j)
+    {
+        long value = guidHigh[i];
+        guidHigh[i] = guidHigh[j];
+        guidHigh[j] = value;
+        value = guidLow[i];
+        guidLow[i] = guidLow[j];
+        guidLow[j] = value;
+        value = hashes[i];
+        hashes[i] = hashes[j];
+        hashes[j] = value;
+        if (others != null) {
+            String other = others[i];
+            others[i] = others[j];
+            others[j] = other;
+        }
+    }
+
+    /**
+     * Compares two GUIDs as unsigned 128-bit numbers
+     * @param high1 The high 64 bits of the first GUID
+     * @param low1 The low 64 bits of the first GUID
+     * @param high2 The high 64 bits of the second GUID
+     * @param low2 The low 64 bits of the second GUID
+     * @return A negative number, zero or a positive number if the first GUID
+     * is smaller than, equal to or larger than the second
+     */
+    protected static int compare(long high1, long low1, long high2, long low2)
+    {
+        if (high1 != high2)
+            return (high1 + Long.MIN_VALUE < high2 + Long.MIN_VALUE)? -1: 1;
+        if (low1 != low2)
+            return (low1 + Long.MIN_VALUE < low2 + Long.MIN_VALUE)? -1: 1;
+        return 0;
+    }
+
+    /**
+     * Returns the high 64 bits of a GUID. GnuCash GUIDs are 32 hexadecimal
+     * digits; anything else gets hashed
+     * @param guid The GUID
+     * @return The high 64 bits
+     */
+    protected static long getHigh(String guid)
+    {
+        if (!isHex(guid))
+            return hash(FNV_OFFSET, guid);
+        return parseHex(guid, 0);
+    }
+
+    /**
+     * Returns the low 64 bits of a GUID
+     * @param guid The GUID
+     * @return The low 64 bits
+     */
+    protected static long getLow(String guid)
+    {
+        if (!isHex(guid))
+            return hash(FNV_PRIME, guid);
+        return parseHex(guid, 16);
+    }
+
+    /**
+     * Returns whether a GUID is made of 32 hexadecimal digits
+     * @param guid The GUID
+     * @return True if the GUID can be parsed
+     */
+    protected static boolean isHex(String guid)
+    {
+        if (guid == null || guid.length() != 32)
+            return false;
+        for (int i = 0; i < 32; i++)
+            if (Character.digit(guid.charAt(i), 16) < 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Parses 16 hexadecimal digits
+     * @param value The String holding the digits
+     * @param start The index of the first digit
+     * @return The parsed bits
+     */
+    protected static long parseHex(String value, int start)
+    {
+        long bits = 0;
+        for (int i = start; i < start + 16; i++)
+            bits = (bits << 4) | Character.digit(value.charAt(i), 16);
+        return bits;
+    }
+
+    /**
+     * Formats 64 bits as 16 lower-case hexadecimal digits
+     * @param bits The bits
+     * @return The digits
+     */
+    protected static String toHex(long bits)
+    {
+        String digits = Long.toHexString(bits);
+        while (digits.length() < 16)
+            digits = "0" + digits;
+        return digits;
+    }
+
+    /**
+     * Returns the content hash of a transaction, which covers everything
+     * that the exports write out about it and its splits
+     * @param transaction The transaction
+     * @param text The text arena, or null if none is used
+     * @return The 64-bit FNV-1a hash
+     */
+    public static long hash(Transaction transaction, TextArena text)
+    {
+        long hash = hash(FNV_OFFSET, transaction.guid);
+        hash = hash(hash, transaction.datePosted);
+        hash = hash(hash, transaction.dateDue);
+        hash = hash(hash, transaction.getDescription(text));
+        hash = hash(hash, transaction.getRef(text));
+        Iterator splitIterator = transaction.splits.iterator();
+        Split split;
+        while (splitIterator.hasNext()) {
+            split = (Split) splitIterator.next();
+            hash = hash(hash, split.accountGuid);
+            hash = hash(hash, Double.doubleToLongBits(split.amount));
+            hash = hash(hash, split.reconciliationStatus);
+            hash = hash(hash, split.getMemo(text));
+            hash = hash(hash, split.getAction(text));
+            hash = hash(hash, split.lotGuid);
+        }
+        return hash;
+    }
+
+    /**
+     * Adds a String to an FNV-1a hash, marking where it ends so that
+     * neighbouring values cannot run into each other
+     * @param hash The hash so far
+     * @param value The String, which may be null
+     * @return The new hash
+     */
+    protected static long hash(long hash, String value)
+    {
+        if (value == null)
+            return hash(hash, (char) 0xfffe);
+        for (int i = 0; i < value.length(); i++)
+            hash = hash(hash, value.charAt(i));
+        return hash(hash, (char) 0xffff);
+    }
+
+    /**
+     * Adds a character to an FNV-1a hash
+     * @param hash The hash so far
+     * @param value The character
+     * @return The new hash
+     */
+    protected static long hash(long hash, char value)
+    {
+        hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+        return (hash ^ (value >>> 8)) * FNV_PRIME;
+    }
+
+    /**
+     * Adds a long to an FNV-1a hash
+     * @param hash The hash so far
+     * @param value The long
+     * @return The new hash
+     */
+    protected static long hash(long hash, long value)
+    {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+}